@@ -0,0 +1,66 @@
+SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0;
+SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='TRADITIONAL,ALLOW_INVALID_DATES';
+
+-- Totals were updated with absolute values on every matching row, so duplicates hold the same counters.
+-- Keep the highest value of every counter in the oldest row, then drop the rest and add the keys used by upserts.
+
+-- total_blocks
+UPDATE `$prefix_total_blocks` t
+  JOIN (SELECT MIN(`total_blocks_id`) AS `keep_id`, MAX(`destroyed`) AS `destroyed`, MAX(`placed`) AS `placed`
+    FROM `$prefix_total_blocks` GROUP BY `player_id`, `material_id` HAVING COUNT(*) > 1) d
+  ON t.`total_blocks_id` = d.`keep_id`
+  SET t.`destroyed` = d.`destroyed`, t.`placed` = d.`placed`;
+DELETE t FROM `$prefix_total_blocks` t
+  JOIN `$prefix_total_blocks` k
+  ON t.`player_id` = k.`player_id` AND t.`material_id` = k.`material_id` AND t.`total_blocks_id` > k.`total_blocks_id`;
+ALTER TABLE `$prefix_total_blocks` ADD UNIQUE KEY `uq_total_blocks` (`player_id`, `material_id`);
+
+-- total_items
+UPDATE `$prefix_total_items` t
+  JOIN (SELECT MIN(`total_items_id`) AS `keep_id`, MAX(`dropped`) AS `dropped`, MAX(`picked_up`) AS `picked_up`,
+      MAX(`used`) AS `used`, MAX(`crafted`) AS `crafted`, MAX(`smelted`) AS `smelted`, MAX(`broken`) AS `broken`,
+      MAX(`enchanted`) AS `enchanted`, MAX(`repaired`) AS `repaired`
+    FROM `$prefix_total_items` GROUP BY `player_id`, `material_id` HAVING COUNT(*) > 1) d
+  ON t.`total_items_id` = d.`keep_id`
+  SET t.`dropped` = d.`dropped`, t.`picked_up` = d.`picked_up`, t.`used` = d.`used`, t.`crafted` = d.`crafted`,
+    t.`smelted` = d.`smelted`, t.`broken` = d.`broken`, t.`enchanted` = d.`enchanted`, t.`repaired` = d.`repaired`;
+DELETE t FROM `$prefix_total_items` t
+  JOIN `$prefix_total_items` k
+  ON t.`player_id` = k.`player_id` AND t.`material_id` = k.`material_id` AND t.`total_items_id` > k.`total_items_id`;
+ALTER TABLE `$prefix_total_items` ADD UNIQUE KEY `uq_total_items` (`player_id`, `material_id`);
+
+-- total_deaths
+UPDATE `$prefix_total_deaths` t
+  JOIN (SELECT MIN(`total_death_players_id`) AS `keep_id`, MAX(`times`) AS `times`
+    FROM `$prefix_total_deaths` GROUP BY `player_id`, `cause` HAVING COUNT(*) > 1) d
+  ON t.`total_death_players_id` = d.`keep_id`
+  SET t.`times` = d.`times`;
+DELETE t FROM `$prefix_total_deaths` t
+  JOIN `$prefix_total_deaths` k
+  ON t.`player_id` = k.`player_id` AND t.`cause` = k.`cause` AND t.`total_death_players_id` > k.`total_death_players_id`;
+ALTER TABLE `$prefix_total_deaths` ADD UNIQUE KEY `uq_total_deaths` (`player_id`, `cause`);
+
+-- total_pvp_kills
+UPDATE `$prefix_total_pvp_kills` t
+  JOIN (SELECT MIN(`total_pvp_id`) AS `keep_id`, MAX(`times`) AS `times`
+    FROM `$prefix_total_pvp_kills` GROUP BY `player_id`, `victim_id`, `material_id` HAVING COUNT(*) > 1) d
+  ON t.`total_pvp_id` = d.`keep_id`
+  SET t.`times` = d.`times`;
+DELETE t FROM `$prefix_total_pvp_kills` t
+  JOIN `$prefix_total_pvp_kills` k
+  ON t.`player_id` = k.`player_id` AND t.`victim_id` = k.`victim_id` AND t.`material_id` = k.`material_id` AND t.`total_pvp_id` > k.`total_pvp_id`;
+ALTER TABLE `$prefix_total_pvp_kills` ADD UNIQUE KEY `uq_total_pvp_kills` (`player_id`, `victim_id`, `material_id`);
+
+-- total_pve_kills
+UPDATE `$prefix_total_pve_kills` t
+  JOIN (SELECT MIN(`total_pve_id`) AS `keep_id`, MAX(`player_killed`) AS `player_killed`, MAX(`creature_killed`) AS `creature_killed`
+    FROM `$prefix_total_pve_kills` GROUP BY `player_id`, `entity_id`, `material_id` HAVING COUNT(*) > 1) d
+  ON t.`total_pve_id` = d.`keep_id`
+  SET t.`player_killed` = d.`player_killed`, t.`creature_killed` = d.`creature_killed`;
+DELETE t FROM `$prefix_total_pve_kills` t
+  JOIN `$prefix_total_pve_kills` k
+  ON t.`player_id` = k.`player_id` AND t.`entity_id` = k.`entity_id` AND t.`material_id` = k.`material_id` AND t.`total_pve_id` > k.`total_pve_id`;
+ALTER TABLE `$prefix_total_pve_kills` ADD UNIQUE KEY `uq_total_pve_kills` (`player_id`, `entity_id`, `material_id`);
+
+SET SQL_MODE=@OLD_SQL_MODE;
+SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS;
\ No newline at end of file
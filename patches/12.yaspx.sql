@@ -0,0 +1,14 @@
+SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0;
+SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='TRADITIONAL,ALLOW_INVALID_DATES';
+
+-- The unique keys added in patch 11 start with `player_id`, so they serve every lookup and foreign key
+-- the single-column player indexes were used for. Dropping them saves a write per row on every upsert.
+
+ALTER TABLE `$prefix_total_blocks` DROP INDEX `fk_player_id5_idx`;
+ALTER TABLE `$prefix_total_items` DROP INDEX `fk_player_id10_idx`;
+ALTER TABLE `$prefix_total_deaths` DROP INDEX `fk_player_id3_idx`;
+ALTER TABLE `$prefix_total_pvp_kills` DROP INDEX `fk_player_id14_idx`;
+ALTER TABLE `$prefix_total_pve_kills` DROP INDEX `fk_player_id13_idx`;
+
+SET SQL_MODE=@OLD_SQL_MODE;
+SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS;
\ No newline at end of file
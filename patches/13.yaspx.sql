@@ -0,0 +1,99 @@
+SET @OLD_UNIQUE_CHECKS=@@UNIQUE_CHECKS, UNIQUE_CHECKS=0;
+SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0;
+SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='TRADITIONAL,ALLOW_INVALID_DATES';
+
+-- Hourly rollups of the detailed tables, filled by the compaction task.
+-- Rows are keyed by player, material or entity, world, chunk and the start of the hour.
+
+-- -----------------------------------------------------
+-- Table `$dbname`.`$prefix_rollup_destroyed_blocks`
+-- -----------------------------------------------------
+CREATE  TABLE IF NOT EXISTS `$dbname`.`$prefix_rollup_destroyed_blocks` (
+  `player_id` INT NOT NULL ,
+  `material_id` VARCHAR(16) NOT NULL ,
+  `world` VARCHAR(255) NOT NULL DEFAULT '' ,
+  `chunk_x` INT NOT NULL ,
+  `chunk_z` INT NOT NULL ,
+  `hour` INT(11) NOT NULL ,
+  `count` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  PRIMARY KEY (`player_id`, `material_id`, `world`, `chunk_x`, `chunk_z`, `hour`) ,
+  INDEX `idx_rollup_destroyed_blocks_hour` (`hour` ASC) );
+
+-- -----------------------------------------------------
+-- Table `$dbname`.`$prefix_rollup_placed_blocks`
+-- -----------------------------------------------------
+CREATE  TABLE IF NOT EXISTS `$dbname`.`$prefix_rollup_placed_blocks` (
+  `player_id` INT NOT NULL ,
+  `material_id` VARCHAR(16) NOT NULL ,
+  `world` VARCHAR(255) NOT NULL DEFAULT '' ,
+  `chunk_x` INT NOT NULL ,
+  `chunk_z` INT NOT NULL ,
+  `hour` INT(11) NOT NULL ,
+  `count` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  PRIMARY KEY (`player_id`, `material_id`, `world`, `chunk_x`, `chunk_z`, `hour`) ,
+  INDEX `idx_rollup_placed_blocks_hour` (`hour` ASC) );
+
+-- -----------------------------------------------------
+-- Table `$dbname`.`$prefix_rollup_dropped_items`
+-- -----------------------------------------------------
+CREATE  TABLE IF NOT EXISTS `$dbname`.`$prefix_rollup_dropped_items` (
+  `player_id` INT NOT NULL ,
+  `material_id` VARCHAR(16) NOT NULL ,
+  `world` VARCHAR(255) NOT NULL DEFAULT '' ,
+  `chunk_x` INT NOT NULL ,
+  `chunk_z` INT NOT NULL ,
+  `hour` INT(11) NOT NULL ,
+  `count` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  `amount` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  PRIMARY KEY (`player_id`, `material_id`, `world`, `chunk_x`, `chunk_z`, `hour`) ,
+  INDEX `idx_rollup_dropped_items_hour` (`hour` ASC) );
+
+-- -----------------------------------------------------
+-- Table `$dbname`.`$prefix_rollup_pickedup_items`
+-- -----------------------------------------------------
+CREATE  TABLE IF NOT EXISTS `$dbname`.`$prefix_rollup_pickedup_items` (
+  `player_id` INT NOT NULL ,
+  `material_id` VARCHAR(16) NOT NULL ,
+  `world` VARCHAR(255) NOT NULL DEFAULT '' ,
+  `chunk_x` INT NOT NULL ,
+  `chunk_z` INT NOT NULL ,
+  `hour` INT(11) NOT NULL ,
+  `count` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  `amount` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  PRIMARY KEY (`player_id`, `material_id`, `world`, `chunk_x`, `chunk_z`, `hour`) ,
+  INDEX `idx_rollup_pickedup_items_hour` (`hour` ASC) );
+
+-- -----------------------------------------------------
+-- Table `$dbname`.`$prefix_rollup_pve_kills`
+-- -----------------------------------------------------
+CREATE  TABLE IF NOT EXISTS `$dbname`.`$prefix_rollup_pve_kills` (
+  `player_id` INT NOT NULL ,
+  `entity_id` VARCHAR(16) NOT NULL ,
+  `material_id` VARCHAR(16) NOT NULL ,
+  `player_killed` TINYINT(1) NOT NULL DEFAULT 0 ,
+  `world` VARCHAR(255) NOT NULL DEFAULT '' ,
+  `chunk_x` INT NOT NULL ,
+  `chunk_z` INT NOT NULL ,
+  `hour` INT(11) NOT NULL ,
+  `count` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  PRIMARY KEY (`player_id`, `entity_id`, `material_id`, `player_killed`, `world`, `chunk_x`, `chunk_z`, `hour`) ,
+  INDEX `idx_rollup_pve_kills_hour` (`hour` ASC) );
+
+-- -----------------------------------------------------
+-- Table `$dbname`.`$prefix_rollup_pvp_kills`
+-- -----------------------------------------------------
+CREATE  TABLE IF NOT EXISTS `$dbname`.`$prefix_rollup_pvp_kills` (
+  `player_id` INT NOT NULL ,
+  `victim_id` INT NOT NULL ,
+  `material_id` VARCHAR(16) NOT NULL ,
+  `world` VARCHAR(255) NOT NULL DEFAULT '' ,
+  `chunk_x` INT NOT NULL ,
+  `chunk_z` INT NOT NULL ,
+  `hour` INT(11) NOT NULL ,
+  `count` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  PRIMARY KEY (`player_id`, `victim_id`, `material_id`, `world`, `chunk_x`, `chunk_z`, `hour`) ,
+  INDEX `idx_rollup_pvp_kills_hour` (`hour` ASC) );
+
+SET SQL_MODE=@OLD_SQL_MODE;
+SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS;
+SET UNIQUE_CHECKS=@OLD_UNIQUE_CHECKS;
\ No newline at end of file
@@ -0,0 +1,73 @@
+SET @OLD_UNIQUE_CHECKS=@@UNIQUE_CHECKS, UNIQUE_CHECKS=0;
+SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0;
+SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='TRADITIONAL,ALLOW_INVALID_DATES';
+
+-- Precomputed per-player totals, displayed on signs, books and scoreboards.
+-- Sessions add their changes to the row on every sync; the existing totals are copied over once.
+
+-- -----------------------------------------------------
+-- Table `$dbname`.`$prefix_player_summary`
+-- -----------------------------------------------------
+CREATE  TABLE IF NOT EXISTS `$dbname`.`$prefix_player_summary` (
+  `player_id` INT NOT NULL ,
+  `blocks_broken` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  `blocks_placed` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  `distance_foot` DOUBLE NOT NULL DEFAULT 0 ,
+  `distance_swim` DOUBLE NOT NULL DEFAULT 0 ,
+  `distance_flight` DOUBLE NOT NULL DEFAULT 0 ,
+  `distance_boat` DOUBLE NOT NULL DEFAULT 0 ,
+  `distance_minecart` DOUBLE NOT NULL DEFAULT 0 ,
+  `distance_ride` DOUBLE NOT NULL DEFAULT 0 ,
+  `items_broken` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  `items_crafted` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  `items_eaten` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  `pvp_kills` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  `pve_kills` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  `deaths` INT UNSIGNED NOT NULL DEFAULT 0 ,
+  PRIMARY KEY (`player_id`) );
+
+INSERT INTO `$prefix_player_summary` (`player_id`)
+  SELECT `player_id` FROM `$prefix_players`
+  ON DUPLICATE KEY UPDATE `player_id` = `player_id`;
+
+UPDATE `$prefix_player_summary` s
+  JOIN (SELECT `player_id`, SUM(`destroyed`) AS `broken`, SUM(`placed`) AS `placed`
+    FROM `$prefix_total_blocks` GROUP BY `player_id`) t ON t.`player_id` = s.`player_id`
+  SET s.`blocks_broken` = IFNULL(t.`broken`, 0), s.`blocks_placed` = IFNULL(t.`placed`, 0);
+
+UPDATE `$prefix_player_summary` s
+  JOIN (SELECT `player_id`, SUM(`foot`) AS `foot`, SUM(`swim`) AS `swim`, SUM(`flight`) AS `flight`,
+      SUM(`boat`) AS `boat`, SUM(`minecart`) AS `minecart`, SUM(`ride`) AS `ride`
+    FROM `$prefix_distances` GROUP BY `player_id`) t ON t.`player_id` = s.`player_id`
+  SET s.`distance_foot` = IFNULL(t.`foot`, 0), s.`distance_swim` = IFNULL(t.`swim`, 0),
+    s.`distance_flight` = IFNULL(t.`flight`, 0), s.`distance_boat` = IFNULL(t.`boat`, 0),
+    s.`distance_minecart` = IFNULL(t.`minecart`, 0), s.`distance_ride` = IFNULL(t.`ride`, 0);
+
+UPDATE `$prefix_player_summary` s
+  JOIN (SELECT `player_id`, SUM(`broken`) AS `broken`, SUM(`crafted`) AS `crafted`, SUM(`used`) AS `used`
+    FROM `$prefix_total_items` GROUP BY `player_id`) t ON t.`player_id` = s.`player_id`
+  SET s.`items_broken` = IFNULL(t.`broken`, 0), s.`items_crafted` = IFNULL(t.`crafted`, 0), s.`items_eaten` = IFNULL(t.`used`, 0);
+
+UPDATE `$prefix_player_summary` s
+  JOIN (SELECT `player_id`, SUM(`times`) AS `kills`
+    FROM `$prefix_total_pvp_kills` GROUP BY `player_id`) t ON t.`player_id` = s.`player_id`
+  SET s.`pvp_kills` = IFNULL(t.`kills`, 0);
+
+UPDATE `$prefix_player_summary` s
+  JOIN (SELECT `player_id`, SUM(`creature_killed`) AS `kills`, SUM(`player_killed`) AS `deaths`
+    FROM `$prefix_total_pve_kills` GROUP BY `player_id`) t ON t.`player_id` = s.`player_id`
+  SET s.`pve_kills` = IFNULL(t.`kills`, 0), s.`deaths` = s.`deaths` + IFNULL(t.`deaths`, 0);
+
+UPDATE `$prefix_player_summary` s
+  JOIN (SELECT `victim_id`, SUM(`times`) AS `deaths`
+    FROM `$prefix_total_pvp_kills` GROUP BY `victim_id`) t ON t.`victim_id` = s.`player_id`
+  SET s.`deaths` = s.`deaths` + IFNULL(t.`deaths`, 0);
+
+UPDATE `$prefix_player_summary` s
+  JOIN (SELECT `player_id`, SUM(`times`) AS `deaths`
+    FROM `$prefix_total_deaths` GROUP BY `player_id`) t ON t.`player_id` = s.`player_id`
+  SET s.`deaths` = s.`deaths` + IFNULL(t.`deaths`, 0);
+
+SET SQL_MODE=@OLD_SQL_MODE;
+SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS;
+SET UNIQUE_CHECKS=@OLD_UNIQUE_CHECKS;
\ No newline at end of file
@@ -0,0 +1,42 @@
+SET @OLD_UNIQUE_CHECKS=@@UNIQUE_CHECKS, UNIQUE_CHECKS=0;
+SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0;
+SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='TRADITIONAL,ALLOW_INVALID_DATES';
+
+-- Server-wide totals, kept in a single row. Every sync adds the changes written to the player summaries,
+-- and the totals are periodically recalculated from the player data tables to correct any drift.
+
+-- -----------------------------------------------------
+-- Table `$dbname`.`$prefix_server_totals`
+-- -----------------------------------------------------
+CREATE  TABLE IF NOT EXISTS `$dbname`.`$prefix_server_totals` (
+  `server_totals_id` TINYINT UNSIGNED NOT NULL ,
+  `blocks_broken` BIGINT UNSIGNED NOT NULL DEFAULT 0 ,
+  `blocks_placed` BIGINT UNSIGNED NOT NULL DEFAULT 0 ,
+  `distance_foot` DOUBLE NOT NULL DEFAULT 0 ,
+  `distance_swim` DOUBLE NOT NULL DEFAULT 0 ,
+  `distance_flight` DOUBLE NOT NULL DEFAULT 0 ,
+  `distance_boat` DOUBLE NOT NULL DEFAULT 0 ,
+  `distance_minecart` DOUBLE NOT NULL DEFAULT 0 ,
+  `distance_ride` DOUBLE NOT NULL DEFAULT 0 ,
+  `items_broken` BIGINT UNSIGNED NOT NULL DEFAULT 0 ,
+  `items_crafted` BIGINT UNSIGNED NOT NULL DEFAULT 0 ,
+  `items_eaten` BIGINT UNSIGNED NOT NULL DEFAULT 0 ,
+  `pvp_kills` BIGINT UNSIGNED NOT NULL DEFAULT 0 ,
+  `pve_kills` BIGINT UNSIGNED NOT NULL DEFAULT 0 ,
+  `deaths` BIGINT UNSIGNED NOT NULL DEFAULT 0 ,
+  PRIMARY KEY (`server_totals_id`) );
+
+INSERT INTO `$prefix_server_totals` (`server_totals_id`, `blocks_broken`, `blocks_placed`,
+    `distance_foot`, `distance_swim`, `distance_flight`, `distance_boat`, `distance_minecart`, `distance_ride`,
+    `items_broken`, `items_crafted`, `items_eaten`, `pvp_kills`, `pve_kills`, `deaths`)
+  SELECT 1, IFNULL(SUM(`blocks_broken`), 0), IFNULL(SUM(`blocks_placed`), 0),
+    IFNULL(SUM(`distance_foot`), 0), IFNULL(SUM(`distance_swim`), 0), IFNULL(SUM(`distance_flight`), 0),
+    IFNULL(SUM(`distance_boat`), 0), IFNULL(SUM(`distance_minecart`), 0), IFNULL(SUM(`distance_ride`), 0),
+    IFNULL(SUM(`items_broken`), 0), IFNULL(SUM(`items_crafted`), 0), IFNULL(SUM(`items_eaten`), 0),
+    IFNULL(SUM(`pvp_kills`), 0), IFNULL(SUM(`pve_kills`), 0), IFNULL(SUM(`deaths`), 0)
+  FROM `$prefix_player_summary`
+  ON DUPLICATE KEY UPDATE `server_totals_id` = `server_totals_id`;
+
+SET SQL_MODE=@OLD_SQL_MODE;
+SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS;
+SET UNIQUE_CHECKS=@OLD_UNIQUE_CHECKS;
\ No newline at end of file
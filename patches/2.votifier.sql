@@ -0,0 +1,8 @@
+SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0;
+SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='TRADITIONAL,ALLOW_INVALID_DATES';
+
+-- Votes are counted per player and service
+ALTER TABLE `$prefix_votifier_totals` DROP PRIMARY KEY, ADD PRIMARY KEY (`player_id`, `service_name`);
+
+SET SQL_MODE=@OLD_SQL_MODE;
+SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS;
\ No newline at end of file
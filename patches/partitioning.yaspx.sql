@@ -0,0 +1,51 @@
+SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0;
+SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='TRADITIONAL,ALLOW_INVALID_DATES';
+
+-- Opt-in patch, applied by the partition maintenance task when database.partitioning.enabled is set.
+-- Partitioned InnoDB tables cannot have foreign keys, and the partitioning column has to be a part of
+-- the primary key. Rows of deleted players are no longer removed by cascade once this patch is applied.
+
+-- detailed_destroyed_blocks
+ALTER TABLE `$prefix_detailed_destroyed_blocks` DROP FOREIGN KEY `fk_player_id6`, DROP FOREIGN KEY `fk_material_id8`;
+UPDATE `$prefix_detailed_destroyed_blocks` SET `time` = 0 WHERE `time` IS NULL;
+ALTER TABLE `$prefix_detailed_destroyed_blocks` MODIFY `time` INT(11) NOT NULL DEFAULT 0,
+  DROP PRIMARY KEY, ADD PRIMARY KEY (`detailed_destroyed_blocks_id`, `time`);
+
+-- detailed_placed_blocks
+ALTER TABLE `$prefix_detailed_placed_blocks` DROP FOREIGN KEY `fk_player_id7`, DROP FOREIGN KEY `fk_material_id3`;
+UPDATE `$prefix_detailed_placed_blocks` SET `time` = 0 WHERE `time` IS NULL;
+ALTER TABLE `$prefix_detailed_placed_blocks` MODIFY `time` INT(11) NOT NULL DEFAULT 0,
+  DROP PRIMARY KEY, ADD PRIMARY KEY (`detailed_placed_blocks_id`, `time`);
+
+-- detailed_dropped_items
+ALTER TABLE `$prefix_detailed_dropped_items` DROP FOREIGN KEY `fk_player_id11`, DROP FOREIGN KEY `fk_material_id4`;
+UPDATE `$prefix_detailed_dropped_items` SET `time` = 0 WHERE `time` IS NULL;
+ALTER TABLE `$prefix_detailed_dropped_items` MODIFY `time` INT(11) NOT NULL DEFAULT 0,
+  DROP PRIMARY KEY, ADD PRIMARY KEY (`detailed_dropped_items_id`, `time`);
+
+-- detailed_pickedup_items
+ALTER TABLE `$prefix_detailed_pickedup_items` DROP FOREIGN KEY `fk_player_id12`, DROP FOREIGN KEY `fk_material_id10`;
+UPDATE `$prefix_detailed_pickedup_items` SET `time` = 0 WHERE `time` IS NULL;
+ALTER TABLE `$prefix_detailed_pickedup_items` MODIFY `time` INT(11) NOT NULL DEFAULT 0,
+  DROP PRIMARY KEY, ADD PRIMARY KEY (`detailed_pickedup_items_id`, `time`);
+
+-- detailed_pve_kills
+ALTER TABLE `$prefix_detailed_pve_kills` DROP FOREIGN KEY `fk_player_id16`, DROP FOREIGN KEY `fk_entity_id2`, DROP FOREIGN KEY `fk_material_id11`;
+UPDATE `$prefix_detailed_pve_kills` SET `time` = 0 WHERE `time` IS NULL;
+ALTER TABLE `$prefix_detailed_pve_kills` MODIFY `time` INT(11) NOT NULL DEFAULT 0,
+  DROP PRIMARY KEY, ADD PRIMARY KEY (`detailed_pve_id`, `time`);
+
+-- detailed_pvp_kills
+ALTER TABLE `$prefix_detailed_pvp_kills` DROP FOREIGN KEY `fk_player_id17`, DROP FOREIGN KEY `fk_player_id18`, DROP FOREIGN KEY `fk_material_id7`;
+UPDATE `$prefix_detailed_pvp_kills` SET `time` = 0 WHERE `time` IS NULL;
+ALTER TABLE `$prefix_detailed_pvp_kills` MODIFY `time` INT(11) NOT NULL DEFAULT 0,
+  DROP PRIMARY KEY, ADD PRIMARY KEY (`detailed_pvp_id`, `time`);
+
+-- detailed_log_players
+ALTER TABLE `$prefix_detailed_log_players` DROP FOREIGN KEY `fk_player_id4`;
+UPDATE `$prefix_detailed_log_players` SET `time` = 0 WHERE `time` IS NULL;
+ALTER TABLE `$prefix_detailed_log_players` MODIFY `time` INT(11) NOT NULL DEFAULT 0,
+  DROP PRIMARY KEY, ADD PRIMARY KEY (`detailed_log_players_id`, `time`);
+
+SET SQL_MODE=@OLD_SQL_MODE;
+SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS;
\ No newline at end of file
@@ -37,6 +37,7 @@ import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import com.wolvencraft.yasp.db.Database;
+import com.wolvencraft.yasp.db.DatabaseExecutor;
 import com.wolvencraft.yasp.db.PatchManager;
 import com.wolvencraft.yasp.db.Query;
 import com.wolvencraft.yasp.db.data.ServerStatistics;
@@ -57,7 +58,9 @@ import com.wolvencraft.yasp.util.Message;
 import com.wolvencraft.yasp.util.cache.CachedData;
 import com.wolvencraft.yasp.util.cache.OnlineSessionCache;
 import com.wolvencraft.yasp.util.tasks.DatabaseTask;
+import com.wolvencraft.yasp.util.tasks.PartitionTask;
 import com.wolvencraft.yasp.util.tasks.RefreshTask;
+import com.wolvencraft.yasp.util.tasks.RollupTask;
 import com.wolvencraft.yasp.util.tasks.SignRefreshTask;
 import com.wolvencraft.yasp.util.tasks.SignRefreshTask.StatsSign;
 import com.wolvencraft.yasp.util.tasks.TickTask;
@@ -124,6 +127,8 @@ public class Statistics extends JavaPlugin {
         
         Message.log("Database connection established.");
         
+        new DatabaseExecutor();
+        
         hookManager = new HookManager();
         hookManager.onEnable();
         
@@ -157,6 +162,11 @@ public class Statistics extends JavaPlugin {
         
         Bukkit.getScheduler().runTaskTimerAsynchronously(this, new DatabaseTask(), (ping / 2), ping);
         Bukkit.getScheduler().runTaskTimerAsynchronously(this, new RefreshTask(), 0L, 20L);
+        if(LocalConfiguration.DBPartitioning.toBoolean()) Bukkit.getScheduler().runTaskTimerAsynchronously(this, new PartitionTask(), 20L * 60, 20L * 60 * 60);
+        if(LocalConfiguration.DBRollupAge.toInteger() > 0) {
+            long interval = Math.max(1, LocalConfiguration.DBRollupInterval.toInteger()) * 20L * 60;
+            Bukkit.getScheduler().runTaskTimerAsynchronously(this, new RollupTask(), interval, interval);
+        }
         
         Bukkit.getScheduler().runTaskTimer(this, new SignRefreshTask(), ping, ping);
         Bukkit.getScheduler().runTaskTimer(this, new TickTask(), 0L, 1L);
@@ -170,6 +180,7 @@ public class Statistics extends JavaPlugin {
             for(Player player : Bukkit.getOnlinePlayers()) {
                 OnlineSessionCache.fetch(player).getPlayersData().addPlayerLog(player.getLocation(), false);
             }
+            DatabaseExecutor.shutdown();
             DatabaseTask.commit();
             serverStatistics.pluginShutdown();
             OnlineSessionCache.dumpSessions();
@@ -24,6 +24,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.sql.Connection;
 import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
@@ -120,10 +121,15 @@ public class StatisticsAPI {
         InputStream is = new FileInputStream(plugin.getDataFolder() + "/" + path + ".sql");
         Message.log(Level.FINE, "Executing external database patch: " + path + ".sql");
         
-        ScriptRunner scriptRunner = new ScriptRunner(Database.getConnection());
-        try {scriptRunner.runScript(new InputStreamReader(is)); }
+        Connection connection = Database.borrowConnection();
+        ScriptRunner scriptRunner = new ScriptRunner(connection);
+        try {
+            scriptRunner.runScript(new InputStreamReader(is));
+            Message.debug("Patch " + path + ": " + scriptRunner.getStatements() + " statements sent in " + scriptRunner.getRequests() + " requests, " + scriptRunner.getElapsed() + " ms");
+        }
         catch (RuntimeSQLException e) { throw new DatabaseConnectionException("An error occured while executing database patch: " + path + ".sql", e); }
         finally {
+            Database.releaseConnection(connection);
             if(!Query.table(SettingsTable.TableName).condition("key", "patched").exists()) {
                 Query.table(SettingsTable.TableName).value("key", "patched").value("value", 1).insert();
             }
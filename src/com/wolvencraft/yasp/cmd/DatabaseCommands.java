@@ -20,22 +20,39 @@
 
 package com.wolvencraft.yasp.cmd;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
 import com.wolvencraft.yasp.CommandManager;
 import com.wolvencraft.yasp.CommandManager.Command;
 import com.wolvencraft.yasp.Statistics;
+import com.wolvencraft.yasp.db.CircuitBreaker;
+import com.wolvencraft.yasp.db.ConnectionPool;
 import com.wolvencraft.yasp.db.Database;
+import com.wolvencraft.yasp.db.DatabaseExecutor;
+import com.wolvencraft.yasp.db.KeyValueWriter;
 import com.wolvencraft.yasp.db.Query;
-import com.wolvencraft.yasp.db.Query.QueryResult;
+import com.wolvencraft.yasp.db.QueryMetrics;
+import com.wolvencraft.yasp.db.QueryMetrics.Metric;
+import com.wolvencraft.yasp.db.Replica;
+import com.wolvencraft.yasp.db.RowHandler;
+import com.wolvencraft.yasp.db.SlowQueryLog;
+import com.wolvencraft.yasp.db.Transaction;
+import com.wolvencraft.yasp.db.data.NormalData;
 import com.wolvencraft.yasp.db.tables.Normal.PlayerStats;
 import com.wolvencraft.yasp.settings.Constants.StatPerms;
 import com.wolvencraft.yasp.util.ExceptionHandler;
 import com.wolvencraft.yasp.util.Message;
+import com.wolvencraft.yasp.util.cache.EntityCache;
 import com.wolvencraft.yasp.util.cache.OnlineSessionCache;
 import com.wolvencraft.yasp.util.tasks.DatabaseTask;
 import com.wolvencraft.yasp.util.tasks.SignRefreshTask;
@@ -59,12 +76,19 @@ public class DatabaseCommands {
             public void run() {
                 DatabaseTask.commit();
                 
-                List<QueryResult> results= Query.table(PlayerStats.TableName).column(PlayerStats.Name).condition(PlayerStats.Online, true).selectAll();
-                for(QueryResult result : results) {
-                    String playerName = result.asString(PlayerStats.Name);
-                    if(Bukkit.getPlayerExact(playerName) == null)
-                        Query.table(PlayerStats.TableName).value(PlayerStats.Online, false).condition(PlayerStats.Name, playerName).update();
-                }
+                final List<String> offline = new ArrayList<String>();
+                Query.table(PlayerStats.TableName).column(PlayerStats.Name).condition(PlayerStats.Online, true).stream(new RowHandler() {
+                    
+                    @Override
+                    public boolean handle(ResultSet row) throws SQLException {
+                        String playerName = row.getString(1);
+                        if(playerName != null && Bukkit.getPlayerExact(playerName) == null) offline.add(playerName);
+                        return true;
+                    }
+                    
+                });
+                for(String playerName : offline)
+                    Query.table(PlayerStats.TableName).value(PlayerStats.Online, false).condition(PlayerStats.Name, playerName).update();
                 
                 Bukkit.getScheduler().runTask(Statistics.getInstance(), new Runnable() {
                     
@@ -167,7 +191,7 @@ public class DatabaseCommands {
             )
     public static boolean reconnect(List<String> args) {
         try {
-            Database.reconnect();
+            if(Database.reconnect(true) && Database.getJournal() != null) Database.getJournal().replay();
             Message.sendFormattedSuccess(CommandManager.getSender(), "Re-established the database connection");
             return true;
         } catch (Exception ex) {
@@ -176,6 +200,119 @@ public class DatabaseCommands {
         }
     }
     
+    @Command(
+            alias = "status",
+            minArgs = 0,
+            maxArgs = 0,
+            permission = "stats.cmd.status",
+            allowConsole = true,
+            usage = "/stats status",
+            description = "Displays the state of the database connection pool"
+            )
+    public static boolean status(List<String> args) {
+        ConnectionPool pool = Database.getPool();
+        CircuitBreaker breaker = Database.getBreaker();
+        if(pool == null || pool.isClosed()) {
+            Message.sendFormattedError(CommandManager.getSender(), "The database connection is closed");
+            return false;
+        }
+        
+        Message.formatHeader(20, "Database Status");
+        Message.send(ChatColor.GREEN + "Connections: " + ChatColor.WHITE + pool.getActive() + " active, " + pool.getIdle() + " idle " + ChatColor.GRAY + "(" + pool.getMinSize() + " - " + pool.getMaxSize() + ")");
+        Message.send(ChatColor.GREEN + "Endpoint: " + ChatColor.WHITE + "#" + (pool.getEndpoint() + 1) + " of " + pool.getEndpointCount() + ChatColor.GRAY + " (" + pool.getFailoverCount() + " failovers)");
+        Message.send(ChatColor.GREEN + "Circuit breaker: " + ChatColor.WHITE + breaker.getState().name() + ChatColor.GRAY + " (" + breaker.getFailures() + " failures, opened " + breaker.getTrips() + " times)");
+        Message.send(ChatColor.GREEN + "Waiting: " + ChatColor.WHITE + pool.getWaiting() + ChatColor.GRAY + " threads");
+        Message.send(ChatColor.GREEN + "Wait time: " + ChatColor.WHITE + String.format("%.2f", pool.getAverageWaitTime()) + " ms avg, " + pool.getMaxWaitTime() + " ms max");
+        Message.send(ChatColor.GREEN + "Borrowed: " + ChatColor.WHITE + pool.getBorrowCount() + ChatColor.GRAY + " (" + pool.getTimeoutCount() + " timed out)");
+        Message.send(ChatColor.GREEN + "Opened / closed: " + ChatColor.WHITE + pool.getCreatedCount() + " / " + pool.getEvictedCount());
+        Message.send(ChatColor.GREEN + "Leaks detected: " + ChatColor.WHITE + pool.getLeakCount());
+        Replica replica = Database.getReplica();
+        if(replica != null) {
+            String replicaState = replica.isHealthy() ? (replica.getLag() + " seconds behind") : "unhealthy";
+            Message.send(ChatColor.GREEN + "Replica: " + ChatColor.WHITE + replicaState + ChatColor.GRAY + " (" + replica.getRouted() + " reads, " + replica.getFallbacks() + " sent to primary)");
+        }
+        SlowQueryLog slowLog = Database.getSlowLog();
+        if(slowLog != null && slowLog.isEnabled()) Message.send(ChatColor.GREEN + "Slow queries: " + ChatColor.WHITE + slowLog.getLogged() + " logged" + ChatColor.GRAY + " (" + slowLog.getSuppressed() + " suppressed)");
+        Message.send(ChatColor.GREEN + "Transactions: " + ChatColor.WHITE + Transaction.getCommits() + " commits, " + Transaction.getStatements() + " statements" + ChatColor.GRAY + " (" + Transaction.getRollbacks() + " rolled back, " + Transaction.getRetries() + " retried)");
+        Message.send(ChatColor.GREEN + "Settings written: " + ChatColor.WHITE + KeyValueWriter.getWritten() + " in " + KeyValueWriter.getStatements() + " statements" + ChatColor.GRAY + " (" + KeyValueWriter.getCoalesced() + " coalesced, " + KeyValueWriter.getPending() + " pending)");
+        Message.send(ChatColor.GREEN + "Entity cache: " + ChatColor.WHITE + EntityCache.getHits() + " hits, " + EntityCache.getMisses() + " misses");
+        Message.send(ChatColor.GREEN + "Totals written / skipped: " + ChatColor.WHITE + NormalData.getWritten() + " / " + NormalData.getSkipped());
+        return true;
+    }
+    
+    @Command(
+            alias = "queue",
+            minArgs = 0,
+            maxArgs = 0,
+            permission = "stats.cmd.queue",
+            allowConsole = true,
+            usage = "/stats queue",
+            description = "Displays the state of the database work queue"
+            )
+    public static boolean queue(List<String> args) {
+        if(!DatabaseExecutor.isRunning()) {
+            Message.sendFormattedError(CommandManager.getSender(), "The database executor is not running");
+            return false;
+        }
+        
+        Message.formatHeader(20, "Database Queue");
+        Message.send(ChatColor.GREEN + "Workers: " + ChatColor.WHITE + DatabaseExecutor.getActive() + " busy " + ChatColor.GRAY + "(" + DatabaseExecutor.getThreads() + " threads)");
+        Message.send(ChatColor.GREEN + "Queued: " + ChatColor.WHITE + DatabaseExecutor.getDepth() + " / " + DatabaseExecutor.getCapacity() + ChatColor.GRAY + " (" + DatabaseExecutor.getPeakDepth() + " peak)");
+        Message.send(ChatColor.GREEN + "Queue time: " + ChatColor.WHITE + String.format("%.2f", DatabaseExecutor.getAverageWaitTime()) + " ms avg, " + DatabaseExecutor.getMaxWaitTime() + " ms max");
+        Message.send(ChatColor.GREEN + "Run time: " + ChatColor.WHITE + String.format("%.2f", DatabaseExecutor.getAverageRunTime()) + " ms avg, " + DatabaseExecutor.getMaxRunTime() + " ms max");
+        Message.send(ChatColor.GREEN + "Tasks: " + ChatColor.WHITE + DatabaseExecutor.getCompleted() + " / " + DatabaseExecutor.getSubmitted() + ChatColor.GRAY + " (" + DatabaseExecutor.getFailed() + " failed, " + DatabaseExecutor.getCoalesced() + " coalesced)");
+        Message.send(ChatColor.GREEN + "Overflow: " + ChatColor.WHITE + DatabaseExecutor.getPolicy().name() + ChatColor.GRAY + " (" + DatabaseExecutor.getBlocked() + " blocked, " + DatabaseExecutor.getMerged() + " merged, " + DatabaseExecutor.getSpilled() + " spilled)");
+        Message.send(ChatColor.GREEN + "Overflow thread: " + ChatColor.WHITE + DatabaseExecutor.getOverflowDepth() + " queued" + ChatColor.GRAY + " (" + DatabaseExecutor.getHandedOff() + " handed off, " + DatabaseExecutor.getRejected() + " rejected)");
+        return true;
+    }
+    
+    @Command(
+            alias = "perf",
+            minArgs = 1,
+            maxArgs = 2,
+            permission = "stats.cmd.perf",
+            allowConsole = true,
+            usage = "/stats perf db [reset]",
+            description = "Displays query latency and throughput per table"
+            )
+    public static boolean perf(List<String> args) {
+        if(!args.get(0).equalsIgnoreCase("db")) {
+            Message.sendFormattedError(CommandManager.getSender(), "Unknown performance category: " + args.get(0));
+            return false;
+        }
+        
+        if(args.size() > 1) {
+            if(!args.get(1).equalsIgnoreCase("reset")) {
+                Message.sendFormattedError(CommandManager.getSender(), "Usage: /stats perf db [reset]");
+                return false;
+            }
+            QueryMetrics.reset();
+            Message.sendFormattedSuccess(CommandManager.getSender(), "Query metrics have been reset");
+            return true;
+        }
+        
+        List<Metric> metrics = QueryMetrics.getMetrics();
+        if(metrics.isEmpty()) {
+            Message.sendFormattedError(CommandManager.getSender(), "No queries have been recorded yet");
+            return false;
+        }
+        Collections.sort(metrics, new Comparator<Metric>() {
+            @Override
+            public int compare(Metric one, Metric two) {
+                return Double.compare(two.getTotalTime(), one.getTotalTime());
+            }
+        });
+        
+        Message.formatHeader(20, "Query Performance");
+        Message.send(ChatColor.GRAY + "Sorted by total time, over the last " + (long) QueryMetrics.getPeriod() + " seconds");
+        for(Metric metric : metrics) {
+            Message.send(ChatColor.GREEN + metric.getTable() + " " + metric.getOperation().name().toLowerCase() + ": "
+                    + ChatColor.WHITE + String.format("%.2f q/s, p50 %.2f / p95 %.2f / p99 %.2f ms", metric.getQps(), metric.getPercentile(50), metric.getPercentile(95), metric.getPercentile(99))
+                    + ChatColor.GRAY + " (" + metric.getCount() + " queries, " + metric.getRows() + " rows, " + metric.getErrors() + " errors)");
+        }
+        return true;
+    }
+    
     @Command(
             alias = "dump",
             minArgs = 0,
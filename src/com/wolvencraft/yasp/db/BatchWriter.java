@@ -0,0 +1,362 @@
+/*
+ * BatchWriter.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import com.wolvencraft.yasp.db.Query.DatabaseQuery;
+import com.wolvencraft.yasp.db.QueryMetrics.Operation;
+import com.wolvencraft.yasp.db.data.DetailedData;
+import com.wolvencraft.yasp.exceptions.DatabaseConnectionException;
+import com.wolvencraft.yasp.settings.LocalConfiguration;
+import com.wolvencraft.yasp.util.Message;
+
+/**
+ * Collects detailed data entries and writes them to the database as multi-row INSERT statements.<br />
+ * Rows are grouped by their target table and column set, so entries from all sessions end up in the same batch.
+ * Each batch is committed once; if a batch is rejected, its rows are retried one by one so that a single bad row
+ * does not prevent the rest of the batch from being written.
+ * @author bitWolfy
+ *
+ */
+public class BatchWriter {
+    
+    /**
+     * MySQL does not accept more placeholders than this in a single statement
+     */
+    private static final int MAX_PARAMETERS = 65535;
+    
+    private final int batchSize;
+    private final Map<String, List<Row>> groups;
+    
+    @Getter(AccessLevel.PUBLIC) private int written;
+    @Getter(AccessLevel.PUBLIC) private int rejected;
+    @Getter(AccessLevel.PUBLIC) private int batches;
+    
+    /**
+     * <b>Default constructor</b><br />
+     * Creates a new batch writer with the batch size from the configuration
+     */
+    public BatchWriter() {
+        this(LocalConfiguration.DBBatchSize.toInteger());
+    }
+    
+    /**
+     * <b>Constructor</b><br />
+     * Creates a new batch writer with the specified batch size
+     * @param batchSize Maximum number of rows in a single statement
+     */
+    public BatchWriter(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        this.groups = new LinkedHashMap<String, List<Row>>();
+        this.written = 0;
+        this.rejected = 0;
+        this.batches = 0;
+    }
+    
+    /**
+     * Queues the detailed data entry to be written to the database.<br />
+     * Once the entry is written, it is removed from its owner collection.
+     * @param entry Entry to write
+     * @param playerId ID of the player the entry belongs to
+     * @param owner Collection that holds the entry until it is written
+     */
+    public synchronized void add(DetailedData entry, int playerId, Collection<? extends DetailedData> owner) {
+        DatabaseQuery query = entry.getQuery(playerId);
+        Map<String, Object> values = query.getValues();
+        
+        String[] columns = new String[values.size()];
+        Object[] params = new Object[values.size()];
+        StringBuilder key = new StringBuilder(query.getTable());
+        int i = 0;
+        for(Entry<String, Object> value : values.entrySet()) {
+            columns[i] = value.getKey();
+            params[i] = value.getValue();
+            key.append('|').append(value.getKey());
+            i++;
+        }
+        
+        List<Row> rows = groups.get(key.toString());
+        if(rows == null) {
+            rows = new ArrayList<Row>();
+            groups.put(key.toString(), rows);
+        }
+        rows.add(new Row(query.getTable(), columns, params, entry, owner));
+    }
+    
+    /**
+     * Returns the number of rows waiting to be written
+     * @return Number of pending rows
+     */
+    public synchronized int getPending() {
+        int pending = 0;
+        for(List<Row> rows : groups.values()) pending += rows.size();
+        return pending;
+    }
+    
+    /**
+     * Writes all queued rows to the database.<br />
+     * Rows that could not be written due to a connection failure are stored in the local journal and replayed
+     * once the connection is re-established. If the journal is not available, they stay in their owner collections,
+     * and will be picked up again on the next synchronization. If the current thread is spilling, all rows go
+     * straight to the journal.
+     * @return <b>true</b> if all rows were processed, <b>false</b> if the connection was lost
+     */
+    public synchronized boolean flush() {
+        if(Journal.isSpilling() && Database.getJournal() != null) {
+            journal();
+            groups.clear();
+            return true;
+        }
+        
+        boolean result = true;
+        for(List<Row> rows : groups.values()) {
+            if(rows.isEmpty()) continue;
+            
+            long start = System.currentTimeMillis();
+            int size = Math.min(batchSize, MAX_PARAMETERS / Math.max(1, rows.get(0).columns.length));
+            int count = 0;
+            for(int i = 0; i < rows.size() && result; i += size) {
+                List<Row> chunk = rows.subList(i, Math.min(i + size, rows.size()));
+                result = writeChunk(chunk);
+                if(result) count += chunk.size();
+            }
+            Message.debug(Level.FINER, "Batch: " + count + " / " + rows.size() + " rows to " + rows.get(0).table + " in " + (System.currentTimeMillis() - start) + " ms");
+            if(!result) break;
+        }
+        if(!result) journal();
+        groups.clear();
+        return result;
+    }
+    
+    /**
+     * Stores the rows that could not be written in the local journal.<br />
+     * Journaled rows are removed from their owner collections; the rest are picked up again on the next synchronization.
+     */
+    private void journal() {
+        Journal journal = Database.getJournal();
+        if(journal == null) return;
+        
+        int count = 0;
+        for(List<Row> rows : groups.values()) {
+            for(Row row : rows) {
+                if(!row.pending) continue;
+                List<Object> params = new ArrayList<Object>(row.values.length);
+                for(Object value : row.values) params.add(value);
+                if(!journal.append(buildQuery(row, 1), params)) {
+                    Message.debug(Level.WARNING, "Journaled " + count + " rows before the journal failed");
+                    return;
+                }
+                row.written();
+                count++;
+            }
+        }
+        journal.sync();
+        Message.debug("Journaled " + count + " rows while the database is offline");
+    }
+    
+    /**
+     * Writes a chunk of rows with a single multi-row INSERT statement, and commits it.<br />
+     * The chunk is recorded in the query metrics as one insert. Like single statements, a lost connection is reported
+     * to the circuit breaker; a successful borrow has already been reported by {@link Database#borrowConnection()}.
+     * @param chunk Rows to write
+     * @return <b>true</b> if the rows were processed, <b>false</b> if the connection was lost
+     */
+    private boolean writeChunk(List<Row> chunk) {
+        Connection connection;
+        try { connection = Database.borrowConnection(); }
+        catch (DatabaseConnectionException e) {
+            Message.log(Level.SEVERE, "Failed to write a batch: " + e.getMessage());
+            return false;
+        }
+        
+        long start = System.nanoTime();
+        int before = written;
+        boolean result = false;
+        try {
+            result = insertChunk(connection, chunk);
+            return result;
+        } finally {
+            Database.releaseConnection(connection);
+            QueryMetrics.record(chunk.get(0).table, Operation.Insert, System.nanoTime() - start, written - before, !result);
+            if(!result) Database.reportFailure();
+        }
+    }
+    
+    /**
+     * Runs the multi-row INSERT statement for the chunk on the connection, falling back to one row at a time
+     * if the database rejects the statement
+     * @param connection Borrowed connection
+     * @param chunk Rows to write
+     * @return <b>true</b> if the rows were processed, <b>false</b> if the connection was lost
+     */
+    private boolean insertChunk(Connection connection, List<Row> chunk) {
+        try {
+            try {
+                String sql = buildQuery(chunk.get(0), chunk.size());
+                PreparedStatement statement = Database.getPool().prepare(connection, sql);
+                List<Object> params = new ArrayList<Object>(chunk.size() * chunk.get(0).columns.length);
+                for(Row row : chunk) {
+                    for(Object value : row.values) params.add(value);
+                }
+                Database.bind(statement, params);
+                long start = System.nanoTime();
+                statement.executeUpdate();
+                Database.checkSlow(sql, params, start);
+                connection.commit();
+                batches++;
+                for(Row row : chunk) row.written();
+                written += chunk.size();
+                return true;
+            } catch (SQLException e) {
+                try { connection.rollback(); }
+                catch (SQLException ex) { }
+                if(!isValid(connection)) {
+                    Database.getPool().invalidate(connection);
+                    Message.log(Level.SEVERE, "Lost the database connection while writing a batch. Data is being stored locally.");
+                    return false;
+                }
+                Message.debug(Level.WARNING, "Batch rejected, writing rows individually: " + e.getMessage());
+            }
+            
+            List<Row> accepted = new ArrayList<Row>();
+            PreparedStatement statement = Database.getPool().prepare(connection, buildQuery(chunk.get(0), 1));
+            for(Row row : chunk) {
+                try {
+                    List<Object> params = new ArrayList<Object>(row.values.length);
+                    for(Object value : row.values) params.add(value);
+                    statement.clearParameters();
+                    Database.bind(statement, params);
+                    statement.executeUpdate();
+                    accepted.add(row);
+                } catch (SQLException e) {
+                    if(!isValid(connection)) {
+                        Database.getPool().invalidate(connection);
+                        return false;
+                    }
+                    Message.log(Level.WARNING, "Discarding a row that was rejected by the database (" + row.table + "): " + e.getMessage());
+                    row.written();
+                    rejected++;
+                }
+            }
+            connection.commit();
+            batches++;
+            for(Row row : accepted) row.written();
+            written += accepted.size();
+            return true;
+        } catch (SQLException e) {
+            Database.getPool().invalidate(connection);
+            Message.log(Level.SEVERE, "Failed to write a batch: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Builds a multi-row INSERT statement for the specified row shape
+     * @param row Row to take the table and columns from
+     * @param count Number of rows in the statement
+     * @return SQL query
+     */
+    private static String buildQuery(Row row, int count) {
+        StringBuilder placeholders = new StringBuilder("(");
+        StringBuilder sql = new StringBuilder("INSERT INTO `").append(LocalConfiguration.DBPrefix.toString()).append(row.table).append("` (");
+        for(int i = 0; i < row.columns.length; i++) {
+            if(i > 0) {
+                sql.append(", ");
+                placeholders.append(", ");
+            }
+            sql.append('`').append(row.columns[i]).append('`');
+            placeholders.append('?');
+        }
+        placeholders.append(')');
+        sql.append(") VALUES ");
+        for(int i = 0; i < count; i++) {
+            if(i > 0) sql.append(", ");
+            sql.append(placeholders);
+        }
+        return sql.toString();
+    }
+    
+    /**
+     * Checks if the connection is still alive
+     * @param connection Connection to check
+     * @return <b>true</b> if the connection is valid, <b>false</b> otherwise
+     */
+    private static boolean isValid(Connection connection) {
+        try { return connection.isValid(10); }
+        catch (Throwable t) { return false; }
+    }
+    
+    /**
+     * Represents a single queued row
+     * @author bitWolfy
+     *
+     */
+    private static class Row {
+        
+        private final String table;
+        private final String[] columns;
+        private final Object[] values;
+        private final DetailedData entry;
+        private final Collection<? extends DetailedData> owner;
+        private boolean pending;
+        
+        /**
+         * <b>Default constructor</b><br />
+         * Creates a new queued row
+         * @param table Table name
+         * @param columns Column names
+         * @param values Column values
+         * @param entry Entry the row was built from
+         * @param owner Collection that holds the entry
+         */
+        public Row(String table, String[] columns, Object[] values, DetailedData entry, Collection<? extends DetailedData> owner) {
+            this.table = table;
+            this.columns = columns;
+            this.values = values;
+            this.entry = entry;
+            this.owner = owner;
+            this.pending = true;
+        }
+        
+        /**
+         * Removes the entry from its owner once the row has been written
+         */
+        public void written() {
+            pending = false;
+            if(owner != null) owner.remove(entry);
+        }
+    
+    }
+
+}
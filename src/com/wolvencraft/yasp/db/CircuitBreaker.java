@@ -0,0 +1,150 @@
+/*
+ * CircuitBreaker.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.db;
+
+import java.util.logging.Level;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import com.wolvencraft.yasp.util.Message;
+
+/**
+ * Keeps track of database failures, and stops the plugin from contacting a database that is known to be down.<br />
+ * The breaker opens after a number of consecutive failures. While it is open, all attempts fail immediately.
+ * Once the backoff period runs out, the breaker lets a single probe through; if the probe succeeds, the breaker
+ * closes, otherwise it opens again with twice the backoff.
+ * @author bitWolfy
+ *
+ */
+public class CircuitBreaker {
+    
+    private final int threshold;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    
+    @Getter(AccessLevel.PUBLIC) private volatile State state;
+    @Getter(AccessLevel.PUBLIC) private volatile int failures;
+    @Getter(AccessLevel.PUBLIC) private volatile long backoff;
+    @Getter(AccessLevel.PUBLIC) private volatile long trips;
+    private long retryAt;
+    
+    /**
+     * <b>Default constructor</b><br />
+     * Creates a new closed circuit breaker
+     * @param threshold Number of consecutive failures that open the breaker
+     * @param initialBackoff Time, in milliseconds, the breaker stays open after it first opens
+     * @param maxBackoff Maximum time, in milliseconds, the breaker stays open
+     */
+    public CircuitBreaker(int threshold, long initialBackoff, long maxBackoff) {
+        this.threshold = Math.max(1, threshold);
+        this.initialBackoff = Math.max(1L, initialBackoff);
+        this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+        
+        this.state = State.Closed;
+        this.failures = 0;
+        this.backoff = this.initialBackoff;
+        this.trips = 0;
+        this.retryAt = 0;
+    }
+    
+    /**
+     * Checks if an attempt to contact the database may proceed.<br />
+     * If the backoff period has run out, the breaker switches to half-open and the caller becomes the probe.
+     * The outcome of the attempt must be reported with {@link #success()} or {@link #failure()}.
+     * @return <b>true</b> if the attempt may proceed, <b>false</b> otherwise
+     */
+    public synchronized boolean allow() {
+        switch(state) {
+            case Closed: return true;
+            case Open: {
+                if(System.currentTimeMillis() < retryAt) return false;
+                state = State.HalfOpen;
+                return true;
+            }
+            default: return false;
+        }
+    }
+    
+    /**
+     * Checks if the breaker is rejecting attempts.<br />
+     * Unlike {@link #allow()}, this method never changes the state of the breaker.
+     * @return <b>true</b> if the breaker is open and the backoff has not run out, or a probe is in progress
+     */
+    public synchronized boolean isOpen() {
+        if(state == State.Closed) return false;
+        if(state == State.HalfOpen) return true;
+        return System.currentTimeMillis() < retryAt;
+    }
+    
+    /**
+     * Reports a successful attempt, closing the breaker
+     */
+    public synchronized void success() {
+        if(state != State.Closed) Message.log("Database is reachable again, resuming normal operation");
+        state = State.Closed;
+        failures = 0;
+        backoff = initialBackoff;
+    }
+    
+    /**
+     * Reports a failed attempt.<br />
+     * Opens the breaker if the failure threshold is reached, or if the failed attempt was a probe.
+     */
+    public synchronized void failure() {
+        failures++;
+        if(state == State.Closed) {
+            if(failures < threshold) return;
+            backoff = initialBackoff;
+        } else {
+            backoff = Math.min(backoff * 2, maxBackoff);
+        }
+        state = State.Open;
+        retryAt = System.currentTimeMillis() + backoff;
+        trips++;
+        Message.log(Level.WARNING, "Database is unreachable, next attempt in " + (backoff / 1000L) + " seconds");
+    }
+    
+    /**
+     * Returns the time until the breaker lets the next probe through
+     * @return Time, in milliseconds, or <b>0</b> if the breaker is not open
+     */
+    public synchronized long getRetryDelay() {
+        if(state != State.Open) return 0;
+        return Math.max(0, retryAt - System.currentTimeMillis());
+    }
+    
+    /**
+     * Represents the state of the circuit breaker
+     * @author bitWolfy
+     *
+     */
+    public enum State {
+        
+        /** The database is reachable */
+        Closed,
+        /** The database is down, all attempts are rejected */
+        Open,
+        /** A single probe is checking if the database is back */
+        HalfOpen;
+    }
+
+}
@@ -0,0 +1,648 @@
+/*
+ * ConnectionPool.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import com.wolvencraft.yasp.settings.LocalConfiguration;
+import com.wolvencraft.yasp.util.Message;
+
+/**
+ * A simple JDBC connection pool.<br />
+ * Connections are validated when borrowed, evicted after staying idle for too long,
+ * and reported if they are held by a single borrower for longer than the leak threshold.<br />
+ * Each connection keeps its own cache of prepared statements, keyed by the SQL they were prepared from.<br />
+ * The pool accepts an ordered list of endpoints. New connections are opened to the endpoint that worked last;
+ * if it cannot be reached, the remaining endpoints are tried in order.
+ * @author bitWolfy
+ *
+ */
+public class ConnectionPool {
+    
+    /**
+     * Connections that were used more recently than this are not re-validated on borrow
+     */
+    private static final long VALIDATION_BYPASS = 500L;
+    
+    private final List<String> urls;
+    private final Properties info;
+    private volatile int endpoint;
+    
+    @Getter(AccessLevel.PUBLIC) private final int minSize;
+    @Getter(AccessLevel.PUBLIC) private final int maxSize;
+    private final long idleTimeout;
+    private final long leakThreshold;
+    private final long borrowTimeout;
+    private final int statementCacheSize;
+    @Getter(AccessLevel.PUBLIC) private final int queryTimeout;
+    
+    private final LinkedBlockingDeque<PooledConnection> idle;
+    private final Map<Connection, PooledConnection> active;
+    private final Semaphore permits;
+    private final ScheduledExecutorService maintenance;
+    
+    private volatile boolean closed;
+    
+    private final AtomicLong borrowCount;
+    private final AtomicLong waitTime;
+    private final AtomicLong maxWaitTime;
+    private final AtomicLong createdCount;
+    private final AtomicLong evictedCount;
+    private final AtomicLong leakCount;
+    private final AtomicLong timeoutCount;
+    private final AtomicLong statementHits;
+    private final AtomicLong statementMisses;
+    private final AtomicLong failoverCount;
+    
+    /**
+     * <b>Default constructor</b><br />
+     * Creates a new connection pool and opens the minimum number of connections
+     * @param name Pool name, used to name the maintenance thread
+     * @param urls JDBC connection strings, in the order of preference
+     * @param user Database user
+     * @param pass Database password
+     * @param minSize Number of connections to keep open at all times
+     * @param maxSize Maximum number of connections that can be open at once
+     * @param idleTimeout Time, in milliseconds, after which an idle connection above the minimum is closed, or <b>0</b> to keep idle connections open
+     * @param leakThreshold Time, in milliseconds, after which a borrowed connection is reported as leaked, or <b>0</b> to disable leak detection
+     * @param borrowTimeout Time, in milliseconds, to wait for a free connection
+     * @param statementCacheSize Number of prepared statements to keep open per connection
+     * @param connectTimeout Time, in milliseconds, to wait for a new connection to be established, or <b>0</b> to use the driver default
+     * @param queryTimeout Time, in seconds, a single statement is allowed to run, or <b>0</b> for no limit
+     * @throws SQLException Thrown if the initial connections could not be opened
+     */
+    public ConnectionPool(final String name, List<String> urls, String user, String pass, int minSize, int maxSize, long idleTimeout, long leakThreshold, long borrowTimeout, int statementCacheSize, int connectTimeout, int queryTimeout) throws SQLException {
+        if(urls.isEmpty()) throw new SQLException("No database endpoints configured");
+        this.urls = new ArrayList<String>(urls);
+        this.endpoint = 0;
+        
+        info = new Properties();
+        info.setProperty("user", user);
+        info.setProperty("password", pass);
+        if(connectTimeout > 0) info.setProperty("connectTimeout", String.valueOf(connectTimeout));
+        
+        if(maxSize < 1) maxSize = 1;
+        if(minSize < 0) minSize = 0;
+        if(minSize > maxSize) minSize = maxSize;
+        
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.leakThreshold = leakThreshold;
+        this.borrowTimeout = borrowTimeout;
+        this.statementCacheSize = Math.max(1, statementCacheSize);
+        this.queryTimeout = Math.max(0, queryTimeout);
+        
+        idle = new LinkedBlockingDeque<PooledConnection>();
+        active = new ConcurrentHashMap<Connection, PooledConnection>();
+        permits = new Semaphore(maxSize, true);
+        closed = false;
+        
+        borrowCount = new AtomicLong(0);
+        waitTime = new AtomicLong(0);
+        maxWaitTime = new AtomicLong(0);
+        createdCount = new AtomicLong(0);
+        evictedCount = new AtomicLong(0);
+        leakCount = new AtomicLong(0);
+        timeoutCount = new AtomicLong(0);
+        statementHits = new AtomicLong(0);
+        statementMisses = new AtomicLong(0);
+        failoverCount = new AtomicLong(0);
+        
+        for(int i = 0; i < minSize; i++) idle.offer(open());
+        
+        maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Statistics-" + name + "-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            }
+        
+        });
+        
+        long period = Long.MAX_VALUE;
+        if(idleTimeout > 0) period = Math.min(period, idleTimeout);
+        if(leakThreshold > 0) period = Math.min(period, leakThreshold);
+        if(period == Long.MAX_VALUE) return;
+        period = Math.max(1000L, period / 2);
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            
+            @Override
+            public void run() {
+                try {
+                    evictIdle();
+                    detectLeaks();
+                } catch (Throwable t) { Message.log(Level.WARNING, "Error while maintaining the connection pool: " + t.getMessage()); }
+            }
+        
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Borrows a connection from the pool.<br />
+     * The connection must be returned with {@link #release(Connection)} once it is no longer needed.
+     * @return Database connection
+     * @throws SQLException Thrown if no valid connection could be obtained in time
+     */
+    public Connection borrow() throws SQLException {
+        if(closed) throw new SQLException("Connection pool is closed");
+        
+        long start = System.currentTimeMillis();
+        try {
+            if(!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLException("Timed out waiting for a database connection (" + active.size() + " in use)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection");
+        }
+        
+        try {
+            PooledConnection pooled = null;
+            while((pooled = idle.pollFirst()) != null) {
+                if(validate(pooled)) break;
+                discard(pooled);
+                pooled = null;
+            }
+            if(pooled == null) pooled = open();
+            
+            pooled.borrowed(Thread.currentThread());
+            active.put(pooled.getConnection(), pooled);
+            
+            long waited = System.currentTimeMillis() - start;
+            borrowCount.incrementAndGet();
+            waitTime.addAndGet(waited);
+            long max;
+            while(waited > (max = maxWaitTime.get()) && !maxWaitTime.compareAndSet(max, waited));
+            
+            return pooled.getConnection();
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+    
+    /**
+     * Returns a connection to the pool.<br />
+     * Uncommitted changes are rolled back; broken connections are closed instead of being reused.
+     * @param connection Connection to return
+     */
+    public void release(Connection connection) {
+        if(connection == null) return;
+        PooledConnection pooled = active.remove(connection);
+        if(pooled == null) return;
+        
+        try {
+            if(pooled.isBroken() || closed || connection.isClosed()) {
+                discard(pooled);
+            } else {
+                try { if(!connection.getAutoCommit()) connection.rollback(); }
+                catch (SQLException e) { pooled.setBroken(); }
+                
+                if(pooled.isBroken()) discard(pooled);
+                else {
+                    pooled.released();
+                    idle.offerFirst(pooled);
+                }
+            }
+        } catch (SQLException e) {
+            discard(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+    
+    /**
+     * Returns a prepared statement for the specified SQL query.<br />
+     * Statements are cached per connection and must not be closed by the caller.
+     * @param connection Borrowed connection
+     * @param sql SQL query with parameter placeholders
+     * @return Prepared statement
+     * @throws SQLException Thrown if the statement could not be prepared
+     */
+    public PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        PooledConnection pooled = active.get(connection);
+        if(pooled == null) throw new SQLException("Connection is not borrowed from this pool");
+        
+        Map<String, PreparedStatement> cache = pooled.getStatements();
+        PreparedStatement statement = cache.get(sql);
+        if(statement != null) {
+            statementHits.incrementAndGet();
+            statement.clearParameters();
+            return statement;
+        }
+        
+        statementMisses.incrementAndGet();
+        statement = connection.prepareStatement(sql);
+        if(queryTimeout > 0) statement.setQueryTimeout(queryTimeout);
+        cache.put(sql, statement);
+        return statement;
+    }
+    
+    /**
+     * Marks the connection as broken. It will be closed instead of being returned to the pool.
+     * @param connection Connection to invalidate
+     */
+    public void invalidate(Connection connection) {
+        if(connection == null) return;
+        PooledConnection pooled = active.get(connection);
+        if(pooled != null) pooled.setBroken();
+    }
+    
+    /**
+     * Validates all idle connections and removes the ones that are no longer usable.<br />
+     * If none of them are left, a new connection is opened, starting with the primary endpoint.
+     * @return <b>true</b> if the pool is able to provide a valid connection, <b>false</b> otherwise
+     */
+    public boolean test() {
+        List<PooledConnection> checked = new ArrayList<PooledConnection>();
+        PooledConnection pooled;
+        while((pooled = idle.pollFirst()) != null) {
+            if(isValid(pooled.getConnection())) checked.add(pooled);
+            else discard(pooled);
+        }
+        for(PooledConnection entry : checked) idle.offerLast(entry);
+        if(!checked.isEmpty()) return true;
+        
+        endpoint = 0;
+        try { release(borrow()); }
+        catch (SQLException e) { return false; }
+        return true;
+    }
+    
+    /**
+     * Closes all connections and shuts the pool down
+     */
+    public void close() {
+        closed = true;
+        maintenance.shutdownNow();
+        PooledConnection pooled;
+        while((pooled = idle.pollFirst()) != null) discard(pooled);
+        for(PooledConnection entry : active.values()) discard(entry);
+        active.clear();
+    }
+    
+    /**
+     * Checks if the pool has been shut down
+     * @return <b>true</b> if the pool is closed, <b>false</b> otherwise
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+    
+    /**
+     * Returns the number of connections that are currently borrowed
+     * @return Number of active connections
+     */
+    public int getActive() {
+        return active.size();
+    }
+    
+    /**
+     * Returns the number of open connections that are waiting to be borrowed
+     * @return Number of idle connections
+     */
+    public int getIdle() {
+        return idle.size();
+    }
+    
+    /**
+     * Returns the number of threads currently waiting for a connection
+     * @return Number of waiting threads
+     */
+    public int getWaiting() {
+        return permits.getQueueLength();
+    }
+    
+    /**
+     * Returns the total number of successful borrows
+     * @return Borrow count
+     */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+    
+    /**
+     * Returns the average time spent waiting for a connection
+     * @return Average wait time, in milliseconds
+     */
+    public double getAverageWaitTime() {
+        long count = borrowCount.get();
+        if(count == 0) return 0;
+        return (double) waitTime.get() / count;
+    }
+    
+    /**
+     * Returns the longest time spent waiting for a connection
+     * @return Maximum wait time, in milliseconds
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+    
+    /**
+     * Returns the total number of connections opened by the pool
+     * @return Number of connections created
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+    
+    /**
+     * Returns the total number of connections closed by the pool
+     * @return Number of connections evicted
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+    
+    /**
+     * Returns the number of borrows that exceeded the leak threshold
+     * @return Number of detected leaks
+     */
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+    
+    /**
+     * Returns the number of borrows that timed out
+     * @return Number of timeouts
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+    
+    /**
+     * Returns the number of prepared statements reused from the statement cache
+     * @return Number of cache hits
+     */
+    public long getStatementHits() {
+        return statementHits.get();
+    }
+    
+    /**
+     * Returns the number of statements that had to be prepared
+     * @return Number of cache misses
+     */
+    public long getStatementMisses() {
+        return statementMisses.get();
+    }
+    
+    /**
+     * Returns the number of times the pool switched to a different endpoint
+     * @return Number of failovers
+     */
+    public long getFailoverCount() {
+        return failoverCount.get();
+    }
+    
+    /**
+     * Returns the position of the endpoint new connections are opened to
+     * @return Endpoint index, starting with <b>0</b> for the primary endpoint
+     */
+    public int getEndpoint() {
+        return endpoint;
+    }
+    
+    /**
+     * Returns the number of configured endpoints
+     * @return Number of endpoints
+     */
+    public int getEndpointCount() {
+        return urls.size();
+    }
+    
+    /**
+     * Opens a new connection.<br />
+     * Starts with the endpoint that worked last, and moves on to the next one if it cannot be reached.
+     * @return Pooled connection
+     * @throws SQLException Thrown if none of the endpoints could be reached
+     */
+    private PooledConnection open() throws SQLException {
+        int start = endpoint;
+        SQLException failure = null;
+        Connection connection = null;
+        for(int i = 0; i < urls.size() && connection == null; i++) {
+            int index = (start + i) % urls.size();
+            try { connection = DriverManager.getConnection(urls.get(index), info); }
+            catch (SQLException e) {
+                failure = e;
+                continue;
+            }
+            if(index != endpoint) {
+                endpoint = index;
+                failoverCount.incrementAndGet();
+                Message.log(Level.WARNING, "Switched to database endpoint #" + (index + 1) + " of " + urls.size());
+            }
+        }
+        if(connection == null) throw failure;
+        
+        try { if(connection.getAutoCommit()) connection.setAutoCommit(false); }
+        catch (SQLException e) {
+            try { connection.close(); }
+            catch (SQLException ex) { }
+            throw e;
+        }
+        createdCount.incrementAndGet();
+        return new PooledConnection(connection, statementCacheSize);
+    }
+    
+    /**
+     * Checks if the pooled connection can be handed out
+     * @param pooled Connection to validate
+     * @return <b>true</b> if the connection is valid, <b>false</b> otherwise
+     */
+    private boolean validate(PooledConnection pooled) {
+        if(System.currentTimeMillis() - pooled.getLastUsed() < VALIDATION_BYPASS) return true;
+        return isValid(pooled.getConnection());
+    }
+    
+    /**
+     * Checks if the connection is still alive
+     * @param connection Connection to check
+     * @return <b>true</b> if the connection is valid, <b>false</b> otherwise
+     */
+    private boolean isValid(Connection connection) {
+        try { return connection.isValid(5); }
+        catch (Throwable t) { return false; }
+    }
+    
+    /**
+     * Closes the pooled connection
+     * @param pooled Connection to close
+     */
+    private void discard(PooledConnection pooled) {
+        evictedCount.incrementAndGet();
+        pooled.getStatements().clear();
+        try { pooled.getConnection().close(); }
+        catch (SQLException e) { }
+    }
+    
+    /**
+     * Closes connections that stayed idle for longer than the idle timeout, keeping the minimum pool size
+     */
+    private void evictIdle() {
+        if(idleTimeout <= 0) return;
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while(it.hasNext() && idle.size() + active.size() > minSize) {
+            PooledConnection pooled = it.next();
+            if(now - pooled.getLastUsed() < idleTimeout) continue;
+            if(idle.remove(pooled)) discard(pooled);
+        }
+    }
+    
+    /**
+     * Reports connections that have been borrowed for longer than the leak threshold
+     */
+    private void detectLeaks() {
+        if(leakThreshold <= 0) return;
+        long now = System.currentTimeMillis();
+        for(PooledConnection pooled : active.values()) {
+            if(pooled.isReported() || now - pooled.getBorrowedAt() < leakThreshold) continue;
+            pooled.setReported();
+            leakCount.incrementAndGet();
+            Message.log(Level.WARNING, "Possible connection leak: connection held by " + pooled.getBorrower() + " for " + ((now - pooled.getBorrowedAt()) / 1000) + " seconds");
+            if(pooled.getTrace() != null) Message.debug(Level.WARNING, formatTrace(pooled.getTrace()));
+        }
+    }
+    
+    /**
+     * Formats the stack trace of the borrowing thread
+     * @param trace Stack trace
+     * @return Formatted trace
+     */
+    private static String formatTrace(StackTraceElement[] trace) {
+        StringBuilder builder = new StringBuilder("Connection borrowed at:");
+        for(StackTraceElement element : trace) builder.append("\n    at ").append(element);
+        return builder.toString();
+    }
+    
+    /**
+     * Represents a single connection held by the pool
+     * @author bitWolfy
+     *
+     */
+    @Getter(AccessLevel.PUBLIC)
+    private static class PooledConnection {
+        
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+        private volatile long lastUsed;
+        private volatile long borrowedAt;
+        private volatile String borrower;
+        private volatile StackTraceElement[] trace;
+        private volatile boolean broken;
+        private volatile boolean reported;
+        
+        /**
+         * <b>Default constructor</b><br />
+         * Wraps the specified connection
+         * @param connection Connection to wrap
+         * @param cacheSize Maximum number of cached prepared statements
+         */
+        public PooledConnection(Connection connection, final int cacheSize) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                
+                private static final long serialVersionUID = 1L;
+                
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if(size() <= cacheSize) return false;
+                    try { eldest.getValue().close(); }
+                    catch (SQLException e) { }
+                    return true;
+                }
+            
+            };
+            this.lastUsed = System.currentTimeMillis();
+            this.borrowedAt = 0;
+            this.borrower = null;
+            this.trace = null;
+            this.broken = false;
+            this.reported = false;
+        }
+        
+        /**
+         * Marks the connection as borrowed by the specified thread
+         * @param thread Borrowing thread
+         */
+        public void borrowed(Thread thread) {
+            borrowedAt = System.currentTimeMillis();
+            borrower = thread.getName();
+            trace = LocalConfiguration.Debug.toBoolean() ? thread.getStackTrace() : null;
+            reported = false;
+        }
+        
+        /**
+         * Marks the connection as returned to the pool
+         */
+        public void released() {
+            lastUsed = System.currentTimeMillis();
+            borrower = null;
+            trace = null;
+        }
+        
+        /**
+         * Marks the connection as broken
+         */
+        public void setBroken() {
+            broken = true;
+        }
+        
+        /**
+         * Marks the connection as reported for a possible leak
+         */
+        public void setReported() {
+            reported = true;
+        }
+    
+    }
+
+}
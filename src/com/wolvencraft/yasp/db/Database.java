@@ -23,16 +23,21 @@ package com.wolvencraft.yasp.db;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
@@ -57,7 +62,22 @@ import com.wolvencraft.yasp.util.Message;
  */
 public class Database {
     
-    private static Connection connection = null;
+    private static ConnectionPool pool = null;
+    private static CircuitBreaker breaker = null;
+    private static Journal journal = null;
+    private static SlowQueryLog slowLog = null;
+    private static Replica replica = null;
+    private static volatile boolean connected = false;
+    
+    /**
+     * Outcome of the last statement run by the thread: number of rows, and <b>1</b> if the statement failed
+     */
+    private static final ThreadLocal<int[]> outcome = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[2];
+        }
+    };
     
     /**
      * Default constructor. Connects to the remote database, performs patches if necessary, and holds to the DB info.<br />
@@ -68,19 +88,94 @@ public class Database {
         try { Class.forName("com.mysql.jdbc.Driver"); }
         catch (ClassNotFoundException ex) { throw new DatabaseConnectionException("MySQL driver was not found!"); }
         
+        breaker = new CircuitBreaker(
+            LocalConfiguration.DBBreakerThreshold.toInteger(),
+            LocalConfiguration.DBBreakerBackoff.toInteger() * 1000L,
+            LocalConfiguration.DBBreakerMaxBackoff.toInteger() * 1000L
+        );
+        
+        List<String> urls = new ArrayList<String>();
+        urls.add(LocalConfiguration.DBConnect.toString());
+        for(String url : LocalConfiguration.DBFailover.toStringList()) {
+            if(url.indexOf('?') == -1) url += "?useServerPrepStmts=true&useCursorFetch=true&rewriteBatchedStatements=true";
+            urls.add(url);
+        }
+        
         try {
-            connection = DriverManager.getConnection(
-                LocalConfiguration.DBConnect.toString(),
+            pool = new ConnectionPool(
+                "pool",
+                urls,
                 LocalConfiguration.DBUser.toString(),
-                LocalConfiguration.DBPass.toString()
+                LocalConfiguration.DBPass.toString(),
+                LocalConfiguration.DBPoolMinSize.toInteger(),
+                LocalConfiguration.DBPoolMaxSize.toInteger(),
+                LocalConfiguration.DBPoolIdle.toInteger() * 1000L,
+                LocalConfiguration.DBPoolLeak.toInteger() * 1000L,
+                LocalConfiguration.DBPoolWait.toInteger() * 1000L,
+                LocalConfiguration.DBPoolStatements.toInteger(),
+                LocalConfiguration.DBConnectTimeout.toInteger() * 1000,
+                LocalConfiguration.DBQueryTimeout.toInteger()
             );
         } catch (SQLException e) { throw new DatabaseConnectionException(e); }
+        connected = true;
+        
+        String replicaUrl = LocalConfiguration.DBReplicaUrl.toString();
+        if(replicaUrl != null && !replicaUrl.isEmpty()) {
+            if(replicaUrl.indexOf('?') == -1) replicaUrl += "?useServerPrepStmts=true&useCursorFetch=true&rewriteBatchedStatements=true";
+            String replicaUser = LocalConfiguration.DBReplicaUser.toString();
+            String replicaPass = LocalConfiguration.DBReplicaPass.toString();
+            if(replicaUser == null || replicaUser.isEmpty()) {
+                replicaUser = LocalConfiguration.DBUser.toString();
+                replicaPass = LocalConfiguration.DBPass.toString();
+            }
+            try {
+                replica = new Replica(
+                    new ConnectionPool(
+                        "replica",
+                        Collections.singletonList(replicaUrl),
+                        replicaUser,
+                        replicaPass,
+                        0,
+                        LocalConfiguration.DBPoolMaxSize.toInteger(),
+                        LocalConfiguration.DBPoolIdle.toInteger() * 1000L,
+                        LocalConfiguration.DBPoolLeak.toInteger() * 1000L,
+                        LocalConfiguration.DBPoolWait.toInteger() * 1000L,
+                        LocalConfiguration.DBPoolStatements.toInteger(),
+                        LocalConfiguration.DBConnectTimeout.toInteger() * 1000,
+                        LocalConfiguration.DBQueryTimeout.toInteger()
+                    ),
+                    LocalConfiguration.DBReplicaMaxLag.toInteger(),
+                    LocalConfiguration.DBReplicaCheckInterval.toInteger() * 1000L
+                );
+            } catch (SQLException e) {
+                replica = null;
+                Message.log(Level.WARNING, "Could not set up the database replica, all queries will be sent to the primary database");
+            }
+        }
         
-        try { if (connection.getAutoCommit()) connection.setAutoCommit(false); }
-        catch (Throwable t) { throw new RuntimeSQLException("Could not set AutoCommit to false. Cause: " + t, t); }
+        slowLog = new SlowQueryLog(
+            new File(Statistics.getInstance().getDataFolder(), "slow-queries.log"),
+            LocalConfiguration.DBSlowThreshold.toInteger(),
+            LocalConfiguration.DBSlowInterval.toInteger() * 1000L,
+            LocalConfiguration.DBSlowMaxSize.toInteger() * 1024L * 1024L,
+            LocalConfiguration.DBSlowFiles.toInteger(),
+            LocalConfiguration.DBSlowExplain.toBoolean()
+        );
         
         if(!patchDatabase(false)) Message.log("Target database is up to date");
         
+        try {
+            journal = new Journal(
+                new File(Statistics.getInstance().getDataFolder(), "journal"),
+                Journal.FsyncPolicy.get(LocalConfiguration.DBJournalFsync.toString()),
+                LocalConfiguration.DBJournalSegment.toInteger() * 1024L * 1024L
+            );
+            journal.replay();
+        } catch (IOException e) {
+            journal = null;
+            Message.log(Level.SEVERE, "Could not open the local journal. Data will not be stored locally while the database is offline.");
+        }
+        
         Statistics.setPaused(false);
         
         RemoteConfiguration.clearCache();
@@ -111,14 +206,19 @@ public class Database {
         Message.debug("Current version: " + databaseVersion + ", latest version: " + latestPatchVersion);
         databaseVersion++;
         
-        ScriptRunner scriptRunner = new ScriptRunner(connection);
-        Message.log("+-------] Database Patcher [-------+");
-        for(; databaseVersion <= latestPatchVersion; databaseVersion++) {
-            Message.log("|       Applying patch " + databaseVersion + " / " + latestPatchVersion + "       |");
-            executePatch(scriptRunner, databaseVersion + "." + PatchManager.PATCH_KEY);
-            RemoteConfiguration.DatabaseVersion.update(databaseVersion);
-        }
-        Message.log("+----------------------------------+");
+        Connection connection = borrowConnection();
+        try {
+            ScriptRunner scriptRunner = new ScriptRunner(connection);
+            Message.log("+-------] Database Patcher [-------+");
+            for(; databaseVersion <= latestPatchVersion; databaseVersion++) {
+                Message.log("|       Applying patch " + databaseVersion + " / " + latestPatchVersion + "       |");
+                executePatch(scriptRunner, databaseVersion + "." + PatchManager.PATCH_KEY);
+                Message.log("|" + Message.centerString("Done in " + scriptRunner.getElapsed() + " ms", 34) + "|");
+                RemoteConfiguration.DatabaseVersion.update(databaseVersion);
+                KeyValueWriter.flush();
+            }
+            Message.log("+----------------------------------+");
+        } finally { releaseConnection(connection); }
         return true;
     }
     
@@ -147,15 +247,20 @@ public class Database {
         Message.debug("Current version: " + moduleVersion + ", latest version: " + latestPatchVersion);
         moduleVersion++;
         
-        ScriptRunner scriptRunner = new ScriptRunner(connection);
-        Message.log("+-------] Database Patcher [-------+");
-        Message.log("|" + Message.centerString("Patching " + module.name(), 34) + "|");
-        for(; moduleVersion <= latestPatchVersion; moduleVersion++) {
-            Message.log("|       Applying patch " + moduleVersion + " / " + latestPatchVersion + "       |");
-            executePatch(scriptRunner, moduleVersion + ".yasp");
-            module.setVersion(moduleVersion);
-        }
-        Message.log("+----------------------------------+");
+        Connection connection = borrowConnection();
+        try {
+            ScriptRunner scriptRunner = new ScriptRunner(connection);
+            Message.log("+-------] Database Patcher [-------+");
+            Message.log("|" + Message.centerString("Patching " + module.name(), 34) + "|");
+            for(; moduleVersion <= latestPatchVersion; moduleVersion++) {
+                Message.log("|       Applying patch " + moduleVersion + " / " + latestPatchVersion + "       |");
+                executePatch(scriptRunner, moduleVersion + "." + module.KEY);
+                Message.log("|" + Message.centerString("Done in " + scriptRunner.getElapsed() + " ms", 34) + "|");
+                module.setVersion(moduleVersion);
+                KeyValueWriter.flush();
+            }
+            Message.log("+----------------------------------+");
+        } finally { releaseConnection(connection); }
         return true;
     }
     
@@ -166,7 +271,9 @@ public class Database {
      * @return <b>true</b> if a patch was applied, <b>false</b> if it was not.
      */
     public static boolean executePatch(String patchId) throws DatabaseConnectionException {
-        return executePatch(new ScriptRunner(connection), patchId);
+        Connection connection = borrowConnection();
+        try { return executePatch(new ScriptRunner(connection), patchId); }
+        finally { releaseConnection(connection); }
     }
     
     /**
@@ -186,7 +293,10 @@ public class Database {
         try { is = new FileInputStream(Statistics.getInstance().getDataFolder() + "/patches/" + patchId + ".sql"); }
         catch (FileNotFoundException e1) { return false; }
         Message.log(Level.FINE, "Executing database patch: " + patchId + ".sql");
-        try {scriptRunner.runScript(new InputStreamReader(is)); }
+        try {
+            scriptRunner.runScript(new InputStreamReader(is));
+            Message.debug("Patch " + patchId + ": " + scriptRunner.getStatements() + " statements sent in " + scriptRunner.getRequests() + " requests, " + scriptRunner.getElapsed() + " ms");
+        }
         catch (RuntimeSQLException e) { throw new DatabaseConnectionException("An error occured while executing database patch: " + patchId + ".sql", e); }
         finally {
             if(!Query.table(SettingsTable.TableName).condition("key", "patched").exists()) {
@@ -198,28 +308,81 @@ public class Database {
     }
     
     /**
-     * Attempts to reconnect to the remote server
-     * @return <b>true</b> if the connection was present, or reconnect is successful. <b>false</b> otherwise.
+     * Attempts to reconnect to the remote server.<br />
+     * Dead connections are evicted from the pool, and a new connection is opened if necessary.
+     * No attempt is made while the circuit breaker is open.
+     * @return <b>true</b> if the pool is able to provide a valid connection. <b>false</b> otherwise.
      */
     public static boolean reconnect() {
+        return reconnect(false);
+    }
+    
+    /**
+     * Attempts to reconnect to the remote server.<br />
+     * Dead connections are evicted from the pool, and a new connection is opened if necessary.
+     * @param force <b>true</b> to attempt to reconnect even if the circuit breaker is open
+     * @return <b>true</b> if the pool is able to provide a valid connection. <b>false</b> otherwise.
+     */
+    public static boolean reconnect(boolean force) {
+        if(pool == null) return false;
+        if(!breaker.allow() && !force) {
+            connected = false;
+            return false;
+        }
+        Message.log(Level.WARNING, "Attempting to re-connect to the database");
+        if(pool.test()) {
+            breaker.success();
+            connected = true;
+            Message.log("Connection re-established. No data is lost.");
+            return true;
+        }
+        breaker.failure();
+        connected = false;
+        Message.log(Level.SEVERE, "Failed to re-connect to the database. Data is being stored locally.");
+        return false;
+    }
+    
+    /**
+     * Checks if the database may be contacted, without claiming the probe of a half-open circuit breaker.<br />
+     * This is only used to fail fast; connections are handed out by {@link #borrowConnection()}, which lets a single probe through.
+     * @return <b>true</b> if the circuit breaker is closed, or is ready to let a probe through, <b>false</b> otherwise
+     */
+    private static boolean isAvailable() {
+        return breaker == null || !breaker.isOpen();
+    }
+    
+    /**
+     * Reports to the circuit breaker that the database could be reached
+     */
+    static void reportSuccess() {
+        if(breaker != null) breaker.success();
+    }
+    
+    /**
+     * Reports to the circuit breaker that the database could not be reached
+     */
+    static void reportFailure() {
+        if(breaker != null) breaker.failure();
+    }
+    
+    /**
+     * Handles a failed database operation.<br />
+     * If the connection that was used is still valid, the query itself was at fault, and it should not be repeated.
+     * Otherwise, the connection is discarded and the pool attempts to re-connect.
+     * @param connection Connection that was used to run the query
+     * @return <b>true</b> if the query should be repeated, <b>false</b> otherwise
+     */
+    private static boolean recover(Connection connection) {
+        if(connection == null) return reconnect();
         try {
             if (connection.isValid(10)) {
                 Message.log("Connection is still present. Malformed query detected.");
                 return false;
             }
-            Message.log(Level.WARNING, "Attempting to re-connect to the database");
-            connection = DriverManager.getConnection(
-                LocalConfiguration.DBConnect.toString(),
-                LocalConfiguration.DBUser.toString(),
-                LocalConfiguration.DBPass.toString()
-            );
-            Message.log("Connection re-established. No data is lost.");
-            return true;
-        } catch (Exception e) {
-            Message.log(Level.SEVERE, "Failed to re-connect to the database. Data is being stored locally.");
-            if (LocalConfiguration.Debug.toBoolean()) e.printStackTrace();
-        }
-        return false;
+        } catch (Throwable t) { }
+        pool.invalidate(connection);
+        reportFailure();
+        return reconnect();
     }
     
     /**
@@ -230,23 +393,72 @@ public class Database {
      * @return <b>true</b> if the sync is successful, <b>false</b> otherwise
      */
     public static boolean executeUpdate(String query) {
+        return executeUpdate(query, null);
+    }
+    
+    /**
+     * Pushes data to the remote database using a cached prepared statement.<br />
+     * This is a raw method and should never be used by itself. Use the <b>QueryUtils</b> wrapper for more options 
+     * and proper error handling. This method is not to be used for regular commits to the database.
+     * @param query SQL query with parameter placeholders
+     * @param params Parameter values, in order, or <b>null</b> to run the query as a plain statement
+     * @return <b>true</b> if the sync is successful, <b>false</b> otherwise
+     */
+    public static boolean executeUpdate(String query, List<Object> params) {
+        setOutcome(0, false);
+        long start = System.nanoTime();
+        try { return executeUpdate(query, params, false); }
+        finally { checkSlow(query, params, start); }
+    }
+    
+    /**
+     * Pushes data to the remote database using a cached prepared statement.<br />
+     * While the circuit breaker is open, parameterized writes are stored in the local journal instead.
+     * If the statement fails because the connection was lost, it is repeated once after reconnecting.
+     * @param query SQL query with parameter placeholders
+     * @param params Parameter values, in order, or <b>null</b> to run the query as a plain statement
+     * @param retried <b>true</b> if the statement is being repeated, <b>false</b> otherwise
+     * @return <b>true</b> if the sync is successful, <b>false</b> otherwise
+     */
+    private static boolean executeUpdate(String query, List<Object> params, boolean retried) {
+        if(params != null && journal != null && Journal.isSpilling()) return journal.append(query, params);
+        boolean journaled = params != null && journal != null && Journal.isCapturing();
+        if(journaled && journal.hasPending()) return journal.append(query, params);
+        if(!isAvailable()) {
+            if(params != null && journal != null) return journal.append(query, params);
+            setOutcome(0, true);
+            return false;
+        }
+        
+        Transaction transaction = Transaction.getCurrent();
+        if(params != null && transaction != null) return transaction.execute(query, params);
+        
         int rowsChanged = 0;
+        boolean retry = false;
+        Connection connection = null;
         Statement statement = null;
         try {
-            statement = connection.createStatement();
-            rowsChanged = statement.executeUpdate(query);
-            statement.close();
+            connection = borrowConnection();
+            if(params == null) {
+                statement = createStatement(connection);
+                rowsChanged = statement.executeUpdate(query);
+            } else {
+                PreparedStatement prepared = pool.prepare(connection, query);
+                bind(prepared, params);
+                rowsChanged = prepared.executeUpdate();
+            }
             connection.commit();
         } catch (Throwable t) {
             ExceptionHandler.handle(t);
-            if(reconnect()) return executeUpdate(query);
-            else return false;
+            setOutcome(0, true);
+            retry = recover(connection);
         } finally {
-            if (statement != null) {
-                try { statement.close(); }
-                catch (SQLException e) { Message.log(Level.SEVERE, "Error closing database connection"); }
-            }
+            closeStatement(statement);
+            releaseConnection(connection);
         }
+        outcome.get()[0] = rowsChanged;
+        if(retry && !retried) return executeUpdate(query, params, true);
+        if(params != null && journal != null && !connected && (journaled || !isAvailable())) return journal.append(query, params);
         return rowsChanged > 0;
     }
     
@@ -258,43 +470,346 @@ public class Database {
      * @return Data from the remote database
      */
     public static List<QueryResult> executeQuery(String query) {
-        List<QueryResult> colData = new ArrayList<QueryResult>();
+        return executeQuery(query, null);
+    }
+    
+    /**
+     * Returns the data from the remote server according to the SQL query, using a cached prepared statement.<br />
+     * This is a raw method and should never be used by itself. Use the <b>QueryUtils</b> wrapper for more options 
+     * and proper error handling. This method is not to be used for regular commits to the database.
+     * @param query SQL query with parameter placeholders
+     * @param params Parameter values, in order, or <b>null</b> to run the query as a plain statement
+     * @return Data from the remote database
+     */
+    public static List<QueryResult> executeQuery(String query, List<Object> params) {
+        return executeQuery(query, params, false);
+    }
+    
+    /**
+     * Returns the data from the remote server according to the SQL query, using a cached prepared statement.<br />
+     * This is a raw method and should never be used by itself. Use the <b>QueryUtils</b> wrapper for more options 
+     * and proper error handling. This method is not to be used for regular commits to the database.
+     * @param query SQL query with parameter placeholders
+     * @param params Parameter values, in order, or <b>null</b> to run the query as a plain statement
+     * @param fromReplica <b>true</b> to run the query on the replica if it is usable, <b>false</b> to always use the primary database
+     * @return Data from the remote database
+     */
+    public static List<QueryResult> executeQuery(String query, List<Object> params, boolean fromReplica) {
+        final List<QueryResult> colData = new ArrayList<QueryResult>();
+        boolean success = stream(query, params, 0, fromReplica, new RowHandler() {
+            
+            private Map<String, Integer> columns;
+            private int[] types;
+            
+            @Override
+            public void columns(String[] columns) {
+                this.columns = new HashMap<String, Integer>(columns.length * 2);
+                for (int x = 0; x < columns.length; ++x) this.columns.put(columns[x], x);
+            }
+            
+            @Override
+            public boolean handle(ResultSet row) throws SQLException {
+                if(types == null) {
+                    ResultSetMetaData meta = row.getMetaData();
+                    types = new int[columns.size()];
+                    for (int x = 0; x < types.length; ++x) types[x] = meta.getColumnType(x + 1);
+                }
+                Object[] values = new Object[types.length];
+                for (int x = 0; x < types.length; ++x) values[x] = read(row, x + 1, types[x]);
+                colData.add(Query.toQueryResult(columns, values));
+                return true;
+            }
+            
+        });
+        if(!success) return new ArrayList<QueryResult>();
+        return colData;
+    }
+    
+    /**
+     * Reads a column value in its native type
+     * @param row Result set positioned on the row
+     * @param column Column index, starting with 1
+     * @param type SQL type of the column
+     * @return Column value, or <b>null</b> if the value is SQL NULL
+     * @throws SQLException Thrown if the value could not be read
+     */
+    private static Object read(ResultSet row, int column, int type) throws SQLException {
+        Object value;
+        switch(type) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                value = row.getBoolean(column);
+                break;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                value = row.getLong(column);
+                break;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                value = row.getDouble(column);
+                break;
+            default:
+                return row.getString(column);
+        }
+        if(row.wasNull()) return null;
+        return value;
+    }
+    
+    /**
+     * Runs the SQL query and passes every row to the handler while the result set is still open.<br />
+     * Rows are fetched from the server in chunks of the configured fetch size, so large scans run in constant memory.
+     * @param query SQL query with parameter placeholders
+     * @param params Parameter values, in order
+     * @param handler Row handler
+     * @return <b>true</b> if the query was completed, <b>false</b> if an error occurred
+     */
+    public static boolean stream(String query, List<Object> params, RowHandler handler) {
+        return stream(query, params, LocalConfiguration.DBFetchSize.toInteger(), handler);
+    }
+    
+    /**
+     * Runs the SQL query and passes every row to the handler while the result set is still open.<br />
+     * The query is retried after a lost connection only if no rows have been handled yet.
+     * @param query SQL query with parameter placeholders
+     * @param params Parameter values, in order, or <b>null</b> to run the query as a plain statement
+     * @param fetchSize Number of rows to fetch from the server at once, or <b>0</b> to fetch the entire result
+     * @param handler Row handler
+     * @return <b>true</b> if the query was completed, <b>false</b> if an error occurred
+     */
+    public static boolean stream(String query, List<Object> params, int fetchSize, RowHandler handler) {
+        return stream(query, params, fetchSize, false, handler);
+    }
+    
+    /**
+     * Runs the SQL query and passes every row to the handler while the result set is still open.<br />
+     * Replica queries are sent to the primary database if the replica is not usable, if a transaction is open on the
+     * current thread, or if the query fails on the replica before any rows were handled.
+     * @param query SQL query with parameter placeholders
+     * @param params Parameter values, in order, or <b>null</b> to run the query as a plain statement
+     * @param fetchSize Number of rows to fetch from the server at once, or <b>0</b> to fetch the entire result
+     * @param fromReplica <b>true</b> to run the query on the replica if it is usable, <b>false</b> to always use the primary database
+     * @param handler Row handler
+     * @return <b>true</b> if the query was completed, <b>false</b> if an error occurred
+     */
+    public static boolean stream(String query, List<Object> params, int fetchSize, boolean fromReplica, RowHandler handler) {
+        setOutcome(0, false);
+        long start = System.nanoTime();
+        try {
+            if(fromReplica && replica != null) {
+                Replica target = replica;
+                if(Transaction.getCurrent() == null && target.isUsable()) {
+                    Replica.Result result = target.stream(query, params, fetchSize, handler);
+                    if(result != Replica.Result.Unavailable) return result == Replica.Result.Completed;
+                } else target.fallback();
+            }
+            return stream(query, params, fetchSize, handler, false);
+        }
+        finally { checkSlow(query, params, start); }
+    }
+    
+    /**
+     * Runs the SQL query and passes every row to the handler while the result set is still open.<br />
+     * Fails immediately while the circuit breaker is open. If the connection is lost before any rows were handled,
+     * the query is repeated once after reconnecting.
+     * @param query SQL query with parameter placeholders
+     * @param params Parameter values, in order, or <b>null</b> to run the query as a plain statement
+     * @param fetchSize Number of rows to fetch from the server at once, or <b>0</b> to fetch the entire result
+     * @param handler Row handler
+     * @param retried <b>true</b> if the query is being repeated, <b>false</b> otherwise
+     * @return <b>true</b> if the query was completed, <b>false</b> if an error occurred
+     */
+    private static boolean stream(String query, List<Object> params, int fetchSize, RowHandler handler, boolean retried) {
+        if(!isAvailable()) {
+            setOutcome(0, true);
+            return false;
+        }
+        
+        boolean failed = false;
+        boolean retry = false;
+        boolean started = false;
+        int rows = 0;
+        Connection connection = null;
         Statement statement = null;
+        PreparedStatement prepared = null;
         ResultSet rs = null;
         try {
-            statement = connection.createStatement();
-            rs = statement.executeQuery(query);
+            connection = borrowConnection();
+            if(params == null && fetchSize <= 0) {
+                statement = createStatement(connection);
+                rs = statement.executeQuery(query);
+            } else {
+                prepared = pool.prepare(connection, query);
+                if(params != null) bind(prepared, params);
+                if(fetchSize > 0) prepared.setFetchSize(fetchSize);
+                rs = prepared.executeQuery();
+            }
+            
+            ResultSetMetaData meta = rs.getMetaData();
+            String[] columns = new String[meta.getColumnCount()];
+            for (int x = 0; x < columns.length; ++x) columns[x] = meta.getColumnLabel(x + 1);
+            handler.columns(columns);
+            
             while (rs.next()) {
-                HashMap<String, String> rowToAdd = new HashMap<String, String>();
-                for (int x = 1; x <= rs.getMetaData().getColumnCount(); ++x) {
-                    rowToAdd.put(rs.getMetaData().getColumnName(x), rs.getString(x));
-                }
-                colData.add(Query.toQueryResult(rowToAdd));
+                started = true;
+                rows++;
+                if(!handler.handle(rs)) break;
             }
         } catch (Throwable t) {
             ExceptionHandler.handle(t);
-            if(reconnect()) return executeQuery(query);
-            else return new ArrayList<QueryResult>();
+            failed = true;
+            retry = recover(connection) && !started;
         } finally {
-            if (rs != null) {
-                try { rs.close(); }
-                catch (SQLException e) { Message.log(Level.SEVERE, "Error closing database connection [ResultSet]"); }
-            }
-            if (statement != null) {
-                try { statement.close(); }
-                catch (SQLException e) { Message.log(Level.SEVERE, "Error closing database connection [Statement]"); }
+            closeResultSet(rs);
+            closeStatement(statement);
+            if(prepared != null && fetchSize > 0) {
+                try { prepared.setFetchSize(0); }
+                catch (Throwable t) { }
             }
+            releaseConnection(connection);
         }
-        return colData;
+        setOutcome(rows, failed);
+        if(retry && !retried) return stream(query, params, fetchSize, handler, true);
+        return !failed;
+    }
+    
+    /**
+     * Passes the statement to the slow query log
+     * @param query SQL query
+     * @param params Parameter values, or <b>null</b>
+     * @param start Time the statement was started at, as returned by {@link System#nanoTime()}
+     */
+    static void checkSlow(String query, List<Object> params, long start) {
+        SlowQueryLog log = slowLog;
+        if(log != null && log.isEnabled()) log.check(query, params, System.nanoTime() - start);
+    }
+    
+    /**
+     * Records the outcome of the last statement run by the current thread
+     * @param rows Number of rows returned or changed
+     * @param failed <b>true</b> if the statement failed, <b>false</b> otherwise
+     */
+    static void setOutcome(int rows, boolean failed) {
+        int[] result = outcome.get();
+        result[0] = rows;
+        result[1] = failed ? 1 : 0;
+    }
+    
+    /**
+     * Returns the number of rows returned or changed by the last statement run by the current thread
+     * @return Number of rows
+     */
+    static int getRowCount() {
+        return outcome.get()[0];
+    }
+    
+    /**
+     * Checks if the last statement run by the current thread failed
+     * @return <b>true</b> if the statement failed, <b>false</b> otherwise
+     */
+    static boolean hasFailed() {
+        return outcome.get()[1] != 0;
+    }
+    
+    /**
+     * Binds the parameter values to the prepared statement.<br />
+     * Numbers and booleans are bound with their native types; everything else is bound as a String.
+     * @param statement Prepared statement
+     * @param params Parameter values, in order
+     * @throws SQLException Thrown if a value could not be bound
+     */
+    static void bind(PreparedStatement statement, List<Object> params) throws SQLException {
+        int index = 1;
+        for(Object value : params) {
+            if(value == null) statement.setNull(index, Types.VARCHAR);
+            else if(value instanceof Integer) statement.setInt(index, (Integer) value);
+            else if(value instanceof Long) statement.setLong(index, (Long) value);
+            else if(value instanceof Double) statement.setDouble(index, (Double) value);
+            else if(value instanceof Float) statement.setFloat(index, (Float) value);
+            else if(value instanceof Short) statement.setShort(index, (Short) value);
+            else if(value instanceof Byte) statement.setByte(index, (Byte) value);
+            else if(value instanceof Boolean) statement.setBoolean(index, (Boolean) value);
+            else statement.setString(index, value.toString().replace("\u00A7", "&"));
+            index++;
+        }
+    }
+    
+    /**
+     * Borrows a connection from the connection pool.<br />
+     * Every borrowed connection must be returned with {@link #releaseConnection(Connection)}.
+     * While the circuit breaker is half-open, only the probe gets a connection. The pool validates the connection it
+     * hands out, so the outcome of the borrow is reported to the circuit breaker.
+     * @return Database connection
+     * @throws DatabaseConnectionException Thrown if no connection could be obtained
+     */
+    public static Connection borrowConnection() throws DatabaseConnectionException {
+        if(pool == null) throw new DatabaseConnectionException("Database connection is closed");
+        if(breaker != null && !breaker.allow()) throw new DatabaseConnectionException("Database is unavailable, next attempt in " + (breaker.getRetryDelay() / 1000L) + " seconds");
+        try {
+            Connection connection = pool.borrow();
+            reportSuccess();
+            return connection;
+        } catch (SQLException e) {
+            reportFailure();
+            throw new DatabaseConnectionException(e);
+        }
+    }
+    
+    /**
+     * Returns the connection to the connection pool
+     * @param connection Connection to return
+     */
+    public static void releaseConnection(Connection connection) {
+        if(connection == null || pool == null) return;
+        pool.release(connection);
+    }
+    
+    /**
+     * Creates a plain statement with the configured query timeout
+     * @param connection Borrowed connection
+     * @return Statement
+     * @throws SQLException Thrown if the statement could not be created
+     */
+    private static Statement createStatement(Connection connection) throws SQLException {
+        Statement statement = connection.createStatement();
+        if(pool.getQueryTimeout() > 0) statement.setQueryTimeout(pool.getQueryTimeout());
+        return statement;
+    }
+    
+    /**
+     * Safely closes the statement
+     * @param statement Statement to close
+     */
+    private static void closeStatement(Statement statement) {
+        if (statement == null) return;
+        try { statement.close(); }
+        catch (SQLException e) { Message.log(Level.SEVERE, "Error closing database connection [Statement]"); }
+    }
+    
+    /**
+     * Safely closes the result set
+     * @param rs Result set to close
+     */
+    private static void closeResultSet(ResultSet rs) {
+        if (rs == null) return;
+        try { rs.close(); }
+        catch (SQLException e) { Message.log(Level.SEVERE, "Error closing database connection [ResultSet]"); }
     }
     
     /**
      * Closes the database connection and cleans up any leftover instances to prevent memory leaks
      */
     public static void close() {
-        try { connection.close(); }
-        catch (SQLException e) { Message.log(Level.SEVERE, "Error closing database connection"); }
-        connection = null;
+        if(journal != null) journal.close();
+        journal = null;
+        if(replica != null) replica.close();
+        replica = null;
+        if(pool != null) pool.close();
+        pool = null;
     }
     
     /**
@@ -302,14 +817,54 @@ public class Database {
      * @return <b>true</b> if the connection is closed, <b>false</b> if it is open.
      */
     public static boolean isClosed() {
-        return connection == null;
+        return pool == null || pool.isClosed();
+    }
+    
+    /**
+     * Returns the local journal that stores writes while the database is offline
+     * @return Journal instance, or <b>null</b> if the journal could not be opened
+     */
+    public static Journal getJournal() {
+        return journal;
+    }
+    
+    /**
+     * Checks if the last attempt to reach the database succeeded
+     * @return <b>true</b> if the database is reachable, <b>false</b> otherwise
+     */
+    public static boolean isConnected() {
+        return connected;
+    }
+    
+    /**
+     * Returns the log that records slow statements
+     * @return Slow query log, or <b>null</b> if the database has not been initialized
+     */
+    public static SlowQueryLog getSlowLog() {
+        return slowLog;
+    }
+    
+    /**
+     * Returns the read-only replica of the database
+     * @return Replica, or <b>null</b> if no replica is configured
+     */
+    public static Replica getReplica() {
+        return replica;
+    }
+    
+    /**
+     * Returns the circuit breaker that guards the database connection
+     * @return Circuit breaker
+     */
+    public static CircuitBreaker getBreaker() {
+        return breaker;
     }
     
     /**
-     * Returns the connection instance
-     * @return Connection instance
+     * Returns the connection pool instance
+     * @return Connection pool
      */
-    public static Connection getConnection() {
-        return connection;
+    public static ConnectionPool getPool() {
+        return pool;
     }
 }
@@ -0,0 +1,615 @@
+/*
+ * DatabaseExecutor.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.bukkit.Bukkit;
+
+import com.wolvencraft.yasp.settings.LocalConfiguration;
+import com.wolvencraft.yasp.util.ExceptionHandler;
+import com.wolvencraft.yasp.util.Message;
+
+/**
+ * Runs database work on a fixed number of worker threads owned by the plugin.<br />
+ * Tasks are placed in a bounded queue; when the queue is full, the configured overflow policy decides
+ * what happens to the new task. Tasks with a key are coalesced: if a task with the same key is already
+ * queued or running, the new one is discarded.<br />
+ * Overflow work is never waited on or run on the main server thread: it is handed to a separate overflow thread
+ * with its own bounded queue, and dropped if that queue is full as well.
+ * @author bitWolfy
+ *
+ */
+public class DatabaseExecutor {
+    
+    /** Maximum number of tasks a single job can hold after merging */
+    private static final int MAX_MERGED_TASKS = 64;
+    
+    private static LinkedBlockingDeque<Job> queue = null;
+    private static LinkedBlockingDeque<Job> overflowQueue = null;
+    private static Set<String> pending = null;
+    private static Thread[] workers = null;
+    private static Thread overflowWorker = null;
+    private static OverflowPolicy policy = OverflowPolicy.Block;
+    private static long blockTimeout = 0;
+    private static int capacity = 0;
+    private static volatile boolean running = false;
+    
+    private static final AtomicInteger active = new AtomicInteger(0);
+    private static final AtomicInteger peakDepth = new AtomicInteger(0);
+    private static final AtomicLong submitted = new AtomicLong(0);
+    private static final AtomicLong completed = new AtomicLong(0);
+    private static final AtomicLong failed = new AtomicLong(0);
+    private static final AtomicLong coalesced = new AtomicLong(0);
+    private static final AtomicLong merged = new AtomicLong(0);
+    private static final AtomicLong blocked = new AtomicLong(0);
+    private static final AtomicLong spilled = new AtomicLong(0);
+    private static final AtomicLong handedOff = new AtomicLong(0);
+    private static final AtomicLong rejected = new AtomicLong(0);
+    private static final AtomicLong runs = new AtomicLong(0);
+    private static final AtomicLong totalWait = new AtomicLong(0);
+    private static final AtomicLong maxWait = new AtomicLong(0);
+    private static final AtomicLong totalRun = new AtomicLong(0);
+    private static final AtomicLong maxRun = new AtomicLong(0);
+    
+    /**
+     * <b>Default constructor</b><br />
+     * Starts the worker threads with the settings from the configuration
+     */
+    public DatabaseExecutor() {
+        this(
+            LocalConfiguration.DBExecutorThreads.toInteger(),
+            LocalConfiguration.DBExecutorQueue.toInteger(),
+            OverflowPolicy.get(LocalConfiguration.DBExecutorOverflow.toString()),
+            LocalConfiguration.DBExecutorBlock.toInteger() * 1000L
+        );
+    }
+    
+    /**
+     * <b>Constructor</b><br />
+     * Starts the worker threads with the specified settings
+     * @param threads Number of worker threads
+     * @param queueSize Maximum number of queued tasks
+     * @param overflow Policy to apply when the queue is full
+     * @param timeout Maximum time a blocked task waits for room in the queue, in milliseconds
+     */
+    public DatabaseExecutor(int threads, int queueSize, OverflowPolicy overflow, long timeout) {
+        if(running) shutdown(0);
+        
+        capacity = Math.max(1, queueSize);
+        queue = new LinkedBlockingDeque<Job>(capacity);
+        overflowQueue = new LinkedBlockingDeque<Job>(capacity);
+        pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        policy = overflow;
+        blockTimeout = Math.max(0, timeout);
+        running = true;
+        
+        workers = new Thread[Math.max(1, threads)];
+        for(int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Worker(queue), "Statistics DB Writer #" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        overflowWorker = new Thread(new Worker(overflowQueue), "Statistics DB Overflow");
+        overflowWorker.setDaemon(true);
+        overflowWorker.start();
+        Message.debug("Database executor started: " + workers.length + " threads, " + capacity + " queued tasks, " + policy.name() + " on overflow");
+    }
+    
+    /**
+     * Queues the task to be run on a worker thread
+     * @param task Task to run
+     */
+    public static void submit(Runnable task) {
+        submit(null, task);
+    }
+    
+    /**
+     * Queues the task to be run on a worker thread.<br />
+     * If a task with the same key is already queued or running, the new task is discarded.
+     * If the queue is full, the overflow policy is applied.
+     * If the executor is not running, the task is run on the calling thread, unless that is the main server thread:
+     * there, its writes are spilled to the local journal, or the task is dropped if there is no journal.
+     * @param key Coalescing key, or <b>null</b> to always queue the task
+     * @param task Task to run
+     */
+    public static void submit(String key, Runnable task) {
+        if(!running) {
+            Job job = new Job(null, task);
+            if(!Bukkit.isPrimaryThread()) job.run();
+            else if(Database.getJournal() != null) {
+                spilled.incrementAndGet();
+                job.spill = true;
+                job.run();
+            } else {
+                rejected.incrementAndGet();
+                Message.debug(Level.WARNING, "Database executor is not running, dropping a task from the main thread");
+            }
+            return;
+        }
+        
+        if(key != null && !pending.add(key)) {
+            coalesced.incrementAndGet();
+            return;
+        }
+        submitted.incrementAndGet();
+        
+        Job job = new Job(key, task);
+        if(offer(job)) return;
+        
+        switch(policy) {
+            case Coalesce: {
+                Job tail = queue.peekLast();
+                if(tail != null && tail.merge(job)) {
+                    merged.incrementAndGet();
+                    return;
+                }
+                block(job);
+                break;
+            }
+            case Spill: {
+                spilled.incrementAndGet();
+                job.spill = Database.getJournal() != null;
+                if(Bukkit.isPrimaryThread()) handOff(job);
+                else job.run();
+                break;
+            }
+            default: {
+                block(job);
+            }
+        }
+    }
+    
+    /**
+     * Attempts to place the job at the end of the queue without waiting
+     * @param job Job to queue
+     * @return <b>true</b> if the job was queued, <b>false</b> if the queue is full
+     */
+    private static boolean offer(Job job) {
+        if(!queue.offerLast(job)) return false;
+        updateMax(peakDepth, queue.size());
+        return true;
+    }
+    
+    /**
+     * Waits for room in the queue.<br />
+     * If there is no room after the block timeout, the job is run on the calling thread.
+     * The main server thread never waits; its jobs are handed to the overflow thread instead.
+     * @param job Job to queue
+     */
+    private static void block(Job job) {
+        if(Bukkit.isPrimaryThread()) {
+            handOff(job);
+            return;
+        }
+        
+        blocked.incrementAndGet();
+        try {
+            if(queue.offerLast(job, blockTimeout, TimeUnit.MILLISECONDS)) {
+                updateMax(peakDepth, queue.size());
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Message.debug(Level.WARNING, "Database queue is full, running the task on " + Thread.currentThread().getName());
+        job.run();
+    }
+    
+    /**
+     * Places the job in the overflow queue without waiting.<br />
+     * If the overflow queue is full as well, the job is dropped.
+     * @param job Job to queue
+     */
+    private static void handOff(Job job) {
+        if(overflowQueue.offerLast(job)) {
+            handedOff.incrementAndGet();
+            return;
+        }
+        rejected.incrementAndGet();
+        Message.debug(Level.WARNING, "Database overflow queue is full, dropping the task");
+        job.discard();
+    }
+    
+    /**
+     * Stops accepting new tasks and waits for the queued tasks to complete.<br />
+     * Tasks submitted after this point are run on the calling thread.
+     */
+    public static void shutdown() {
+        shutdown(LocalConfiguration.DBExecutorBlock.toInteger() * 1000L);
+    }
+    
+    /**
+     * Stops accepting new tasks and waits for the queued tasks to complete.<br />
+     * Tasks submitted after this point are run on the calling thread.
+     * @param timeout Maximum time to wait for the queue to drain, in milliseconds
+     */
+    public static void shutdown(long timeout) {
+        if(!running) return;
+        running = false;
+        
+        long deadline = System.currentTimeMillis() + timeout;
+        List<Thread> threads = new ArrayList<Thread>(workers.length + 1);
+        Collections.addAll(threads, workers);
+        threads.add(overflowWorker);
+        for(Thread worker : threads) {
+            long remaining = deadline - System.currentTimeMillis();
+            try { if(remaining > 0) worker.join(remaining); }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        
+        List<Job> left = new ArrayList<Job>();
+        queue.drainTo(left);
+        overflowQueue.drainTo(left);
+        for(Job job : left) job.discard();
+        if(!left.isEmpty()) Message.log(Level.WARNING, "Discarded " + left.size() + " queued database tasks on shutdown");
+        for(Thread worker : threads) worker.interrupt();
+    }
+    
+    /**
+     * Checks if the executor is accepting tasks
+     * @return <b>true</b> if the executor is running, <b>false</b> otherwise
+     */
+    public static boolean isRunning() {
+        return running;
+    }
+    
+    /**
+     * Returns the overflow policy in use
+     * @return Overflow policy
+     */
+    public static OverflowPolicy getPolicy() {
+        return policy;
+    }
+    
+    /**
+     * Returns the number of worker threads
+     * @return Number of worker threads
+     */
+    public static int getThreads() {
+        return workers == null ? 0 : workers.length;
+    }
+    
+    /**
+     * Returns the maximum number of queued tasks
+     * @return Queue capacity
+     */
+    public static int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Returns the number of tasks currently waiting in the queue
+     * @return Queue depth
+     */
+    public static int getDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+    
+    /**
+     * Returns the number of tasks currently waiting in the overflow queue
+     * @return Overflow queue depth
+     */
+    public static int getOverflowDepth() {
+        return overflowQueue == null ? 0 : overflowQueue.size();
+    }
+    
+    /**
+     * Returns the highest queue depth since the executor was started
+     * @return Peak queue depth
+     */
+    public static int getPeakDepth() {
+        return peakDepth.get();
+    }
+    
+    /**
+     * Returns the number of tasks currently running
+     * @return Number of running tasks
+     */
+    public static int getActive() {
+        return active.get();
+    }
+    
+    /**
+     * Returns the number of tasks accepted by the executor
+     * @return Number of submitted tasks
+     */
+    public static long getSubmitted() {
+        return submitted.get();
+    }
+    
+    /**
+     * Returns the number of tasks that were run to completion
+     * @return Number of completed tasks
+     */
+    public static long getCompleted() {
+        return completed.get();
+    }
+    
+    /**
+     * Returns the number of tasks that threw an exception
+     * @return Number of failed tasks
+     */
+    public static long getFailed() {
+        return failed.get();
+    }
+    
+    /**
+     * Returns the number of tasks discarded because an identical task was already queued
+     * @return Number of coalesced tasks
+     */
+    public static long getCoalesced() {
+        return coalesced.get();
+    }
+    
+    /**
+     * Returns the number of tasks appended to an already queued task because the queue was full
+     * @return Number of merged tasks
+     */
+    public static long getMerged() {
+        return merged.get();
+    }
+    
+    /**
+     * Returns the number of times a caller had to wait for room in the queue
+     * @return Number of blocked submissions
+     */
+    public static long getBlocked() {
+        return blocked.get();
+    }
+    
+    /**
+     * Returns the number of tasks that were run with their writes spilled to the local journal
+     * @return Number of spilled tasks
+     */
+    public static long getSpilled() {
+        return spilled.get();
+    }
+    
+    /**
+     * Returns the number of tasks handed from the main server thread to the overflow thread
+     * @return Number of handed off tasks
+     */
+    public static long getHandedOff() {
+        return handedOff.get();
+    }
+    
+    /**
+     * Returns the number of tasks dropped because the overflow queue was full, or because the executor was stopped
+     * @return Number of rejected tasks
+     */
+    public static long getRejected() {
+        return rejected.get();
+    }
+    
+    /**
+     * Returns the average time tasks spend in the queue
+     * @return Average queue time, in milliseconds
+     */
+    public static double getAverageWaitTime() {
+        long count = runs.get();
+        return count == 0 ? 0 : totalWait.get() / 1000000.0 / count;
+    }
+    
+    /**
+     * Returns the longest time a task spent in the queue
+     * @return Maximum queue time, in milliseconds
+     */
+    public static long getMaxWaitTime() {
+        return maxWait.get() / 1000000L;
+    }
+    
+    /**
+     * Returns the average time it takes to run a task
+     * @return Average run time, in milliseconds
+     */
+    public static double getAverageRunTime() {
+        long count = runs.get();
+        return count == 0 ? 0 : totalRun.get() / 1000000.0 / count;
+    }
+    
+    /**
+     * Returns the longest time it took to run a task
+     * @return Maximum run time, in milliseconds
+     */
+    public static long getMaxRunTime() {
+        return maxRun.get() / 1000000L;
+    }
+    
+    /**
+     * Raises the stored value if the new value is higher
+     * @param max Maximum to update
+     * @param value New value
+     */
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while(value > (current = max.get())) {
+            if(max.compareAndSet(current, value)) return;
+        }
+    }
+    
+    /**
+     * Raises the stored value if the new value is higher
+     * @param max Maximum to update
+     * @param value New value
+     */
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while(value > (current = max.get())) {
+            if(max.compareAndSet(current, value)) return;
+        }
+    }
+    
+    /**
+     * Takes jobs from a queue and runs them until the executor is shut down and the queue is empty
+     * @author bitWolfy
+     *
+     */
+    private static class Worker implements Runnable {
+        
+        private final LinkedBlockingDeque<Job> source;
+        
+        /**
+         * <b>Default constructor</b><br />
+         * Creates a new worker for the specified queue
+         * @param source Queue to take jobs from
+         */
+        public Worker(LinkedBlockingDeque<Job> source) {
+            this.source = source;
+        }
+        
+        @Override
+        public void run() {
+            while(running || !source.isEmpty()) {
+                Job job;
+                try { job = source.poll(1, TimeUnit.SECONDS); }
+                catch (InterruptedException e) { return; }
+                if(job != null) job.run();
+            }
+        }
+    
+    }
+    
+    /**
+     * Represents one or more queued tasks
+     * @author bitWolfy
+     *
+     */
+    private static class Job implements Runnable {
+        
+        private final List<String> keys;
+        private final List<Runnable> tasks;
+        private final long queued;
+        private boolean started;
+        private boolean spill;
+        
+        /**
+         * <b>Default constructor</b><br />
+         * Creates a new job
+         * @param key Coalescing key, or <b>null</b> if the task is not coalesced
+         * @param task Task to run
+         */
+        public Job(String key, Runnable task) {
+            this.keys = new ArrayList<String>(1);
+            this.tasks = new ArrayList<Runnable>(1);
+            this.queued = System.nanoTime();
+            this.started = false;
+            this.spill = false;
+            
+            if(key != null) keys.add(key);
+            tasks.add(task);
+        }
+        
+        /**
+         * Appends the tasks of another job to this one
+         * @param job Job to merge
+         * @return <b>true</b> if the job was merged, <b>false</b> if this job has already started or is full
+         */
+        public synchronized boolean merge(Job job) {
+            if(started || tasks.size() + job.tasks.size() > MAX_MERGED_TASKS) return false;
+            keys.addAll(job.keys);
+            tasks.addAll(job.tasks);
+            return true;
+        }
+        
+        /**
+         * Discards the job without running it
+         */
+        public synchronized void discard() {
+            started = true;
+            if(pending != null) pending.removeAll(keys);
+        }
+        
+        @Override
+        public void run() {
+            synchronized(this) { started = true; }
+            long start = System.nanoTime();
+            long wait = start - queued;
+            totalWait.addAndGet(wait);
+            updateMax(maxWait, wait);
+            
+            runs.incrementAndGet();
+            active.incrementAndGet();
+            if(spill) Journal.setSpilling(true);
+            try {
+                for(Runnable task : tasks) {
+                    try {
+                        task.run();
+                        completed.incrementAndGet();
+                    } catch (Throwable t) {
+                        failed.incrementAndGet();
+                        ExceptionHandler.handle(t);
+                    }
+                }
+            } finally {
+                if(spill) Journal.setSpilling(false);
+                active.decrementAndGet();
+                if(pending != null) pending.removeAll(keys);
+                long time = System.nanoTime() - start;
+                totalRun.addAndGet(time);
+                updateMax(maxRun, time);
+            }
+        }
+    
+    }
+    
+    /**
+     * Defines what happens to a new task when the queue is full
+     * @author bitWolfy
+     *
+     */
+    public enum OverflowPolicy {
+        
+        /** Wait for room in the queue, and run the task on the calling thread after the block timeout */
+        Block,
+        /** Append the task to the last queued job, or block if it is full */
+        Coalesce,
+        /** Run the task outside the worker threads, storing its writes in the local journal */
+        Spill;
+        
+        /**
+         * Parses the policy from its name
+         * @param name Policy name
+         * @return Overflow policy, or <b>Block</b> if the name is not valid
+         */
+        public static OverflowPolicy get(String name) {
+            if(name == null) return Block;
+            name = name.replace("-", "").replace("_", "");
+            for(OverflowPolicy policy : values()) {
+                if(policy.name().equalsIgnoreCase(name)) return policy;
+            }
+            return Block;
+        }
+    }
+
+}
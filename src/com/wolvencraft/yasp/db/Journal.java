@@ -0,0 +1,652 @@
+/*
+ * Journal.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import com.wolvencraft.yasp.db.tables.Miscellaneous.SettingsTable;
+import com.wolvencraft.yasp.exceptions.DatabaseConnectionException;
+import com.wolvencraft.yasp.settings.LocalConfiguration;
+import com.wolvencraft.yasp.util.Message;
+
+/**
+ * Append-only, segmented write-ahead journal for statements that could not be sent to the database.<br />
+ * While the database is unreachable, writes issued by the synchronization cycle are appended to the journal
+ * instead of being kept in memory. Once the connection is back, the journal is replayed in order,
+ * and checkpointed after every confirmed commit.<br />
+ * Every record carries a sequence number. The last replayed sequence number is stored in the <i>settings</i> table
+ * in the same transaction as the records themselves, so records that were committed before the local checkpoint
+ * could be written are skipped instead of being applied twice.
+ * @author bitWolfy
+ *
+ */
+public class Journal {
+    
+    private static final String SEGMENT_EXTENSION = ".wal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String ID_FILE = "id";
+    private static final String SEQUENCE_KEY = "journal_";
+    private static final int HEADER_SIZE = 8;
+    private static final int REPLAY_COMMIT_SIZE = 100;
+    
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_BOOLEAN = 4;
+    private static final byte TYPE_STRING = 5;
+    
+    private static final ThreadLocal<Boolean> capturing = new ThreadLocal<Boolean>();
+    private static final ThreadLocal<Boolean> spilling = new ThreadLocal<Boolean>();
+    
+    private final File directory;
+    private final FsyncPolicy policy;
+    private final long segmentSize;
+    private final String key;
+    
+    private FileChannel writer;
+    private long writeSegment;
+    private FileChannel checkpoint;
+    private long checkpointSegment;
+    private long checkpointOffset;
+    private long sequence;
+    
+    @Getter(AccessLevel.PUBLIC) private long appended;
+    @Getter(AccessLevel.PUBLIC) private long replayed;
+    
+    /**
+     * <b>Default constructor</b><br />
+     * Opens the journal in the specified directory, creating it if necessary
+     * @param directory Directory to store the journal segments in
+     * @param policy Policy that defines when the journal is flushed to disk
+     * @param segmentSize Size, in bytes, after which a new segment is started
+     * @throws IOException Thrown if the journal could not be opened
+     */
+    public Journal(File directory, FsyncPolicy policy, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        this.segmentSize = Math.max(64 * 1024, segmentSize);
+        this.appended = 0;
+        this.replayed = 0;
+        
+        if(!directory.exists() && !directory.mkdirs()) throw new IOException("Could not create " + directory);
+        this.key = SEQUENCE_KEY + loadId(new File(directory, ID_FILE));
+        
+        checkpoint = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw").getChannel();
+        checkpointSegment = 1;
+        checkpointOffset = 0;
+        sequence = 0;
+        if(checkpoint.size() >= 16) {
+            ByteBuffer buffer = ByteBuffer.allocate(24);
+            checkpoint.read(buffer, 0);
+            buffer.flip();
+            checkpointSegment = buffer.getLong();
+            checkpointOffset = buffer.getLong();
+            if(buffer.remaining() >= 8) sequence = buffer.getLong();
+        }
+        
+        writeSegment = checkpointSegment;
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                long segment = parseSegment(file);
+                if(segment > writeSegment) writeSegment = segment;
+            }
+        }
+        writer = openSegment(writeSegment);
+        
+        long end = (writeSegment == checkpointSegment) ? Math.min(checkpointOffset, writer.size()) : 0;
+        Record record;
+        while((record = read(writer, end)) != null) {
+            end = record.next;
+            if(record.sequence > sequence) sequence = record.sequence;
+        }
+        if(end < writer.size()) {
+            Message.log(Level.WARNING, "Discarding an incomplete record at the end of the local journal");
+            writer.truncate(end);
+        }
+        writer.position(end);
+    }
+    
+    /**
+     * Appends a statement to the journal
+     * @param sql SQL query with parameter placeholders
+     * @param params Parameter values
+     * @return <b>true</b> if the statement was stored, <b>false</b> if an error occurred
+     */
+    public synchronized boolean append(String sql, List<Object> params) {
+        try {
+            byte[] payload = encode(sequence + 1, sql, params);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            
+            if(writer.size() > 0 && writer.size() + HEADER_SIZE + payload.length > segmentSize) rollover();
+            
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+            buffer.putInt(payload.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(payload);
+            buffer.flip();
+            while(buffer.hasRemaining()) writer.write(buffer);
+            
+            if(policy == FsyncPolicy.Always) writer.force(false);
+            sequence++;
+            appended++;
+            return true;
+        } catch (IOException e) {
+            Message.log(Level.SEVERE, "Failed to write to the local journal: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Flushes the journal to disk, unless the fsync policy forbids it
+     */
+    public synchronized void sync() {
+        if(policy == FsyncPolicy.Never) return;
+        try { writer.force(false); }
+        catch (IOException e) { Message.log(Level.SEVERE, "Failed to flush the local journal: " + e.getMessage()); }
+    }
+    
+    /**
+     * Checks if the journal contains statements that have not been replayed yet
+     * @return <b>true</b> if there are pending statements, <b>false</b> otherwise
+     */
+    public synchronized boolean hasPending() {
+        try { return writeSegment > checkpointSegment || writer.size() > checkpointOffset; }
+        catch (IOException e) { return true; }
+    }
+    
+    /**
+     * Replays the pending statements against the database in the order they were written.<br />
+     * Progress is checkpointed after every commit; fully replayed segments are deleted.
+     * Records with a sequence number the database has already seen are skipped.
+     * @return <b>true</b> if the journal was replayed completely, <b>false</b> if the database is still unavailable
+     */
+    public synchronized boolean replay() {
+        if(!hasPending()) return true;
+        
+        Connection connection;
+        try { connection = Database.borrowConnection(); }
+        catch (DatabaseConnectionException e) { return false; }
+        
+        long start = System.currentTimeMillis();
+        long count = 0;
+        long skipped = 0;
+        try {
+            long applied = readApplied(connection);
+            while(true) {
+                FileChannel reader = (checkpointSegment == writeSegment) ? writer : openSegment(checkpointSegment);
+                try {
+                    long position = checkpointOffset;
+                    int uncommitted = 0;
+                    Record record;
+                    while((record = read(reader, position)) != null) {
+                        position = record.next;
+                        if(record.sequence <= applied) {
+                            skipped++;
+                            continue;
+                        }
+                        execute(connection, record);
+                        applied = record.sequence;
+                        uncommitted++;
+                        if(uncommitted >= REPLAY_COMMIT_SIZE) {
+                            writeApplied(connection, applied);
+                            connection.commit();
+                            writeCheckpoint(checkpointSegment, position);
+                            count += uncommitted;
+                            uncommitted = 0;
+                        }
+                    }
+                    if(uncommitted > 0) writeApplied(connection, applied);
+                    connection.commit();
+                    count += uncommitted;
+                    
+                    if(checkpointSegment == writeSegment) {
+                        writer.truncate(0);
+                        writer.position(0);
+                        writeCheckpoint(writeSegment, 0);
+                        break;
+                    }
+                    
+                    writeCheckpoint(checkpointSegment + 1, 0);
+                } finally {
+                    if(reader != writer) reader.close();
+                }
+                new File(directory, (checkpointSegment - 1) + SEGMENT_EXTENSION).delete();
+            }
+            replayed += count;
+            if(count > 0) Message.log("Replayed " + count + " locally stored statements in " + (System.currentTimeMillis() - start) + " ms");
+            if(skipped > 0) Message.log("Skipped " + skipped + " locally stored statements that had already been applied");
+            return true;
+        } catch (SQLException e) {
+            try { connection.rollback(); }
+            catch (SQLException ex) { }
+            Database.getPool().invalidate(connection);
+            Message.log(Level.WARNING, "Journal replay interrupted after " + count + " statements: " + e.getMessage());
+            replayed += count;
+            return false;
+        } catch (IOException e) {
+            try { connection.rollback(); }
+            catch (SQLException ex) { }
+            Message.log(Level.SEVERE, "Failed to read the local journal: " + e.getMessage());
+            replayed += count;
+            return false;
+        } finally {
+            Database.releaseConnection(connection);
+        }
+    }
+    
+    /**
+     * Flushes and closes the journal files
+     */
+    public synchronized void close() {
+        sync();
+        try { writer.close(); }
+        catch (IOException e) { }
+        try { checkpoint.close(); }
+        catch (IOException e) { }
+    }
+    
+    /**
+     * Executes a single journal record.<br />
+     * Records rejected because of the data or the statement itself are logged and skipped, since replaying them
+     * again would not help. Any other failure interrupts the replay, so the record is retried later.
+     * @param connection Database connection
+     * @param record Record to execute
+     * @throws SQLException Thrown if the record could not be executed, but might succeed later
+     */
+    private void execute(Connection connection, Record record) throws SQLException {
+        try {
+            PreparedStatement statement = Database.getPool().prepare(connection, record.sql);
+            Database.bind(statement, record.params);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            if(!isPermanent(e)) throw e;
+            Message.log(Level.WARNING, "Skipping a journal record rejected by the database: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Checks if the failure is caused by the statement or its data, rather than by the connection or a lock.<br />
+     * Data exceptions (SQL state class 22), constraint violations (23), and syntax or access errors (42) are permanent.
+     * @param e Exception to check
+     * @return <b>true</b> if the statement will never succeed, <b>false</b> if it might succeed later
+     */
+    static boolean isPermanent(SQLException e) {
+        String state = e.getSQLState();
+        if(state == null || state.length() < 2) return false;
+        state = state.substring(0, 2);
+        if(state.equals("22") || state.equals("23") || state.equals("42")) return true;
+        return e instanceof SQLNonTransientException && !state.equals("08");
+    }
+    
+    /**
+     * Reads the sequence number of the last record the database has applied
+     * @param connection Database connection
+     * @return Sequence number, or <b>0</b> if no records have been applied yet
+     * @throws SQLException Thrown if the sequence number could not be read
+     */
+    private long readApplied(Connection connection) throws SQLException {
+        PreparedStatement statement = Database.getPool().prepare(connection,
+            "SELECT `" + SettingsTable.Value + "` FROM `" + LocalConfiguration.DBPrefix.toString() + SettingsTable.TableName + "` WHERE `" + SettingsTable.Key + "` = ?"
+        );
+        List<Object> params = new ArrayList<Object>(1);
+        params.add(key);
+        Database.bind(statement, params);
+        ResultSet rs = statement.executeQuery();
+        try {
+            if(!rs.next()) return 0;
+            return Long.parseLong(rs.getString(1));
+        } catch (NumberFormatException e) {
+            return 0;
+        } finally {
+            rs.close();
+        }
+    }
+    
+    /**
+     * Stores the sequence number of the last applied record as part of the current transaction
+     * @param connection Database connection
+     * @param applied Sequence number
+     * @throws SQLException Thrown if the sequence number could not be stored
+     */
+    private void writeApplied(Connection connection, long applied) throws SQLException {
+        PreparedStatement statement = Database.getPool().prepare(connection,
+            "INSERT INTO `" + LocalConfiguration.DBPrefix.toString() + SettingsTable.TableName + "` (`" + SettingsTable.Key + "`, `" + SettingsTable.Value + "`)"
+            + " VALUES (?, ?) ON DUPLICATE KEY UPDATE `" + SettingsTable.Value + "` = VALUES(`" + SettingsTable.Value + "`)"
+        );
+        List<Object> params = new ArrayList<Object>(2);
+        params.add(key);
+        params.add(String.valueOf(applied));
+        Database.bind(statement, params);
+        statement.executeUpdate();
+    }
+    
+    /**
+     * Starts a new segment
+     * @throws IOException Thrown if the segment could not be created
+     */
+    private void rollover() throws IOException {
+        if(policy != FsyncPolicy.Never) writer.force(false);
+        writer.close();
+        writeSegment++;
+        writer = openSegment(writeSegment);
+        writer.position(writer.size());
+        writeCheckpoint(checkpointSegment, checkpointOffset);
+    }
+    
+    /**
+     * Opens the segment file with the specified number
+     * @param segment Segment number
+     * @return File channel
+     * @throws IOException Thrown if the segment could not be opened
+     */
+    private FileChannel openSegment(long segment) throws IOException {
+        return new RandomAccessFile(new File(directory, segment + SEGMENT_EXTENSION), "rw").getChannel();
+    }
+    
+    /**
+     * Stores the replay position, along with the last sequence number handed out
+     * @param segment Segment number
+     * @param offset Offset in the segment
+     * @throws IOException Thrown if the checkpoint could not be written
+     */
+    private void writeCheckpoint(long segment, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(24);
+        buffer.putLong(segment);
+        buffer.putLong(offset);
+        buffer.putLong(sequence);
+        buffer.flip();
+        checkpoint.write(buffer, 0);
+        if(policy != FsyncPolicy.Never) checkpoint.force(false);
+        checkpointSegment = segment;
+        checkpointOffset = offset;
+    }
+    
+    /**
+     * Reads the journal identifier from the file, generating a new one if the file does not exist yet
+     * @param file Identifier file
+     * @return Journal identifier
+     * @throws IOException Thrown if the identifier could not be read or stored
+     */
+    private static String loadId(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if(raf.length() > 0) return raf.readUTF();
+            String id = UUID.randomUUID().toString().replace("-", "");
+            raf.writeUTF(id);
+            raf.getFD().sync();
+            return id;
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Reads the record at the specified position.<br />
+     * A truncated or corrupted record marks the end of the segment.
+     * @param channel Segment channel
+     * @param position Record position
+     * @return Record, or <b>null</b> if there are no more records
+     * @throws IOException Thrown if the segment could not be read
+     */
+    private static Record read(FileChannel channel, long position) throws IOException {
+        if(position + HEADER_SIZE > channel.size()) return null;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while(header.hasRemaining()) {
+            if(channel.read(header, position + header.position()) < 0) return null;
+        }
+        header.flip();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if(length <= 0 || position + HEADER_SIZE + length > channel.size()) return null;
+        
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        while(payload.hasRemaining()) {
+            if(channel.read(payload, position + HEADER_SIZE + payload.position()) < 0) return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        if((int) crc.getValue() != checksum) {
+            Message.log(Level.WARNING, "Corrupted journal record found; ignoring the rest of the segment");
+            return null;
+        }
+        
+        Record record = decode(payload.array());
+        record.next = position + HEADER_SIZE + length;
+        return record;
+    }
+    
+    /**
+     * Serializes the statement
+     * @param sequence Record sequence number
+     * @param sql SQL query
+     * @param params Parameter values
+     * @return Serialized statement
+     * @throws IOException Thrown if the statement could not be serialized
+     */
+    private static byte[] encode(long sequence, String sql, List<Object> params) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(sql.length() + 16 * params.size() + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(sequence);
+        writeString(out, sql);
+        out.writeInt(params.size());
+        for(Object value : params) {
+            if(value == null) out.writeByte(TYPE_NULL);
+            else if(value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                out.writeByte(TYPE_INT);
+                out.writeInt(((Number) value).intValue());
+            } else if(value instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong((Long) value);
+            } else if(value instanceof Double || value instanceof Float) {
+                out.writeByte(TYPE_DOUBLE);
+                out.writeDouble(((Number) value).doubleValue());
+            } else if(value instanceof Boolean) {
+                out.writeByte(TYPE_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else {
+                out.writeByte(TYPE_STRING);
+                writeString(out, value.toString());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Deserializes the statement
+     * @param payload Serialized statement
+     * @return Journal record
+     * @throws IOException Thrown if the statement could not be deserialized
+     */
+    private static Record decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long sequence = in.readLong();
+        String sql = readString(in);
+        int count = in.readInt();
+        List<Object> params = new ArrayList<Object>(count);
+        for(int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            switch(type) {
+                case TYPE_NULL: params.add(null); break;
+                case TYPE_INT: params.add(in.readInt()); break;
+                case TYPE_LONG: params.add(in.readLong()); break;
+                case TYPE_DOUBLE: params.add(in.readDouble()); break;
+                case TYPE_BOOLEAN: params.add(in.readBoolean()); break;
+                case TYPE_STRING: params.add(readString(in)); break;
+                default: throw new IOException("Unknown parameter type: " + type);
+            }
+        }
+        return new Record(sequence, sql, params);
+    }
+    
+    /**
+     * Writes a length-prefixed UTF-8 string
+     * @param out Output stream
+     * @param str String to write
+     * @throws IOException Thrown if the string could not be written
+     */
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Reads a length-prefixed UTF-8 string
+     * @param in Input stream
+     * @return String that was read
+     * @throws IOException Thrown if the string could not be read
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+    
+    /**
+     * Parses the segment number from the file name
+     * @param file Segment file
+     * @return Segment number, or <b>-1</b> if the file is not a segment
+     */
+    private static long parseSegment(File file) {
+        String name = file.getName();
+        if(!name.endsWith(SEGMENT_EXTENSION)) return -1;
+        try { return Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length())); }
+        catch (NumberFormatException e) { return -1; }
+    }
+    
+    /**
+     * Marks the current thread as part of the synchronization cycle.<br />
+     * While capturing, writes that cannot reach the database are stored in the journal.
+     * @param capture <b>true</b> to start capturing, <b>false</b> to stop
+     */
+    public static void setCapturing(boolean capture) {
+        if(capture) capturing.set(Boolean.TRUE);
+        else capturing.remove();
+    }
+    
+    /**
+     * Checks if the current thread is part of the synchronization cycle
+     * @return <b>true</b> if writes from this thread are journaled, <b>false</b> otherwise
+     */
+    public static boolean isCapturing() {
+        return capturing.get() != null;
+    }
+    
+    /**
+     * Marks the current thread as spilling.<br />
+     * While spilling, all writes from the thread are stored in the journal without contacting the database,
+     * and are replayed on the next synchronization.
+     * @param spill <b>true</b> to start spilling, <b>false</b> to stop
+     */
+    public static void setSpilling(boolean spill) {
+        if(spill) spilling.set(Boolean.TRUE);
+        else spilling.remove();
+    }
+    
+    /**
+     * Checks if the writes from the current thread go straight to the journal
+     * @return <b>true</b> if the thread is spilling, <b>false</b> otherwise
+     */
+    public static boolean isSpilling() {
+        return spilling.get() != null;
+    }
+    
+    /**
+     * Represents a single statement read from the journal
+     * @author bitWolfy
+     *
+     */
+    private static class Record {
+        
+        private final long sequence;
+        private final String sql;
+        private final List<Object> params;
+        private long next;
+        
+        /**
+         * <b>Default constructor</b><br />
+         * Creates a new journal record
+         * @param sequence Record sequence number
+         * @param sql SQL query
+         * @param params Parameter values
+         */
+        public Record(long sequence, String sql, List<Object> params) {
+            this.sequence = sequence;
+            this.sql = sql;
+            this.params = params;
+            this.next = 0;
+        }
+    
+    }
+    
+    /**
+     * Defines when the journal is flushed to disk
+     * @author bitWolfy
+     *
+     */
+    public enum FsyncPolicy {
+        
+        /** Flush after every statement */
+        Always,
+        /** Flush at the end of every synchronization cycle */
+        Batch,
+        /** Leave flushing to the operating system */
+        Never;
+        
+        /**
+         * Parses the policy from its name
+         * @param name Policy name
+         * @return Fsync policy, or <b>Batch</b> if the name is not valid
+         */
+        public static FsyncPolicy get(String name) {
+            for(FsyncPolicy policy : values()) {
+                if(policy.name().equalsIgnoreCase(name)) return policy;
+            }
+            return Batch;
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * KeyValueWriter.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wolvencraft.yasp.db.tables.DBTable;
+import com.wolvencraft.yasp.settings.LocalConfiguration;
+
+/**
+ * Collects writes to the key-value tables, such as <i>settings</i> and <i>server_statistics</i>.<br />
+ * Writing a key only updates the local copy; if the same key is written again before the next flush, only the last
+ * value is kept. On flush, every table gets a single multi-row INSERT ... ON DUPLICATE KEY UPDATE statement.
+ * The tables must have a <code>key</code> column with a unique index, and a <code>value</code> column.
+ * @author bitWolfy
+ *
+ */
+public class KeyValueWriter {
+    
+    private static final Map<DBTable, Map<String, Object>> pending = new LinkedHashMap<DBTable, Map<String, Object>>();
+    
+    private static final AtomicLong coalesced = new AtomicLong(0);
+    private static final AtomicLong written = new AtomicLong(0);
+    private static final AtomicLong statements = new AtomicLong(0);
+    
+    /**
+     * Queues a value to be written to the table on the next flush.<br />
+     * Replaces any value that has been queued for the same key.
+     * @param table Name of the key-value table
+     * @param key Entry key
+     * @param value Entry value
+     */
+    public static void put(DBTable table, String key, Object value) {
+        if(value == null) value = "";
+        else if(value instanceof Boolean) value = ((Boolean) value) ? 1 : 0;
+        
+        synchronized(pending) {
+            Map<String, Object> entries = pending.get(table);
+            if(entries == null) {
+                entries = new LinkedHashMap<String, Object>();
+                pending.put(table, entries);
+            }
+            if(entries.put(key, value) != null) coalesced.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Writes all queued values to the database, with one statement per table.<br />
+     * If a statement fails, or the transaction it runs in is discarded, its values are queued again,
+     * unless they have been replaced in the meantime.
+     * @return <b>true</b> if all values were written, <b>false</b> otherwise
+     */
+    public static boolean flush() {
+        Map<DBTable, Map<String, Object>> tables;
+        synchronized(pending) {
+            if(pending.isEmpty()) return true;
+            tables = new LinkedHashMap<DBTable, Map<String, Object>>(pending);
+            pending.clear();
+        }
+        
+        boolean result = true;
+        for(Entry<DBTable, Map<String, Object>> table : tables.entrySet()) {
+            final DBTable key = table.getKey();
+            final Map<String, Object> entries = table.getValue();
+            List<Object> params = new ArrayList<Object>(entries.size() * 2);
+            StringBuilder sql = new StringBuilder("INSERT INTO `").append(LocalConfiguration.DBPrefix.toString())
+                .append(table.getKey().getColumnName()).append("` (`key`, `value`) VALUES ");
+            for(Entry<String, Object> entry : entries.entrySet()) {
+                if(!params.isEmpty()) sql.append(", ");
+                sql.append("(?, ?)");
+                params.add(entry.getKey());
+                params.add(entry.getValue());
+            }
+            sql.append(" ON DUPLICATE KEY UPDATE `value` = VALUES(`value`)");
+            
+            statements.incrementAndGet();
+            if(Query.executeUpsert(table.getKey().getColumnName(), sql.toString(), params)) {
+                written.addAndGet(entries.size());
+                Transaction.onDiscard(new Runnable() {
+                    @Override
+                    public void run() {
+                        requeue(key, entries);
+                    }
+                });
+                continue;
+            }
+            
+            result = false;
+            requeue(table.getKey(), entries);
+        }
+        return result;
+    }
+    
+    /**
+     * Queues the values that failed to be written again, skipping the keys that have newer values
+     * @param table Name of the key-value table
+     * @param entries Values that failed to be written
+     */
+    private static void requeue(DBTable table, Map<String, Object> entries) {
+        synchronized(pending) {
+            Map<String, Object> current = pending.get(table);
+            if(current == null) {
+                pending.put(table, entries);
+                return;
+            }
+            for(Entry<String, Object> entry : entries.entrySet()) {
+                if(!current.containsKey(entry.getKey())) current.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of values that are waiting to be written
+     * @return Number of values
+     */
+    public static int getPending() {
+        int count = 0;
+        synchronized(pending) {
+            for(Map<String, Object> entries : pending.values()) count += entries.size();
+        }
+        return count;
+    }
+    
+    /**
+     * Returns the number of values that replaced a queued value for the same key
+     * @return Number of values
+     */
+    public static long getCoalesced() {
+        return coalesced.get();
+    }
+    
+    /**
+     * Returns the number of values that were written to the database
+     * @return Number of values
+     */
+    public static long getWritten() {
+        return written.get();
+    }
+    
+    /**
+     * Returns the number of statements that were sent to the database
+     * @return Number of statements
+     */
+    public static long getStatements() {
+        return statements.get();
+    }
+
+}
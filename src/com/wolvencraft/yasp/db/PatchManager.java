@@ -43,6 +43,7 @@ public class PatchManager {
         patchDir = new File(Statistics.getInstance().getDataFolder(), "patches");
         if(!patchDir.exists()) patchDir.mkdir();
         fetch(PATCH_KEY);
+        fetchOptional("partitioning." + PATCH_KEY + ".sql");
     }
     
     /**
@@ -62,6 +63,15 @@ public class PatchManager {
         Message.log("+----------------------------------+");
     }
     
+    /**
+     * Copies an opt-in patch that is not applied automatically
+     * @param filename Name of the file (i.e. <code>partitioning.yaspx.sql</code>)
+     */
+    private static void fetchOptional(String filename) {
+        if(localFileExists(filename) || Statistics.getInstance().getResource("patches/" + filename) == null) return;
+        Statistics.getInstance().saveResource("patches/" + filename, false);
+    }
+    
     /**
      * Checks if the file exists in the plugin directory
      * @param filename Name of the file (i.e. <code>1.yasp.sql</code>)
@@ -21,21 +21,28 @@
 package com.wolvencraft.yasp.db;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.logging.Level;
 
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import com.wolvencraft.yasp.db.QueryMetrics.Operation;
 import com.wolvencraft.yasp.db.tables.DBTable;
 import com.wolvencraft.yasp.settings.LocalConfiguration;
 import com.wolvencraft.yasp.util.ExceptionHandler;
 import com.wolvencraft.yasp.util.Message;
-import com.wolvencraft.yasp.util.Util;
 
 /**
- * Modular database query factory. Used to build and run SELECT, INSERT, and UPDATE queries.
+ * Modular database query factory. Used to build and run SELECT, INSERT, and UPDATE queries.<br />
+ * Queries are compiled to parameterized statements, so queries of the same shape share a single
+ * prepared statement on each connection.
  * @author bitWolfy
  *
  */
@@ -68,41 +75,106 @@ public class Query {
         return instance.new QueryResult(map);
     }
     
+    /**
+     * Creates a QueryResult from a row of natively typed values
+     * @param columns Column index, shared between the rows of a single result set
+     * @param values Column values, in result set order
+     * @return <b>QueryResult</b> desired result
+     */
+    public static QueryResult toQueryResult(Map<String, Integer> columns, Object[] values) {
+        return instance.new QueryResult(columns, values);
+    }
+    
     /**
      * Safely pushes data to the remote database. <br />
      * Wraps around the corresponding Database method and handles any errors that might occur in it.
+     * @param table Name of the table, for the query metrics
+     * @param operation Query operation, for the query metrics
      * @param sql SQL query
+     * @param params Parameter values
      * @return <b>true</b> if the sync is successful, <b>false</b> otherwise
      */
-    private static boolean executeUpdate(String sql) {
+    private static boolean executeUpdate(String table, Operation operation, String sql, List<Object> params) {
+        long start = System.nanoTime();
+        boolean failed = false;
         try {
-            Message.debug(Level.FINEST, sql);
-            return Database.executeUpdate(sql);
+            Message.debug(Level.FINEST, sql + " " + params);
+            return Database.executeUpdate(sql, params);
         } catch (Throwable t) {
+            failed = true;
             Message.log(Level.SEVERE, "An error occurred while pushing data to the remote database.");
             Message.log(Level.SEVERE, t.getMessage());
             if(LocalConfiguration.Debug.toBoolean()) ExceptionHandler.handle(t);
             return false;
+        } finally {
+            QueryMetrics.record(table, operation, System.nanoTime() - start, Database.getRowCount(), failed || Database.hasFailed());
         }
     }
     
+    /**
+     * Safely runs a prebuilt INSERT ... ON DUPLICATE KEY UPDATE query.<br />
+     * Used by the database classes that build multi-row statements themselves.
+     * @param table Name of the table, for the query metrics
+     * @param sql SQL query
+     * @param params Parameter values
+     * @return <b>true</b> if the sync is successful, <b>false</b> otherwise
+     */
+    static boolean executeUpsert(String table, String sql, List<Object> params) {
+        return executeUpdate(table, Operation.Upsert, sql, params);
+    }
+    
     /**
      * Safely returns the data from the remote server according to the SQL query.<br />
      * Wraps around the corresponding Database method and handles any errors that might occur in it.
+     * @param table Name of the table, for the query metrics
      * @param sql SQL query
+     * @param params Parameter values
+     * @param fromReplica <b>true</b> to run the query on the replica if it is usable, <b>false</b> otherwise
      * @return Data from the remote database
      */
-    private static List<QueryResult> executeQuery(String sql) {
+    private static List<QueryResult> executeQuery(String table, String sql, List<Object> params, boolean fromReplica) {
+        long start = System.nanoTime();
+        boolean failed = false;
         try {
-            Message.debug(Level.FINEST, sql);
-            return Database.executeQuery(sql);
+            Message.debug(Level.FINEST, sql + " " + params);
+            return Database.executeQuery(sql, params, fromReplica);
         } catch (Throwable t) {
+            failed = true;
             Message.log(Level.SEVERE, "An error occurred while fetching data from the remote database.");
             Message.log(Level.SEVERE, t.getMessage());
             if(LocalConfiguration.Debug.toBoolean()) ExceptionHandler.handle(t);
             return new ArrayList<QueryResult>();
+        } finally {
+            QueryMetrics.record(table, Operation.Select, System.nanoTime() - start, Database.getRowCount(), failed || Database.hasFailed());
         }
-    }    
+    }
+    
+    /**
+     * Safely streams the data from the remote server according to the SQL query.<br />
+     * Wraps around the corresponding Database method and handles any errors that might occur in it.
+     * @param table Name of the table, for the query metrics
+     * @param sql SQL query
+     * @param params Parameter values
+     * @param fromReplica <b>true</b> to run the query on the replica if it is usable, <b>false</b> otherwise
+     * @param handler Row handler
+     * @return <b>true</b> if the query was completed, <b>false</b> otherwise
+     */
+    private static boolean stream(String table, String sql, List<Object> params, boolean fromReplica, RowHandler handler) {
+        long start = System.nanoTime();
+        boolean failed = false;
+        try {
+            Message.debug(Level.FINEST, sql + " " + params);
+            return Database.stream(sql, params, LocalConfiguration.DBFetchSize.toInteger(), fromReplica, handler);
+        } catch (Throwable t) {
+            failed = true;
+            Message.log(Level.SEVERE, "An error occurred while fetching data from the remote database.");
+            Message.log(Level.SEVERE, t.getMessage());
+            if(LocalConfiguration.Debug.toBoolean()) ExceptionHandler.handle(t);
+            return false;
+        } finally {
+            QueryMetrics.record(table, Operation.Select, System.nanoTime() - start, Database.getRowCount(), failed || Database.hasFailed());
+        }
+    }
     
     
     /**
@@ -115,8 +187,14 @@ public class Query {
         private DatabaseQuery instance;
         private String table;
         private List<String> columns;
-        private Map<Object, Object> values;
+        private Map<String, Object> values;
         private List<String> conditions;
+        private List<Object> conditionValues;
+        private Map<String, Object> keys;
+        private List<String> aggregates;
+        private List<String> groups;
+        private List<String> greatest;
+        private boolean fromReplica;
         
         /**
          * <b>Default constructor</b><br />
@@ -128,8 +206,36 @@ public class Query {
             this.instance = this;
             this.table = table;
             this.columns = new ArrayList<String>();
-            this.values = new HashMap<Object, Object>();
+            this.values = new LinkedHashMap<String, Object>();
             this.conditions = new ArrayList<String>();
+            this.conditionValues = new ArrayList<Object>();
+            this.keys = new LinkedHashMap<String, Object>();
+            this.aggregates = new ArrayList<String>();
+            this.groups = new ArrayList<String>();
+            this.greatest = new ArrayList<String>();
+            this.fromReplica = false;
+        }
+        
+        /**
+         * Sends the SELECT queries to the read-only replica, if one is configured and usable.<br />
+         * The replica might lag behind the primary database, so this should only be used for aggregate reads
+         * that do not need to see the changes that were just written.
+         * @return Database query
+         */
+        public DatabaseQuery fromReplica() {
+            this.fromReplica = true;
+            return instance;
+        }
+        
+        /**
+         * Makes upserts keep the higher of the existing and the new value in the specified columns.<br />
+         * Used for running maximums that several servers can write to the same row.
+         * @param column Columns to keep the maximum value in
+         * @return Database query
+         */
+        public DatabaseQuery greatest(DBTable... column) {
+            for(DBTable col : column) this.greatest.add(col.getColumnName());
+            return instance;
         }
         
         /**
@@ -165,6 +271,71 @@ public class Query {
             return instance;
         }
         
+        /**
+         * Adds an aggregate expression to the SELECT query.<br />
+         * Aggregates are returned after the regular columns, under the specified alias. Sums and counts of an empty
+         * set are returned as <b>0</b>; the maximum and minimum of an empty set are <b>null</b>.
+         * @param function Aggregate function
+         * @param column Column to aggregate, or <b>null</b> to count all rows
+         * @param alias Name under which the result is returned
+         * @return Database query
+         */
+        public DatabaseQuery aggregate(Aggregate function, String column, String alias) {
+            StringBuilder expression = new StringBuilder();
+            if(function == Aggregate.Sum) expression.append("IFNULL(");
+            expression.append(function.getFunction()).append('(');
+            if(column == null) expression.append('*');
+            else expression.append('`').append(column).append('`');
+            expression.append(')');
+            if(function == Aggregate.Sum) expression.append(", 0)");
+            expression.append(" AS `").append(alias).append('`');
+            aggregates.add(expression.toString());
+            return instance;
+        }
+        
+        /**
+         * Adds an aggregate expression to the SELECT query, returned under the column name
+         * @param function Aggregate function
+         * @param column Column to aggregate
+         * @return Database query
+         */
+        public DatabaseQuery aggregate(Aggregate function, DBTable column) {
+            return aggregate(function, column.getColumnName(), column.getColumnName());
+        }
+        
+        /**
+         * Adds an aggregate expression to the SELECT query
+         * @param function Aggregate function
+         * @param column Column to aggregate
+         * @param alias Name under which the result is returned
+         * @return Database query
+         */
+        public DatabaseQuery aggregate(Aggregate function, DBTable column, String alias) {
+            return aggregate(function, column.getColumnName(), alias);
+        }
+        
+        /**
+         * Groups the aggregated rows by the specified columns.<br />
+         * The grouping columns should also be selected with <code>column();</code> to tell the groups apart.
+         * @param columns Columns to group by
+         * @return Database query
+         */
+        public DatabaseQuery groupBy(String... columns) {
+            for(String column : columns) this.groups.add(column);
+            return instance;
+        }
+        
+        /**
+         * Groups the aggregated rows by the specified columns.<br />
+         * The grouping columns should also be selected with <code>column();</code> to tell the groups apart.
+         * @param columns Columns to group by
+         * @return Database query
+         */
+        public DatabaseQuery groupBy(DBTable... columns) {
+            for(DBTable column : columns) this.groups.add(column.getColumnName());
+            return instance;
+        }
+        
         /**
          * Applies a condition to the query
          * @param key Column name
@@ -172,7 +343,9 @@ public class Query {
          * @return Database query
          */
         public DatabaseQuery condition(String key, Object value) {
-            this.conditions.add("`" + key + "`='" + value.toString() + "'");
+            this.conditions.add("`" + key + "`=?");
+            this.conditionValues.add(value);
+            this.keys.put(key, value);
             return instance;
         }
         
@@ -183,8 +356,7 @@ public class Query {
          * @return Database query
          */
         public DatabaseQuery condition(DBTable column, String value) {
-            this.conditions.add("`" + column.getColumnName() + "`='" + value + "'");
-            return instance;
+            return condition(column.getColumnName(), value);
         }
 
         /**
@@ -194,8 +366,7 @@ public class Query {
          * @return Database query
          */
         public DatabaseQuery condition(DBTable column, Integer value) {
-            this.conditions.add("`" + column.getColumnName() + "`=" + value);
-            return instance;
+            return condition(column.getColumnName(), value);
         }
 
         /**
@@ -205,8 +376,7 @@ public class Query {
          * @return Database query
          */
         public DatabaseQuery condition(DBTable column, Double value) {
-            this.conditions.add("`" + column.getColumnName() + "`=" + value);
-            return instance;
+            return condition(column.getColumnName(), value);
         }
 
         /**
@@ -216,8 +386,7 @@ public class Query {
          * @return Database query
          */
         public DatabaseQuery condition(DBTable column, Long value) {
-            this.conditions.add("`" + column.getColumnName() + "`=" + value);
-            return instance;
+            return condition(column.getColumnName(), value);
         }
 
         /**
@@ -227,13 +396,33 @@ public class Query {
          * @return Database query
          */
         public DatabaseQuery condition(DBTable column, Boolean value) {
-            if(value) this.conditions.add("`" + column.getColumnName() + "`=1");
-            else this.conditions.add("`" + column.getColumnName() + "`=0");
-            return instance;
+            return condition(column.getColumnName(), value ? 1 : 0);
         }
 
         /**
-         * Applies a set of conditions to the query
+         * Applies a condition to the query that matches any of the specified values.<br />
+         * If there are no values, the query matches nothing.
+         * @param column Column name
+         * @param values Column values
+         * @return Database query
+         */
+        public DatabaseQuery conditionIn(DBTable column, Collection<?> values) {
+            if(values.isEmpty()) {
+                this.conditions.add("0=1");
+                return instance;
+            }
+            StringBuilder condition = new StringBuilder("`").append(column.getColumnName()).append("` IN (");
+            for(int i = 0; i < values.size(); i++) {
+                if(i > 0) condition.append(", ");
+                condition.append('?');
+            }
+            this.conditions.add(condition.append(')').toString());
+            this.conditionValues.addAll(values);
+            return instance;
+        }
+        
+        /**
+         * Applies a set of raw SQL conditions to the query
          * @param list List of conditions
          * @return Database query
          */
@@ -282,7 +471,7 @@ public class Query {
          * @return Database query
          */
         public DatabaseQuery value(Map<Object, Object> values) {
-            this.values.putAll(values);
+            for(Entry<Object, Object> entry : values.entrySet()) this.values.put(entry.getKey().toString(), entry.getValue());
             return instance;
         }
         
@@ -292,7 +481,7 @@ public class Query {
          * @return Database query
          */
         public DatabaseQuery valueRaw(Map<DBTable, Object> values) {
-            this.values.putAll(values);
+            for(Entry<DBTable, Object> entry : values.entrySet()) this.values.put(entry.getKey().getColumnName(), entry.getValue());
             return instance;
         }
         
@@ -310,26 +499,7 @@ public class Query {
          * @return <b>QueryResult</b> the result found or <b>null</b> if there isn't one.
          */
         public QueryResult select(int index) {
-            String sql = "SELECT ";
-            
-            String columnString = "";
-            if(instance.columns.isEmpty()) columnString = "*";
-            else {
-                for(String str : instance.columns) {
-                    if(!columnString.equals("")) columnString += ", ";
-                    columnString += "`" + str + "`";
-                }
-            }
-            sql += columnString + " FROM `" + LocalConfiguration.DBPrefix.toString() + table + "`";
-            
-            String conditionString = "";
-            for(String str : instance.conditions) {
-                if(!conditionString.equals("")) conditionString += " AND ";
-                conditionString += str;
-            }
-            if(!conditionString.equals("")) sql += " WHERE " + conditionString;
-            
-            try { return Query.executeQuery(sql + ";").get(index); }
+            try { return selectAll().get(index); }
             catch (NullPointerException ex) { return null; }
             catch (IndexOutOfBoundsException aiex) { return null; }
         }
@@ -340,26 +510,50 @@ public class Query {
          * @return List of results. Might be empty.
          */
         public List<QueryResult> selectAll() {
-            String sql = "SELECT ";
-            
-            String columnString = "";
-            if(instance.columns.isEmpty()) columnString = "*";
+            List<Object> params = new ArrayList<Object>(conditionValues.size());
+            return Query.executeQuery(table, buildSelect(params), params, fromReplica);
+        }
+        
+        /**
+         * Builds and runs the SELECT query, passing the results to the handler one row at a time.<br />
+         * Unlike <code>selectAll();</code>, the results are never loaded into memory all at once.
+         * @param handler Row handler
+         * @return <b>true</b> if the query was completed, <b>false</b> if an error occurred
+         */
+        public boolean stream(RowHandler handler) {
+            List<Object> params = new ArrayList<Object>(conditionValues.size());
+            return Query.stream(table, buildSelect(params), params, fromReplica, handler);
+        }
+        
+        /**
+         * Builds the SELECT query
+         * @param params List to add the parameter values to
+         * @return SQL query
+         */
+        private String buildSelect(List<Object> params) {
+            StringBuilder sql = new StringBuilder("SELECT ");
+            if(columns.isEmpty() && aggregates.isEmpty()) sql.append("*");
             else {
-                for(String str : instance.columns) {
-                    if(!columnString.equals("")) columnString += ", ";
-                    columnString += "`" + str + "`";
+                for(int i = 0; i < columns.size(); i++) {
+                    if(i > 0) sql.append(", ");
+                    sql.append('`').append(columns.get(i)).append('`');
+                }
+                for(int i = 0; i < aggregates.size(); i++) {
+                    if(i > 0 || !columns.isEmpty()) sql.append(", ");
+                    sql.append(aggregates.get(i));
                 }
             }
-            sql += columnString + " FROM `" + LocalConfiguration.DBPrefix.toString() + table + "`";
-            
-            String conditionString = "";
-            for(String str : instance.conditions) {
-                if(!conditionString.equals("")) conditionString += " AND ";
-                conditionString += str;
+            sql.append(" FROM ");
+            appendTable(sql);
+            appendConditions(sql, params);
+            if(!groups.isEmpty()) {
+                sql.append(" GROUP BY ");
+                for(int i = 0; i < groups.size(); i++) {
+                    if(i > 0) sql.append(", ");
+                    sql.append('`').append(groups.get(i)).append('`');
+                }
             }
-            if(!conditionString.equals("")) sql += " WHERE " + conditionString;
-            
-            return Query.executeQuery(sql + ";");
+            return sql.toString();
         }
         
         /**
@@ -371,31 +565,28 @@ public class Query {
         }
         
         /**
-         * Calculates the sum of the rows in the specified column
-         * @return <b>double</b> sum of rows in a specified column
+         * Calculates the sum of the rows in the specified columns.<br />
+         * If several columns are selected, their sums are added together.
+         * @return <b>double</b> sum of rows in the specified columns
          */
         public double sum() {
-            String sql = "SELECT sum(";
-            
-            String columnString = "";
-            if(instance.columns.isEmpty()) columnString = "*";
-            else {
-                for(String str : instance.columns) {
-                    if(!columnString.equals("")) columnString += ", ";
-                    else columnString += "`" + str + "`";
-                }
+            if(columns.isEmpty()) return 0;
+            StringBuilder sql = new StringBuilder("SELECT ");
+            for(int i = 0; i < columns.size(); i++) {
+                if(i > 0) sql.append(" + ");
+                sql.append("IFNULL(SUM(`").append(columns.get(i)).append("`), 0)");
             }
-            sql += columnString + ") as `temp` FROM `" + LocalConfiguration.DBPrefix.toString() + table + "`";
+            sql.append(" as `temp` FROM ");
+            appendTable(sql);
             
-            String conditionString = "";
-            for(String str : instance.conditions) {
-                if(!conditionString.equals("")) conditionString += " AND ";
-                conditionString += str;
-            }
-            if(!conditionString.equals("")) sql += " WHERE " + conditionString;
+            List<Object> params = new ArrayList<Object>(conditionValues.size());
+            appendConditions(sql, params);
             
-            try { return Query.executeQuery(sql + ";").get(0).asDouble("temp"); }
-            catch (Exception e) { return 0; }
+            try {
+                QueryResult result = Query.executeQuery(table, sql.toString(), params, fromReplica).get(0);
+                if(result.isNull(0)) return 0;
+                return result.getDouble(0);
+            } catch (Exception e) { return 0; }
         }
         
         /**
@@ -403,30 +594,26 @@ public class Query {
          * @return <b>true</b> if the value was successfully inserted, <b>false</b> if an error occurred
          */
         public boolean insert() {
-            String sql = "INSERT INTO `" + LocalConfiguration.DBPrefix.toString() + table + "` (";
+            StringBuilder sql = new StringBuilder("INSERT INTO ");
+            appendTable(sql);
+            sql.append(" (");
             
-            String fieldString = "";
-            String valueString = "";
-            Iterator<Entry<Object, Object>> it = instance.values.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<Object, Object> pairs = (Entry<Object, Object>) it.next();
-                if(!fieldString.equals("")) fieldString += ", ";
-                if(!valueString.equals("")) valueString += ", ";
-                
-                fieldString += "`" + pairs.getKey().toString() + "`";
-                valueString += "'" + Util.parseString(pairs.getValue().toString()) + "'";
-                it.remove();
-            }
-            sql += fieldString + ") VALUES (" + valueString + ")";
-            
-            String conditionString = "";
-            for(String str : instance.conditions) {
-                if(!conditionString.equals("")) conditionString += " AND ";
-                conditionString += str;
+            List<Object> params = new ArrayList<Object>(values.size() + conditionValues.size());
+            StringBuilder placeholders = new StringBuilder();
+            for(Entry<String, Object> entry : values.entrySet()) {
+                if(!params.isEmpty()) {
+                    sql.append(", ");
+                    placeholders.append(", ");
+                }
+                sql.append('`').append(entry.getKey()).append('`');
+                placeholders.append('?');
+                params.add(entry.getValue());
             }
-            if(!conditionString.equals("")) sql += " WHERE " + conditionString;
+            values.clear();
+            sql.append(") VALUES (").append(placeholders).append(")");
             
-            return executeUpdate(sql + ";");
+            appendConditions(sql, params);
+            return executeUpdate(table, Operation.Insert, sql.toString(), params);
         }
         
         /**
@@ -434,27 +621,7 @@ public class Query {
          * @return <b>true</b> if the value was successfully updated, <b>false</b> if an error occurred
          */
         public boolean update() {
-            String sql = "UPDATE `" + LocalConfiguration.DBPrefix.toString() + table + "`";
-            
-            String valueString = "";
-            Iterator<Entry<Object, Object>> it = instance.values.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<Object, Object> pairs = (Entry<Object, Object>) it.next();
-                if(!valueString.equals("")) valueString += ", ";
-                
-                valueString += "`" + pairs.getKey().toString() + "`='" + Util.parseString(pairs.getValue().toString()) + "'";
-                it.remove();
-            }
-            sql += " SET " + valueString;
-            
-            String conditionString = "";
-            for(String str : instance.conditions) {
-                if(!conditionString.equals("")) conditionString += " AND ";
-                conditionString += str;
-            }
-            if(!conditionString.equals("")) sql += " WHERE " + conditionString;
-            
-            return executeUpdate(sql + ";");
+            return update(false);
         }
         
         /**
@@ -463,28 +630,123 @@ public class Query {
          * @return <b>true</b> if the value was successfully updated, <b>false</b> if an error occurred
          */
         public boolean update(boolean merged) {
-            if(!merged) return update();
-            String sql = "UPDATE `" + LocalConfiguration.DBPrefix.toString() + table + "`";
+            StringBuilder sql = new StringBuilder("UPDATE ");
+            appendTable(sql);
+            sql.append(" SET ");
             
-            String valueString = "";
-            Iterator<Entry<Object, Object>> it = instance.values.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<Object, Object> pairs = (Entry<Object, Object>) it.next();
-                if(!valueString.equals("")) valueString += ", ";
-                
-                valueString += "`" + pairs.getKey().toString() + "` = `" + pairs.getKey().toString() + "` + '" + pairs.getValue().toString() + "'";
-                it.remove();
+            List<Object> params = new ArrayList<Object>(values.size() + conditionValues.size());
+            for(Entry<String, Object> entry : values.entrySet()) {
+                if(!params.isEmpty()) sql.append(", ");
+                sql.append('`').append(entry.getKey()).append("` = ");
+                if(merged) sql.append('`').append(entry.getKey()).append("` + ");
+                sql.append('?');
+                params.add(entry.getValue());
             }
-            sql += " SET " + valueString;
+            values.clear();
             
-            String conditionString = "";
-            for(String str : instance.conditions) {
-                if(!conditionString.equals("")) conditionString += " AND ";
-                conditionString += str;
+            appendConditions(sql, params);
+            return executeUpdate(table, Operation.Update, sql.toString(), params);
+        }
+        
+        /**
+         * Builds and runs the INSERT ... ON DUPLICATE KEY UPDATE query.<br />
+         * Column conditions are used as the key of the row; if the row does not exist, it is inserted with the key and the values,
+         * otherwise the values overwrite the existing ones. The table must have a unique key on the condition columns.
+         * @return <b>true</b> if the row was inserted or updated, <b>false</b> if an error occurred
+         */
+        public boolean upsert() {
+            return upsert(false);
+        }
+        
+        /**
+         * Builds and runs the INSERT ... ON DUPLICATE KEY UPDATE query.<br />
+         * Column conditions are used as the key of the row; if the row does not exist, it is inserted with the key and the values.
+         * The table must have a unique key on the condition columns.
+         * @param additive If <b>true</b>, the values are added to the existing ones, otherwise they overwrite them
+         * @return <b>true</b> if the row was inserted or updated, <b>false</b> if an error occurred
+         */
+        public boolean upsert(boolean additive) {
+            return upsert(additive, new DBTable[0]);
+        }
+        
+        /**
+         * Builds and runs the INSERT ... ON DUPLICATE KEY UPDATE query.<br />
+         * Column conditions are used as the key of the row; if the row does not exist, it is inserted with the key and the values.
+         * The table must have a unique key on the condition columns.
+         * @param additive If <b>true</b>, the values are added to the existing ones, otherwise they overwrite them
+         * @param absolute Columns that always overwrite the existing values, even if the query is additive
+         * @return <b>true</b> if the row was inserted or updated, <b>false</b> if an error occurred
+         */
+        public boolean upsert(boolean additive, DBTable... absolute) {
+            List<String> overwrite = new ArrayList<String>(absolute.length);
+            for(DBTable column : absolute) overwrite.add(column.getColumnName());
+            return upsert(additive, false, overwrite);
+        }
+        
+        /**
+         * Builds and runs the INSERT ... ON DUPLICATE KEY UPDATE query that leaves existing rows untouched.<br />
+         * Column conditions are used as the key of the row; if the row does not exist, it is inserted with the key and the values.
+         * Unlike a plain INSERT, the query does not fail if another server has inserted the row first.
+         * @return <b>true</b> if the row was inserted or already existed, <b>false</b> if an error occurred
+         */
+        public boolean insertIfAbsent() {
+            return upsert(false, true, new ArrayList<String>(0));
+        }
+        
+        /**
+         * Builds and runs the INSERT ... ON DUPLICATE KEY UPDATE query
+         * @param additive If <b>true</b>, the values are added to the existing ones, otherwise they overwrite them
+         * @param preserve If <b>true</b>, existing rows are not updated at all
+         * @param overwrite Columns that always overwrite the existing values, even if the query is additive
+         * @return <b>true</b> if the row was inserted or updated, <b>false</b> if an error occurred
+         */
+        private boolean upsert(boolean additive, boolean preserve, List<String> overwrite) {
+            if(values.isEmpty()) return true;
+            
+            StringBuilder sql = new StringBuilder("INSERT INTO ");
+            appendTable(sql);
+            sql.append(" (");
+            
+            List<Object> params = new ArrayList<Object>(keys.size() + values.size());
+            StringBuilder placeholders = new StringBuilder();
+            StringBuilder updates = new StringBuilder();
+            for(Entry<String, Object> entry : keys.entrySet()) {
+                if(!params.isEmpty()) {
+                    sql.append(", ");
+                    placeholders.append(", ");
+                }
+                sql.append('`').append(entry.getKey()).append('`');
+                placeholders.append('?');
+                params.add(entry.getValue());
+            }
+            for(Entry<String, Object> entry : values.entrySet()) {
+                if(keys.containsKey(entry.getKey())) continue;
+                if(!params.isEmpty()) {
+                    sql.append(", ");
+                    placeholders.append(", ");
+                }
+                sql.append('`').append(entry.getKey()).append('`');
+                placeholders.append('?');
+                params.add(entry.getValue());
+                if(preserve) continue;
+                if(updates.length() > 0) updates.append(", ");
+                updates.append('`').append(entry.getKey()).append("` = ");
+                if(greatest.contains(entry.getKey())) {
+                    updates.append("GREATEST(`").append(entry.getKey()).append("`, VALUES(`").append(entry.getKey()).append("`))");
+                    continue;
+                }
+                if(additive && !overwrite.contains(entry.getKey())) updates.append('`').append(entry.getKey()).append("` + ");
+                updates.append("VALUES(`").append(entry.getKey()).append("`)");
+            }
+            values.clear();
+            sql.append(") VALUES (").append(placeholders).append(")");
+            if(updates.length() == 0 && !keys.isEmpty()) {
+                String key = keys.keySet().iterator().next();
+                updates.append('`').append(key).append("` = `").append(key).append('`');
             }
-            if(!conditionString.equals("")) sql += " WHERE " + conditionString;
+            if(updates.length() > 0) sql.append(" ON DUPLICATE KEY UPDATE ").append(updates);
             
-            return executeUpdate(sql + ";");
+            return executeUpdate(table, Operation.Upsert, sql.toString(), params);
         }
         
         /**
@@ -493,31 +755,84 @@ public class Query {
          * @return <b>true</b> if the row was deleted, <b>false</b> if an error occurred
          */
         public boolean delete() {
-            String sql = "DELETE FROM `" + LocalConfiguration.DBPrefix.toString() + table + "`";
+            StringBuilder sql = new StringBuilder("DELETE FROM ");
+            appendTable(sql);
             
-            String conditionString = "";
-            for(String str : instance.conditions) {
-                if(!conditionString.equals("")) conditionString += " AND ";
-                conditionString += str;
+            List<Object> params = new ArrayList<Object>(conditionValues.size());
+            appendConditions(sql, params);
+            return executeUpdate(table, Operation.Delete, sql.toString(), params);
+        }
+        
+        /**
+         * Returns the name of the table this query targets, without the prefix
+         * @return Table name
+         */
+        String getTable() {
+            return table;
+        }
+        
+        /**
+         * Returns the column-value pairs queued for insertion
+         * @return Column values
+         */
+        Map<String, Object> getValues() {
+            return values;
+        }
+        
+        /**
+         * Appends the prefixed table name to the query
+         * @param sql Query to append to
+         */
+        private void appendTable(StringBuilder sql) {
+            sql.append('`').append(LocalConfiguration.DBPrefix.toString()).append(table).append('`');
+        }
+        
+        /**
+         * Appends the WHERE clause to the query, and adds the condition values to the parameter list
+         * @param sql Query to append to
+         * @param params Parameter list
+         */
+        private void appendConditions(StringBuilder sql, List<Object> params) {
+            if(conditions.isEmpty()) return;
+            sql.append(" WHERE ");
+            for(int i = 0; i < conditions.size(); i++) {
+                if(i > 0) sql.append(" AND ");
+                sql.append(conditions.get(i));
             }
-            if(!conditionString.equals("")) sql += " WHERE " + conditionString;
-            
-            return executeUpdate(sql + ";");
+            params.addAll(conditionValues);
         }
         
     }
     
+    /**
+     * Aggregate functions supported by the query builder
+     * @author bitWolfy
+     *
+     */
+    @AllArgsConstructor(access=AccessLevel.PUBLIC)
+    @Getter(AccessLevel.PUBLIC)
+    public enum Aggregate {
+        Sum     ("SUM"),
+        Count   ("COUNT"),
+        Max     ("MAX"),
+        Min     ("MIN");
+        
+        private String function;
+    }
+    
     
     /**
      * Represents the result of a SQL query to the database.<br />
-     * This class wraps around a Map&lt;String, String&gt;, in which the key represents the column name,
-     * and the value represents the value corresponding to the specified column.<br />
-     * This class exists to prevent extremely confusing lists of maps, which can be quite a handful.
+     * Values are stored in their native JDBC types in an array indexed by column. The column index is resolved
+     * once per result set and shared by all of its rows, so a result row is little more than its values.<br />
+     * Numeric getters return <b>-1</b> if the value is <b>null</b> or cannot be converted; use <code>isNull();</code>
+     * to tell the two apart.
      * @author bitWolfy
      *
      */
     public class QueryResult {
-        private Map<String, String> fields;
+        private Map<String, Integer> columns;
+        private Object[] values;
         
         /**
          * <b>Default constructor.</b><br />
@@ -525,7 +840,102 @@ public class Query {
          * @param fields Column-value pairs
          */
         public QueryResult(Map<String, String> fields) {
-            this.fields = fields;
+            this.columns = new HashMap<String, Integer>(fields.size() * 2);
+            this.values = new Object[fields.size()];
+            int i = 0;
+            for(Entry<String, String> entry : fields.entrySet()) {
+                columns.put(entry.getKey(), i);
+                values[i] = entry.getValue();
+                i++;
+            }
+        }
+        
+        /**
+         * <b>Constructor.</b><br />
+         * Creates a new QueryResult based on the specified column index and values
+         * @param columns Column index, shared between the rows of a single result set
+         * @param values Column values, in result set order
+         */
+        public QueryResult(Map<String, Integer> columns, Object[] values) {
+            this.columns = columns;
+            this.values = values;
+        }
+        
+        /**
+         * Returns the index of the specified column
+         * @param column Column name
+         * @return Column index, or <b>-1</b> if the column is not in the result
+         */
+        public int indexOf(String column) {
+            Integer index = columns.get(column);
+            if(index == null) return -1;
+            return index;
+        }
+        
+        /**
+         * Returns the index of the specified column
+         * @param column Column name
+         * @return Column index, or <b>-1</b> if the column is not in the result
+         */
+        public int indexOf(DBTable column) {
+            return indexOf(column.getColumnName());
+        }
+        
+        /**
+         * Returns the number of columns in the result
+         * @return Number of columns
+         */
+        public int size() {
+            return values.length;
+        }
+        
+        /**
+         * Returns the raw value of the column with the specified index
+         * @param index Column index
+         * @return Column value, or <b>null</b> if there isn't one
+         */
+        public Object get(int index) {
+            if(index < 0 || index >= values.length) return null;
+            return values[index];
+        }
+        
+        /**
+         * Checks if the value of the column with the specified index is <b>null</b>
+         * @param index Column index
+         * @return <b>true</b> if the value is <b>null</b> or the column does not exist, <b>false</b> otherwise
+         */
+        public boolean isNull(int index) {
+            return get(index) == null;
+        }
+        
+        /**
+         * Checks if the value of the specified column is <b>null</b>
+         * @param column Column name
+         * @return <b>true</b> if the value is <b>null</b> or the column does not exist, <b>false</b> otherwise
+         */
+        public boolean isNull(String column) {
+            return isNull(indexOf(column));
+        }
+        
+        /**
+         * Checks if the value of the specified column is <b>null</b>
+         * @param column Column name
+         * @return <b>true</b> if the value is <b>null</b> or the column does not exist, <b>false</b> otherwise
+         */
+        public boolean isNull(DBTable column) {
+            return isNull(indexOf(column));
+        }
+        
+        /**
+         * Returns the value of the column with the specified index.
+         * @param index Column index
+         * @return <b>String</b> The value of the specified column, or <b>null</b> if there isn't one.
+         */
+        public String getString(int index) {
+            Object value = get(index);
+            if(value == null) return null;
+            if(value instanceof Boolean) return ((Boolean) value) ? "1" : "0";
+            return value.toString();
         }
         
         /**
@@ -534,7 +944,7 @@ public class Query {
          * @return <b>String</b> The value of the specified column, or <b>null</b> if there isn't one.
          */
         public String asString(String column) {
-            return fields.get(column.toString());
+            return getString(indexOf(column));
         }
         
         /**
@@ -543,88 +953,168 @@ public class Query {
          * @return <b>String</b> The value of the specified column, or <b>null</b> if there isn't one.
          */
         public String asString(DBTable column) {
-            return asString(column.getColumnName());
+            return getString(indexOf(column));
+        }
+        
+        /**
+         * Returns the value of the column with the specified index.
+         * @param index Column index
+         * @return <b>boolean</b> The value of the specified column, or <b>false</b> if there isn't one.
+         */
+        public boolean getBoolean(int index) {
+            Object value = get(index);
+            if(value == null) return false;
+            if(value instanceof Boolean) return (Boolean) value;
+            if(value instanceof Number) return ((Number) value).intValue() != 0;
+            return value.toString().equals("1") || value.toString().equalsIgnoreCase("true");
         }
         
         /**
          * Returns the value of the specified column.
          * @param column Column name
-         * @return <b>boolean</b> The value of the specified column, or <b>null</b> if there isn't one.
+         * @return <b>boolean</b> The value of the specified column, or <b>false</b> if there isn't one.
          */
         public boolean asBoolean(String column) {
-            return fields.get(column).equalsIgnoreCase("1");
+            return getBoolean(indexOf(column));
         }
         
         /**
          * Returns the value of the specified column.
          * @param column Column name
-         * @return <b>boolean</b> The value of the specified column, or <b>null</b> if there isn't one.
+         * @return <b>boolean</b> The value of the specified column, or <b>false</b> if there isn't one.
          */
         public boolean asBoolean(DBTable column) {
-            return asBoolean(column.getColumnName());
+            return getBoolean(indexOf(column));
+        }
+        
+        /**
+         * Returns the value of the column with the specified index.
+         * @param index Column index
+         * @return <b>int</b> The value of the specified column, or <b>-1</b> if it is NULL or missing.
+         * @throws NumberFormatException Thrown if the value is not a number
+         */
+        public int getInt(int index) {
+            Object value = get(index);
+            if(value instanceof Number) return ((Number) value).intValue();
+            if(value instanceof Boolean) return ((Boolean) value) ? 1 : 0;
+            if(value == null) return -1;
+            try { return Integer.parseInt(value.toString()); }
+            catch (NumberFormatException e) { throw notANumber(index, value); }
         }
         
         /**
          * Returns the value of the specified column.
          * @param column Column name
-         * @return <b>int</b> The value of the specified column, or <b>null</b> if there isn't one.
+         * @return <b>int</b> The value of the specified column, or <b>-1</b> if it is NULL or missing.
+         * @throws NumberFormatException Thrown if the value is not a number
          */
         public int asInt(String column) {
-            try { return Integer.parseInt(fields.get(column)); }
-            catch (NumberFormatException e) { return -1; }
+            return getInt(indexOf(column));
         }
+        
         /**
          * Returns the value of the specified column.
          * @param column Column name
-         * @return <b>int</b> The value of the specified column, or <b>null</b> if there isn't one.
+         * @return <b>int</b> The value of the specified column, or <b>-1</b> if it is NULL or missing.
+         * @throws NumberFormatException Thrown if the value is not a number
          */
         public int asInt(DBTable column) {
-            return asInt(column.getColumnName());
+            return getInt(indexOf(column));
+        }
+        
+        /**
+         * Returns the value of the column with the specified index.
+         * @param index Column index
+         * @return <b>long</b> The value of the specified column, or <b>-1</b> if it is NULL or missing.
+         * @throws NumberFormatException Thrown if the value is not a number
+         */
+        public long getLong(int index) {
+            Object value = get(index);
+            if(value instanceof Number) return ((Number) value).longValue();
+            if(value instanceof Boolean) return ((Boolean) value) ? 1 : 0;
+            if(value == null) return -1;
+            try { return Long.parseLong(value.toString()); }
+            catch (NumberFormatException e) { throw notANumber(index, value); }
         }
         
         /**
          * Returns the value of the specified column.
          * @param column Column name
-         * @return <b>long</b> The value of the specified column, or <b>null</b> if there isn't one.
+         * @return <b>long</b> The value of the specified column, or <b>-1</b> if it is NULL or missing.
+         * @throws NumberFormatException Thrown if the value is not a number
          */
         public long asLong(String column) {
-            try { return Long.parseLong(fields.get(column)); }
-            catch (NumberFormatException e) { return -1; }
+            return getLong(indexOf(column));
         }
         
         /**
          * Returns the value of the specified column.
          * @param column Column name
-         * @return <b>long</b> The value of the specified column, or <b>null</b> if there isn't one.
+         * @return <b>long</b> The value of the specified column, or <b>-1</b> if it is NULL or missing.
+         * @throws NumberFormatException Thrown if the value is not a number
          */
         public long asLong(DBTable column) {
-            return asLong(column.getColumnName());
+            return getLong(indexOf(column));
+        }
+        
+        /**
+         * Returns the value of the column with the specified index.
+         * @param index Column index
+         * @return <b>double</b> The value of the specified column, or <b>-1</b> if it is NULL or missing.
+         * @throws NumberFormatException Thrown if the value is not a number
+         */
+        public double getDouble(int index) {
+            Object value = get(index);
+            if(value instanceof Number) return ((Number) value).doubleValue();
+            if(value instanceof Boolean) return ((Boolean) value) ? 1 : 0;
+            if(value == null) return -1;
+            try { return Double.parseDouble(value.toString()); }
+            catch (NumberFormatException e) { throw notANumber(index, value); }
+        }
+        
+        /**
+         * Builds the exception thrown when a column value cannot be read as a number.<br />
+         * NULL values are reported with the <b>-1</b> sentinel instead.
+         * @param index Column index
+         * @param value Column value
+         * @return <b>NumberFormatException</b> Exception naming the offending column
+         */
+        private NumberFormatException notANumber(int index, Object value) {
+            String column = String.valueOf(index);
+            for(Entry<String, Integer> entry : columns.entrySet()) {
+                if(entry.getValue().intValue() == index) { column = entry.getKey(); break; }
+            }
+            return new NumberFormatException("Column " + column + " does not hold a number: '" + value + "'");
         }
         
         /**
          * Returns the raw value of the specified column.
          * @param column Column name
-         * @return <b>double</b> The value of the specified column, or <b>null</b> if there isn't one.
+         * @return <b>double</b> The value of the specified column, or <b>-1</b> if it is NULL or missing.
+         * @throws NumberFormatException Thrown if the value is not a number
          */
         public double asDouble(String column) {
-            try { return Double.parseDouble(fields.get(column)); }
-            catch (NumberFormatException e) { return -1; }
+            return getDouble(indexOf(column));
         }
         
         /**
          * Returns the value of the specified column.
          * @param column Column name
-         * @return <b>double</b> The value of the specified column, or <b>null</b> if there isn't one.
+         * @return <b>double</b> The value of the specified column, or <b>-1</b> if it is NULL or missing.
+         * @throws NumberFormatException Thrown if the value is not a number
          */
         public double asDouble(DBTable column) {
-            return asDouble(column.getColumnName());
+            return getDouble(indexOf(column));
         }
         
         /**
-         * Returns all values in the QueryResult
+         * Returns all values in the QueryResult.<br />
+         * The map is built on every call; use the typed getters instead where possible.
          * @return Column values
          */
         public Map<String, String> asMap() {
+            Map<String, String> fields = new HashMap<String, String>(values.length * 2);
+            for(Entry<String, Integer> entry : columns.entrySet()) fields.put(entry.getKey(), getString(entry.getValue()));
             return fields;
         }
     }
@@ -0,0 +1,280 @@
+/*
+ * QueryMetrics.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Collects query counters and latency histograms per table and operation.<br />
+ * Recording only uses atomic operations, so it is safe to call from any number of threads on the hot path.
+ * Latencies are stored in a log-linear histogram with a relative error of about 12%, similar to HdrHistogram.
+ * @author bitWolfy
+ *
+ */
+public class QueryMetrics {
+    
+    private static final ConcurrentMap<String, AtomicReferenceArray<Metric>> tables = new ConcurrentHashMap<String, AtomicReferenceArray<Metric>>();
+    private static volatile long since = System.currentTimeMillis();
+    
+    /**
+     * Records a completed query
+     * @param table Name of the table, without the prefix
+     * @param operation Query operation
+     * @param nanos Time it took to run the query, in nanoseconds
+     * @param rows Number of rows returned or affected
+     * @param failed <b>true</b> if the query failed, <b>false</b> otherwise
+     */
+    public static void record(String table, Operation operation, long nanos, int rows, boolean failed) {
+        AtomicReferenceArray<Metric> metrics = tables.get(table);
+        if(metrics == null) {
+            metrics = new AtomicReferenceArray<Metric>(Operation.values().length);
+            AtomicReferenceArray<Metric> existing = tables.putIfAbsent(table, metrics);
+            if(existing != null) metrics = existing;
+        }
+        
+        Metric metric = metrics.get(operation.ordinal());
+        if(metric == null) {
+            metrics.compareAndSet(operation.ordinal(), null, new Metric(table, operation));
+            metric = metrics.get(operation.ordinal());
+        }
+        metric.record(nanos, rows, failed);
+    }
+    
+    /**
+     * Returns all metrics collected since the last reset
+     * @return List of metrics
+     */
+    public static List<Metric> getMetrics() {
+        List<Metric> list = new ArrayList<Metric>();
+        for(Entry<String, AtomicReferenceArray<Metric>> entry : tables.entrySet()) {
+            AtomicReferenceArray<Metric> metrics = entry.getValue();
+            for(int i = 0; i < metrics.length(); i++) {
+                Metric metric = metrics.get(i);
+                if(metric != null && metric.getCount() > 0) list.add(metric);
+            }
+        }
+        return list;
+    }
+    
+    /**
+     * Returns the time, in seconds, the metrics have been collected for
+     * @return Collection period, in seconds
+     */
+    public static double getPeriod() {
+        return Math.max(1L, System.currentTimeMillis() - since) / 1000.0;
+    }
+    
+    /**
+     * Discards all collected metrics
+     */
+    public static void reset() {
+        tables.clear();
+        since = System.currentTimeMillis();
+    }
+    
+    /**
+     * Represents the counters and the latency histogram of a single table and operation
+     * @author bitWolfy
+     *
+     */
+    public static class Metric {
+        
+        /**
+         * Number of sub-buckets per power of two, as a power of two
+         */
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        
+        /**
+         * Values above this, in microseconds, are recorded in the last bucket
+         */
+        private static final long MAX_VALUE = (1L << 32) - 1;
+        private static final int BUCKETS = (32 - SUB_BITS + 1) * SUB_COUNT;
+        
+        @Getter(AccessLevel.PUBLIC) private final String table;
+        @Getter(AccessLevel.PUBLIC) private final Operation operation;
+        
+        private final AtomicLong count;
+        private final AtomicLong rows;
+        private final AtomicLong errors;
+        private final AtomicLong totalTime;
+        private final AtomicLong maxTime;
+        private final AtomicLongArray histogram;
+        
+        /**
+         * <b>Default constructor</b><br />
+         * Creates a new empty metric
+         * @param table Name of the table
+         * @param operation Query operation
+         */
+        public Metric(String table, Operation operation) {
+            this.table = table;
+            this.operation = operation;
+            
+            this.count = new AtomicLong(0);
+            this.rows = new AtomicLong(0);
+            this.errors = new AtomicLong(0);
+            this.totalTime = new AtomicLong(0);
+            this.maxTime = new AtomicLong(0);
+            this.histogram = new AtomicLongArray(BUCKETS);
+        }
+        
+        /**
+         * Records a completed query
+         * @param nanos Time it took to run the query, in nanoseconds
+         * @param rows Number of rows returned or affected
+         * @param failed <b>true</b> if the query failed, <b>false</b> otherwise
+         */
+        public void record(long nanos, int rows, boolean failed) {
+            long micros = Math.max(0, nanos / 1000L);
+            count.incrementAndGet();
+            if(rows > 0) this.rows.addAndGet(rows);
+            if(failed) errors.incrementAndGet();
+            totalTime.addAndGet(micros);
+            histogram.incrementAndGet(index(micros));
+            
+            long max;
+            while(micros > (max = maxTime.get()) && !maxTime.compareAndSet(max, micros));
+        }
+        
+        /**
+         * Returns the number of recorded queries
+         * @return Number of queries
+         */
+        public long getCount() {
+            return count.get();
+        }
+        
+        /**
+         * Returns the total number of rows returned or affected
+         * @return Number of rows
+         */
+        public long getRows() {
+            return rows.get();
+        }
+        
+        /**
+         * Returns the number of queries that failed
+         * @return Number of errors
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+        
+        /**
+         * Returns the total time spent running the queries
+         * @return Total time, in milliseconds
+         */
+        public double getTotalTime() {
+            return totalTime.get() / 1000.0;
+        }
+        
+        /**
+         * Returns the longest time a single query took
+         * @return Maximum time, in milliseconds
+         */
+        public double getMaxTime() {
+            return maxTime.get() / 1000.0;
+        }
+        
+        /**
+         * Returns the average number of queries per second since the metrics were last reset
+         * @return Queries per second
+         */
+        public double getQps() {
+            return count.get() / getPeriod();
+        }
+        
+        /**
+         * Returns the latency below which the specified share of the queries completed
+         * @param percentile Percentile, between <b>0</b> and <b>100</b>
+         * @return Latency, in milliseconds
+         */
+        public double getPercentile(double percentile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                counts[i] = histogram.get(i);
+                total += counts[i];
+            }
+            if(total == 0) return 0;
+            
+            long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if(seen >= target) return Math.min(upperBound(i), maxTime.get()) / 1000.0;
+            }
+            return getMaxTime();
+        }
+        
+        /**
+         * Returns the histogram bucket for the value
+         * @param value Value, in microseconds
+         * @return Bucket index
+         */
+        private static int index(long value) {
+            if(value > MAX_VALUE) value = MAX_VALUE;
+            if(value < SUB_COUNT) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            int sub = (int) (value >>> shift) & (SUB_COUNT - 1);
+            return (shift + 1) * SUB_COUNT + sub;
+        }
+        
+        /**
+         * Returns the highest value that falls into the bucket
+         * @param index Bucket index
+         * @return Highest value, in microseconds
+         */
+        private static long upperBound(int index) {
+            if(index < SUB_COUNT) return index;
+            int shift = index / SUB_COUNT - 1;
+            int sub = index % SUB_COUNT;
+            return ((long) (SUB_COUNT + sub + 1) << shift) - 1;
+        }
+    
+    }
+    
+    /**
+     * Types of queries that are tracked separately
+     * @author bitWolfy
+     *
+     */
+    public enum Operation {
+        
+        Select,
+        Insert,
+        Update,
+        Upsert,
+        Delete;
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+ * Replica.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import com.wolvencraft.yasp.util.Message;
+
+/**
+ * Represents a read-only replica of the remote database.<br />
+ * Queries that explicitly ask for it are sent to the replica, as long as it is healthy and its replication lag
+ * is within the configured tolerance. The lag is checked at most once per interval, by a single thread; every
+ * other thread uses the cached result. If the replica is unhealthy, lagging, or a query on it fails before any
+ * rows were read, the query is sent to the primary database instead.
+ * @author bitWolfy
+ *
+ */
+public class Replica {
+    
+    @Getter(AccessLevel.PUBLIC) private final ConnectionPool pool;
+    private final long maxLag;
+    private final long checkInterval;
+    
+    @Getter(AccessLevel.PUBLIC) private volatile boolean healthy;
+    @Getter(AccessLevel.PUBLIC) private volatile long lag;
+    private volatile long lastCheck;
+    private final AtomicBoolean checking;
+    
+    private final AtomicLong routed;
+    private final AtomicLong fallbacks;
+    
+    /**
+     * <b>Default constructor</b><br />
+     * Creates a new replica. The replica is checked before the first query is sent to it.
+     * @param pool Connection pool for the replica
+     * @param maxLag Replication lag, in seconds, above which queries are sent to the primary database
+     * @param checkInterval Time, in milliseconds, between the replica health checks
+     */
+    public Replica(ConnectionPool pool, long maxLag, long checkInterval) {
+        this.pool = pool;
+        this.maxLag = Math.max(0L, maxLag);
+        this.checkInterval = Math.max(1000L, checkInterval);
+        
+        this.healthy = false;
+        this.lag = -1;
+        this.lastCheck = 0;
+        this.checking = new AtomicBoolean(false);
+        
+        this.routed = new AtomicLong(0);
+        this.fallbacks = new AtomicLong(0);
+    }
+    
+    /**
+     * Checks if queries may be sent to the replica.<br />
+     * If the last health check is older than the interval, the calling thread runs a new one.
+     * @return <b>true</b> if the replica is healthy and not lagging behind, <b>false</b> otherwise
+     */
+    public boolean isUsable() {
+        if(pool.isClosed()) return false;
+        if(System.currentTimeMillis() - lastCheck >= checkInterval && checking.compareAndSet(false, true)) {
+            try { check(); }
+            finally { checking.set(false); }
+        }
+        return healthy && lag <= maxLag;
+    }
+    
+    /**
+     * Checks the replication status of the replica, and updates the cached lag.<br />
+     * A server that is not replicating from anywhere is treated as having no lag.
+     */
+    private void check() {
+        boolean wasUsable = healthy && lag <= maxLag;
+        Connection connection = null;
+        try {
+            connection = pool.borrow();
+            long seconds = readLag(connection, "SHOW SLAVE STATUS", "Seconds_Behind_Master");
+            if(seconds == -2) seconds = readLag(connection, "SHOW REPLICA STATUS", "Seconds_Behind_Source");
+            connection.commit();
+            
+            healthy = seconds >= 0;
+            lag = seconds;
+            if(wasUsable && !healthy) Message.log(Level.WARNING, "Database replica has stopped replicating, reading from the primary database");
+            else if(wasUsable && lag > maxLag) Message.log(Level.WARNING, "Database replica is " + lag + " seconds behind, reading from the primary database");
+            else if(!wasUsable && healthy && lag <= maxLag) Message.log("Database replica is up to date, resuming reads from the replica");
+        } catch (Throwable t) {
+            if(connection != null) pool.invalidate(connection);
+            connection = null;
+            healthy = false;
+            lag = -1;
+            if(wasUsable) Message.log(Level.WARNING, "Database replica is unreachable, reading from the primary database");
+            Message.debug(Level.FINE, "Replica check failed: " + t.getMessage());
+        } finally {
+            if(connection != null) pool.release(connection);
+            lastCheck = System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Reads the replication lag using the specified statement
+     * @param connection Replica connection
+     * @param query Replication status statement
+     * @param column Name of the column that holds the lag
+     * @return Lag in seconds, <b>0</b> if the server is not a replica, <b>-1</b> if replication is stopped,
+     * or <b>-2</b> if the statement is not supported
+     * @throws SQLException Thrown if the connection failed
+     */
+    private static long readLag(Connection connection, String query, String column) throws SQLException {
+        Statement statement = connection.createStatement();
+        ResultSet rs = null;
+        try {
+            try { rs = statement.executeQuery(query); }
+            catch (SQLException e) {
+                if(!connection.isValid(5)) throw e;
+                return -2;
+            }
+            if(!rs.next()) return 0;
+            long seconds = rs.getLong(column);
+            return rs.wasNull() ? -1 : seconds;
+        } finally {
+            if(rs != null) rs.close();
+            statement.close();
+        }
+    }
+    
+    /**
+     * Runs the SQL query on the replica and passes every row to the handler.<br />
+     * If the query fails, the replica is marked as unhealthy until the next health check.
+     * @param query SQL query with parameter placeholders
+     * @param params Parameter values, in order, or <b>null</b>
+     * @param fetchSize Number of rows to fetch from the server at once, or <b>0</b> to fetch the entire result
+     * @param handler Row handler
+     * @return Outcome of the query
+     */
+    public Result stream(String query, List<Object> params, int fetchSize, RowHandler handler) {
+        boolean started = false;
+        int rows = 0;
+        Connection connection = null;
+        PreparedStatement prepared = null;
+        ResultSet rs = null;
+        try {
+            connection = pool.borrow();
+            prepared = pool.prepare(connection, query);
+            if(params != null) Database.bind(prepared, params);
+            if(fetchSize > 0) prepared.setFetchSize(fetchSize);
+            rs = prepared.executeQuery();
+            
+            ResultSetMetaData meta = rs.getMetaData();
+            String[] columns = new String[meta.getColumnCount()];
+            for (int x = 0; x < columns.length; ++x) columns[x] = meta.getColumnLabel(x + 1);
+            handler.columns(columns);
+            
+            while (rs.next()) {
+                started = true;
+                rows++;
+                if(!handler.handle(rs)) break;
+            }
+            connection.commit();
+            routed.incrementAndGet();
+            Database.setOutcome(rows, false);
+            return Result.Completed;
+        } catch (Throwable t) {
+            if(connection != null) {
+                pool.invalidate(connection);
+                connection = null;
+            }
+            healthy = false;
+            lastCheck = System.currentTimeMillis();
+            Message.log(Level.WARNING, "Query failed on the database replica: " + t.getMessage());
+            if(started) {
+                Database.setOutcome(rows, true);
+                return Result.Failed;
+            }
+            fallbacks.incrementAndGet();
+            return Result.Unavailable;
+        } finally {
+            if(rs != null) {
+                try { rs.close(); }
+                catch (SQLException e) { }
+            }
+            if(prepared != null && fetchSize > 0) {
+                try { prepared.setFetchSize(0); }
+                catch (Throwable t) { }
+            }
+            if(connection != null) pool.release(connection);
+        }
+    }
+    
+    /**
+     * Records a query that was sent to the primary database because the replica could not be used
+     */
+    public void fallback() {
+        fallbacks.incrementAndGet();
+    }
+    
+    /**
+     * Returns the number of queries that were completed on the replica
+     * @return Number of queries
+     */
+    public long getRouted() {
+        return routed.get();
+    }
+    
+    /**
+     * Returns the number of replica queries that were sent to the primary database instead
+     * @return Number of queries
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+    
+    /**
+     * Closes the replica connection pool
+     */
+    public void close() {
+        pool.close();
+    }
+    
+    /**
+     * Outcome of a query sent to the replica
+     * @author bitWolfy
+     *
+     */
+    public enum Result {
+        
+        /** The query was completed */
+        Completed,
+        /** The query failed after some rows had been handled, and must not be repeated */
+        Failed,
+        /** The query was not run, or failed before any rows were handled; it should be sent to the primary database */
+        Unavailable;
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * RowHandler.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Processes the rows of a streamed query one at a time, while the result set is still open.<br />
+ * Used with <code>Database.stream();</code> to scan large tables without loading them into memory.
+ * @author bitWolfy
+ *
+ */
+public abstract class RowHandler {
+    
+    /**
+     * Called once per result set, before the first row is handled.<br />
+     * Column labels are resolved from the result set metadata only once, so implementations
+     * should look up the indexes they need here instead of on every row.
+     * @param columns Column labels, in result set order
+     */
+    public void columns(String[] columns) { }
+    
+    /**
+     * Handles a single row. The result set is positioned on the current row and must not be advanced or closed.
+     * @param row Result set positioned on the row
+     * @return <b>true</b> to continue the scan, <b>false</b> to stop
+     * @throws SQLException Thrown if the row could not be read
+     */
+    public abstract boolean handle(ResultSet row) throws SQLException;
+
+}
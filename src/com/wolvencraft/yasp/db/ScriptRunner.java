@@ -19,6 +19,10 @@
  * 
  * Changelog:
  * 
+ * Consecutive INSERT statements are merged into multi-row inserts, and other
+ * data statements are sent as batches over a single reused statement.
+ * - bitWolfy
+ * 
  * Cut down on unused code and generally optimized for desired tasks.
  * - bitWolfy
  * 
@@ -35,10 +39,18 @@ package com.wolvencraft.yasp.db;
 import java.io.BufferedReader;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.AccessLevel;
+import lombok.Getter;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -47,7 +59,10 @@ import com.wolvencraft.yasp.settings.LocalConfiguration;
 import com.wolvencraft.yasp.util.Message;
 
 /**
- * A library designed to execute extremely long database queries from file
+ * A library designed to execute extremely long database queries from file.<br />
+ * Runs of INSERT statements into the same table and columns are merged into a single multi-row insert;
+ * other data manipulation statements are queued and sent as one batch. Everything else is executed as is,
+ * after the queued statements have been sent.
  * @author MyBatis Team
  * @author ChaseHQ
  * @author bitWolfy
@@ -57,8 +72,19 @@ public class ScriptRunner {
 
     private static final String LINE_SEPARATOR = System.getProperty("line.separator", "\n");
     private static final String DEFAULT_DELIMITER = ";";
+    private static final Pattern VALUES = Pattern.compile("\\sVALUES\\s*\\(", Pattern.CASE_INSENSITIVE);
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final int MAX_MERGED_LENGTH = 512 * 1024;
 
     private Connection connection;
+    private Statement statement;
+    private List<String> batch;
+    private String insertPrefix;
+    private StringBuilder insert;
+    
+    @Getter(AccessLevel.PUBLIC) private int statements;
+    @Getter(AccessLevel.PUBLIC) private int requests;
+    @Getter(AccessLevel.PUBLIC) private long elapsed;
 
     private String delimiter = ScriptRunner.DEFAULT_DELIMITER;
     private boolean fullLineDelimiter = false;
@@ -70,6 +96,10 @@ public class ScriptRunner {
      */
     public ScriptRunner(Connection connection) {
         this.connection = connection;
+        this.statement = null;
+        this.batch = new ArrayList<String>();
+        this.insertPrefix = null;
+        this.insert = null;
     }
     
     /**
@@ -95,7 +125,10 @@ public class ScriptRunner {
      */
     public void runScript(Reader reader) throws RuntimeSQLException {
         Message.log(Level.FINER, "Executing a database script");
-
+        
+        long start = System.currentTimeMillis();
+        statements = 0;
+        requests = 0;
         try {
             StringBuilder command = new StringBuilder();
             try {
@@ -112,6 +145,8 @@ public class ScriptRunner {
                     i++;
                     if(i % 50 == 0 && debug) Message.log(Level.FINEST, "Executing line " + i);
                 }
+                this.flushInsert();
+                this.flushBatch();
                 Message.log(Level.FINER, "Executed " + i + " lines total");
                 this.commitConnection();
                 this.checkForMissingLineTerminator(command);
@@ -120,7 +155,12 @@ public class ScriptRunner {
                 throw new RuntimeSQLException(message, e);
             }
         }
-        finally { this.rollbackConnection(); }
+        finally {
+            this.discardPending();
+            this.closeStatement();
+            this.rollbackConnection();
+            elapsed = System.currentTimeMillis() - start;
+        }
     }
     
     /**
@@ -203,20 +243,124 @@ public class ScriptRunner {
     }
     
     /**
-     * Executes the specified command
+     * Executes the specified command.<br />
+     * INSERT statements are merged with the preceding ones if possible, and other data statements are queued.
+     * Any other statement sends the queued statements first.
      * @param command Command to execute
      * @throws SQLException
      * @throws UnsupportedEncodingException
      */
     private void executeStatement(String command) throws SQLException, UnsupportedEncodingException {
-        Statement statement = this.connection.createStatement();
-        String sql = command;
-        sql = sql.replaceAll("\r\n", "\n");
+        String sql = StringUtils.replace(command, "\r\n", "\n").trim();
+        statements++;
+        
+        String keyword = sql.split("\\s", 2)[0].toUpperCase();
+        if(keyword.equals("INSERT") && this.mergeInsert(sql)) return;
+        this.flushInsert();
         
-        statement.execute(sql);
+        if(keyword.equals("INSERT") || keyword.equals("UPDATE") || keyword.equals("DELETE") || keyword.equals("REPLACE")) {
+            this.addBatch(sql);
+            return;
+        }
         
+        this.flushBatch();
+        this.getStatement().execute(sql);
+        requests++;
+    }
+    
+    /**
+     * Appends the rows of an INSERT statement to the pending multi-row insert.<br />
+     * If the statement targets a different table or columns, the pending insert is queued first.
+     * @param sql INSERT statement
+     * @return <b>true</b> if the statement was merged, <b>false</b> if it cannot be merged
+     * @throws SQLException Thrown if the queued statements could not be sent
+     */
+    private boolean mergeInsert(String sql) throws SQLException {
+        Matcher matcher = VALUES.matcher(sql);
+        if(!matcher.find()) return false;
+        
+        String prefix = sql.substring(0, matcher.start());
+        String rows = sql.substring(matcher.end() - 1);
+        if(!rows.endsWith(")") || rows.toUpperCase().contains("ON DUPLICATE KEY")) return false;
+        
+        if(insert != null && (!prefix.equals(insertPrefix) || insert.length() + rows.length() > MAX_MERGED_LENGTH)) this.flushInsert();
+        
+        if(insert == null) {
+            insertPrefix = prefix;
+            insert = new StringBuilder(sql);
+        } else insert.append(", ").append(rows);
+        return true;
+    }
+    
+    /**
+     * Queues the pending multi-row insert
+     * @throws SQLException Thrown if the queued statements could not be sent
+     */
+    private void flushInsert() throws SQLException {
+        if(insert == null) return;
+        String sql = insert.toString();
+        insert = null;
+        insertPrefix = null;
+        this.addBatch(sql);
+    }
+    
+    /**
+     * Queues a data statement, and sends the batch once it is full
+     * @param sql Statement to queue
+     * @throws SQLException Thrown if the queued statements could not be sent
+     */
+    private void addBatch(String sql) throws SQLException {
+        this.getStatement().addBatch(sql);
+        batch.add(sql);
+        if(batch.size() >= MAX_BATCH_SIZE) this.flushBatch();
+    }
+    
+    /**
+     * Sends all queued statements to the database as a single batch
+     * @throws SQLException Thrown if one of the statements failed
+     */
+    private void flushBatch() throws SQLException {
+        if(batch.isEmpty()) return;
+        try {
+            statement.executeBatch();
+            requests++;
+        } catch (BatchUpdateException e) {
+            int[] counts = e.getUpdateCounts();
+            int failed = counts == null ? 0 : Math.min(counts.length, batch.size() - 1);
+            throw new SQLException("Error executing: " + batch.get(failed) + ". Cause: " + e.getMessage(), e);
+        } finally {
+            batch.clear();
+            statement.clearBatch();
+        }
+    }
+    
+    /**
+     * Drops the statements that were not sent
+     */
+    private void discardPending() {
+        insert = null;
+        insertPrefix = null;
+        batch.clear();
+    }
+    
+    /**
+     * Returns the statement shared by all commands in the script, creating it if necessary
+     * @return Statement
+     * @throws SQLException Thrown if the statement could not be created
+     */
+    private Statement getStatement() throws SQLException {
+        if(statement == null) statement = this.connection.createStatement();
+        return statement;
+    }
+    
+    /**
+     * Closes the shared statement
+     */
+    private void closeStatement() {
+        if(statement == null) return;
         try { statement.close(); }
         catch (Exception e) { }
+        statement = null;
     }
     
 }
@@ -0,0 +1,314 @@
+/*
+ * SlowQueryLog.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.db;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+
+import com.wolvencraft.yasp.db.Query.QueryResult;
+import com.wolvencraft.yasp.util.Message;
+
+/**
+ * Writes statements that took longer than the configured threshold to a rotating log file.<br />
+ * Every entry records the duration, the class that issued the statement, and, for SELECT statements, the
+ * EXPLAIN output. EXPLAIN is run on the database executor, never on the thread that ran the slow statement.
+ * Statements are grouped by their fingerprint, with the literals and the repeated value lists removed; each
+ * fingerprint is logged at most once per interval, and the skipped occurrences are counted in the next entry.
+ * @author bitWolfy
+ *
+ */
+public class SlowQueryLog {
+    
+    private static final int MAX_QUERY_LENGTH = 4000;
+    private static final int MAX_PARAMS_LENGTH = 500;
+    private static final int MAX_FINGERPRINTS = 1000;
+    
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.)*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern VALUE_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)(?:\\s*,\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\))+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    
+    private final File file;
+    private final long threshold;
+    private final long interval;
+    private final long maxSize;
+    private final int files;
+    private final boolean explain;
+    private final ConcurrentMap<String, Fingerprint> fingerprints;
+    
+    private final AtomicLong logged;
+    private final AtomicLong suppressed;
+    
+    /**
+     * <b>Default constructor</b><br />
+     * Creates a new slow query log
+     * @param file Log file
+     * @param threshold Duration, in milliseconds, above which a statement is logged
+     * @param interval Time, in milliseconds, during which the same fingerprint is logged only once
+     * @param maxSize Size, in bytes, after which the log file is rotated
+     * @param files Number of rotated files to keep
+     * @param explain <b>true</b> to capture EXPLAIN output for SELECT statements, <b>false</b> otherwise
+     */
+    public SlowQueryLog(File file, long threshold, long interval, long maxSize, int files, boolean explain) {
+        this.file = file;
+        this.threshold = threshold;
+        this.interval = Math.max(0L, interval);
+        this.maxSize = Math.max(1024L, maxSize);
+        this.files = Math.max(1, files);
+        this.explain = explain;
+        this.fingerprints = new ConcurrentHashMap<String, Fingerprint>();
+        
+        this.logged = new AtomicLong(0);
+        this.suppressed = new AtomicLong(0);
+    }
+    
+    /**
+     * Checks if the log is enabled
+     * @return <b>true</b> if slow statements are logged, <b>false</b> otherwise
+     */
+    public boolean isEnabled() {
+        return threshold > 0;
+    }
+    
+    /**
+     * Logs the statement if it took longer than the threshold
+     * @param query SQL query
+     * @param params Parameter values, or <b>null</b>
+     * @param nanos Time it took to run the statement, in nanoseconds
+     */
+    public void check(final String query, final List<Object> params, long nanos) {
+        final long millis = nanos / 1000000L;
+        if(threshold <= 0 || millis < threshold) return;
+        if(query.regionMatches(true, 0, "EXPLAIN", 0, 7)) return;
+        
+        final String fingerprint = fingerprint(query);
+        final int skipped = acquire(fingerprint);
+        if(skipped < 0) {
+            suppressed.incrementAndGet();
+            return;
+        }
+        logged.incrementAndGet();
+        
+        final String caller = findCaller();
+        if(!explain || !isSelect(query)) {
+            write(millis, caller, skipped, query, params, null);
+            return;
+        }
+        
+        DatabaseExecutor.submit("explain." + fingerprint, new Runnable() {
+            @Override
+            public void run() {
+                write(millis, caller, skipped, query, params, explain(query, params));
+            }
+        });
+    }
+    
+    /**
+     * Claims the right to log the fingerprint
+     * @param fingerprint Statement fingerprint
+     * @return Number of occurrences skipped since the fingerprint was last logged, or <b>-1</b> if it was logged too recently
+     */
+    private int acquire(String fingerprint) {
+        long now = System.currentTimeMillis();
+        Fingerprint entry = fingerprints.get(fingerprint);
+        if(entry == null) {
+            if(fingerprints.size() >= MAX_FINGERPRINTS) fingerprints.clear();
+            Fingerprint existing = fingerprints.putIfAbsent(fingerprint, new Fingerprint(now));
+            if(existing == null) return 0;
+            entry = existing;
+        }
+        
+        long last = entry.lastLogged.get();
+        if(now - last < interval || !entry.lastLogged.compareAndSet(last, now)) {
+            entry.skipped.incrementAndGet();
+            return -1;
+        }
+        return entry.skipped.getAndSet(0);
+    }
+    
+    /**
+     * Runs EXPLAIN for the statement
+     * @param query SQL query
+     * @param params Parameter values, or <b>null</b>
+     * @return EXPLAIN output, one line per row
+     */
+    private static String explain(String query, List<Object> params) {
+        List<QueryResult> rows = Database.executeQuery("EXPLAIN " + query, params);
+        if(rows.isEmpty()) return "  EXPLAIN: not available" + System.getProperty("line.separator");
+        
+        StringBuilder result = new StringBuilder();
+        for(QueryResult row : rows) {
+            result.append("  EXPLAIN:");
+            for(Entry<String, String> column : row.asMap().entrySet()) {
+                result.append(' ').append(column.getKey()).append('=').append(column.getValue());
+            }
+            result.append(System.getProperty("line.separator"));
+        }
+        return result.toString();
+    }
+    
+    /**
+     * Appends an entry to the log file, rotating the file if it is full
+     * @param millis Duration of the statement, in milliseconds
+     * @param caller Class and method that issued the statement
+     * @param skipped Number of occurrences of the fingerprint that were not logged
+     * @param query SQL query
+     * @param params Parameter values, or <b>null</b>
+     * @param explain EXPLAIN output, or <b>null</b>
+     */
+    private synchronized void write(long millis, String caller, int skipped, String query, List<Object> params, String explain) {
+        String newline = System.getProperty("line.separator");
+        StringBuilder entry = new StringBuilder();
+        entry.append('[').append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date())).append("] ")
+             .append(millis).append(" ms, ").append(caller);
+        if(skipped > 0) entry.append(" (").append(skipped).append(" similar not logged)");
+        entry.append(newline);
+        entry.append("  ").append(truncate(WHITESPACE.matcher(query).replaceAll(" ").trim(), MAX_QUERY_LENGTH)).append(newline);
+        if(params != null && !params.isEmpty()) entry.append("  Parameters: ").append(truncate(params.toString(), MAX_PARAMS_LENGTH)).append(newline);
+        if(explain != null) entry.append(explain);
+        
+        Writer writer = null;
+        try {
+            if(file.length() + entry.length() > maxSize) rotate();
+            writer = new FileWriter(file, true);
+            writer.write(entry.toString());
+        } catch (IOException e) {
+            Message.log(Level.WARNING, "Could not write to " + file.getName() + ": " + e.getMessage());
+        } finally {
+            if(writer != null) {
+                try { writer.close(); }
+                catch (IOException e) { }
+            }
+        }
+    }
+    
+    /**
+     * Shifts the rotated files by one, discarding the oldest one
+     */
+    private void rotate() {
+        new File(file.getPath() + "." + files).delete();
+        for(int i = files - 1; i >= 1; i--) {
+            File rotated = new File(file.getPath() + "." + i);
+            if(rotated.exists()) rotated.renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+        file.renameTo(new File(file.getPath() + ".1"));
+    }
+    
+    /**
+     * Normalizes the statement, so that statements of the same shape share a fingerprint.<br />
+     * Literals are replaced with placeholders, and multi-row value lists are collapsed into a single row.
+     * @param query SQL query
+     * @return Statement fingerprint
+     */
+    static String fingerprint(String query) {
+        String result = STRING_LITERAL.matcher(query).replaceAll("?");
+        result = NUMBER_LITERAL.matcher(result).replaceAll("?");
+        result = VALUE_LIST.matcher(result).replaceAll("(...)");
+        return WHITESPACE.matcher(result).replaceAll(" ").trim().toLowerCase();
+    }
+    
+    /**
+     * Finds the class and method outside of the database layer that issued the statement
+     * @return Class and method name
+     */
+    private static String findCaller() {
+        String dbPackage = SlowQueryLog.class.getPackage().getName();
+        for(StackTraceElement frame : new Throwable().getStackTrace()) {
+            String className = frame.getClassName();
+            int split = className.lastIndexOf('.');
+            String packageName = split == -1 ? "" : className.substring(0, split);
+            if(packageName.equals(dbPackage) || packageName.startsWith("java.")) continue;
+            return className.substring(split + 1) + "." + frame.getMethodName();
+        }
+        return "unknown";
+    }
+    
+    /**
+     * Checks if the statement is a SELECT statement
+     * @param query SQL query
+     * @return <b>true</b> if the statement is a SELECT, <b>false</b> otherwise
+     */
+    private static boolean isSelect(String query) {
+        return query.trim().regionMatches(true, 0, "SELECT", 0, 6);
+    }
+    
+    /**
+     * Shortens the string to the specified length
+     * @param str String to shorten
+     * @param length Maximum length
+     * @return Shortened string
+     */
+    private static String truncate(String str, int length) {
+        if(str.length() <= length) return str;
+        return str.substring(0, length) + "... (" + str.length() + " characters)";
+    }
+    
+    /**
+     * Returns the number of slow statements that were logged
+     * @return Number of logged statements
+     */
+    public long getLogged() {
+        return logged.get();
+    }
+    
+    /**
+     * Returns the number of slow statements that were not logged because their fingerprint was logged recently
+     * @return Number of suppressed statements
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+    
+    /**
+     * Tracks when a fingerprint was last logged
+     * @author bitWolfy
+     *
+     */
+    private static class Fingerprint {
+        
+        private final AtomicLong lastLogged;
+        private final AtomicInteger skipped;
+        
+        /**
+         * <b>Default constructor</b><br />
+         * Creates a new fingerprint entry
+         * @param lastLogged Time the fingerprint was logged
+         */
+        public Fingerprint(long lastLogged) {
+            this.lastLogged = new AtomicLong(lastLogged);
+            this.skipped = new AtomicInteger(0);
+        }
+    
+    }
+
+}
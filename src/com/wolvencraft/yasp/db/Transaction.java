@@ -0,0 +1,413 @@
+/*
+ * Transaction.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import com.wolvencraft.yasp.exceptions.DatabaseConnectionException;
+import com.wolvencraft.yasp.util.ExceptionHandler;
+import com.wolvencraft.yasp.util.Message;
+
+/**
+ * Groups the parameterized updates made by the current thread into a single database transaction.<br />
+ * While a transaction is active, {@link Database#executeUpdate(String, List)} runs its statements on the
+ * transaction connection instead of committing each one separately. The transaction is committed when it
+ * is closed, or every time the statement limit is reached.<br />
+ * If a statement or a commit fails, the uncommitted statements are rolled back and replayed once. A statement
+ * that is rejected again is discarded only if the failure is permanent; otherwise, and if the connection is lost,
+ * the uncommitted statements are stored in the local journal and replayed on the next synchronization.
+ * Statements that cannot be journaled either are discarded, and their discard tasks are run.
+ * @author bitWolfy
+ *
+ */
+public class Transaction {
+    
+    private static final ThreadLocal<Transaction> current = new ThreadLocal<Transaction>();
+    
+    private static final AtomicLong statements = new AtomicLong(0);
+    private static final AtomicLong commits = new AtomicLong(0);
+    private static final AtomicLong rollbacks = new AtomicLong(0);
+    private static final AtomicLong retries = new AtomicLong(0);
+    
+    private final int limit;
+    private final List<Entry> scope;
+    private Connection connection;
+    private int depth;
+    
+    /**
+     * <b>Default constructor</b><br />
+     * Creates a new transaction
+     * @param limit Number of statements after which the transaction is committed, or <b>0</b> to commit only when it is closed
+     */
+    private Transaction(int limit) {
+        this.limit = Math.max(0, limit);
+        this.scope = new ArrayList<Entry>();
+        this.connection = null;
+        this.depth = 1;
+    }
+    
+    /**
+     * Starts a transaction on the current thread.<br />
+     * If a transaction is already active, the new scope joins it, and the outermost scope commits.
+     * Every transaction must be closed with {@link #close()}.
+     * @param limit Number of statements after which the transaction is committed, or <b>0</b> to commit only when it is closed
+     * @return Active transaction
+     */
+    public static Transaction begin(int limit) {
+        Transaction transaction = current.get();
+        if(transaction != null) {
+            transaction.depth++;
+            return transaction;
+        }
+        transaction = new Transaction(limit);
+        current.set(transaction);
+        return transaction;
+    }
+    
+    /**
+     * Returns the transaction that is active on the current thread
+     * @return Active transaction, or <b>null</b> if there is none
+     */
+    public static Transaction getCurrent() {
+        return current.get();
+    }
+    
+    /**
+     * Runs the task once the statement that was just run on the current thread is committed.<br />
+     * If there is no active transaction, or the statement has already been committed, the task is run immediately.
+     * If the statement is discarded, the task is never run.
+     * @param task Task to run
+     */
+    public static void afterCommit(Runnable task) {
+        Transaction transaction = current.get();
+        if(transaction == null || transaction.scope.isEmpty()) {
+            task.run();
+            return;
+        }
+        transaction.scope.get(transaction.scope.size() - 1).callbacks.add(task);
+    }
+    
+    /**
+     * Runs the task if the statement that was just run on the current thread is discarded without being written.<br />
+     * Callers use this to restore the changes they have handed over to the statement, so they are written on the next sync.
+     * If there is no active transaction, or the statement has already been committed, the task is never run.
+     * @param task Task to run
+     */
+    public static void onDiscard(Runnable task) {
+        Transaction transaction = current.get();
+        if(transaction == null || transaction.scope.isEmpty()) return;
+        transaction.scope.get(transaction.scope.size() - 1).discarded.add(task);
+    }
+    
+    /**
+     * Runs the statement as part of the transaction
+     * @param query SQL query with parameter placeholders
+     * @param params Parameter values, in order
+     * @return <b>true</b> if the statement changed any rows, <b>false</b> otherwise
+     */
+    boolean execute(String query, List<Object> params) {
+        Entry entry = new Entry(query, params);
+        statements.incrementAndGet();
+        try {
+            int rows = run(entry);
+            scope.add(entry);
+            Database.setOutcome(rows, false);
+            if(limit > 0 && scope.size() >= limit) return commit() && rows > 0;
+            return rows > 0;
+        } catch (SQLException e) {
+            ExceptionHandler.handle(e);
+            Database.setOutcome(0, true);
+            return retry(entry);
+        } catch (DatabaseConnectionException e) {
+            Message.log(Level.SEVERE, e.getMessage());
+            Database.setOutcome(0, true);
+            return journal(entry);
+        }
+    }
+    
+    /**
+     * Commits the statements run since the last commit.<br />
+     * If the commit fails, the statements are rolled back and replayed once.
+     * @return <b>true</b> if the statements were committed, <b>false</b> otherwise
+     */
+    public boolean commit() {
+        if(scope.isEmpty()) return true;
+        if(connection != null) {
+            try {
+                connection.commit();
+                commits.incrementAndGet();
+                complete();
+                return true;
+            } catch (SQLException e) {
+                ExceptionHandler.handle(e);
+            }
+        }
+        
+        rollback();
+        retries.incrementAndGet();
+        try {
+            replay();
+            connection.commit();
+            commits.incrementAndGet();
+            complete();
+            return true;
+        } catch (SQLException e) {
+            Message.log(Level.SEVERE, "Failed to commit a transaction: " + e.getMessage());
+            rollback();
+        } catch (DatabaseConnectionException e) {
+            Message.log(Level.SEVERE, e.getMessage());
+        }
+        return journal(null);
+    }
+    
+    /**
+     * Closes the transaction scope.<br />
+     * If this is the outermost scope, the remaining statements are committed and the connection is released.
+     */
+    public void close() {
+        if(--depth > 0) return;
+        try { commit(); }
+        finally {
+            current.remove();
+            Database.releaseConnection(connection);
+            connection = null;
+        }
+    }
+    
+    /**
+     * Rolls back the failed scope and replays it, followed by the statement that failed.<br />
+     * If the statement is rejected again because of a permanent error, the scope is replayed without it;
+     * after any other failure, the scope is journaled along with the statement.
+     * @param failed Statement that failed
+     * @return <b>true</b> if the failed statement went through on retry, <b>false</b> otherwise
+     */
+    private boolean retry(Entry failed) {
+        rollback();
+        retries.incrementAndGet();
+        try {
+            replay();
+            int rows = run(failed);
+            scope.add(failed);
+            return rows > 0;
+        } catch (SQLException e) {
+            rollback();
+            if(connection == null || !Journal.isPermanent(e)) return journal(failed);
+            Message.log(Level.WARNING, "Discarding a statement that was rejected by the database: " + e.getMessage());
+        } catch (DatabaseConnectionException e) {
+            Message.log(Level.SEVERE, e.getMessage());
+            return journal(failed);
+        }
+        
+        try {
+            replay();
+        } catch (SQLException e) {
+            rollback();
+            journal(null);
+        } catch (DatabaseConnectionException e) {
+            journal(null);
+        }
+        return false;
+    }
+    
+    /**
+     * Runs the tasks waiting for the scope to be committed, and clears the scope
+     */
+    private void complete() {
+        for(Entry entry : scope) runAll(entry.callbacks);
+        scope.clear();
+    }
+    
+    /**
+     * Runs the tasks, handling the exceptions they throw
+     * @param tasks Tasks to run
+     */
+    private static void runAll(List<Runnable> tasks) {
+        for(Runnable task : tasks) {
+            try { task.run(); }
+            catch (Throwable t) { ExceptionHandler.handle(t); }
+        }
+    }
+    
+    /**
+     * Runs a single statement on the transaction connection, borrowing one if necessary
+     * @param entry Statement to run
+     * @return Number of rows changed
+     * @throws SQLException Thrown if the statement failed
+     * @throws DatabaseConnectionException Thrown if no connection could be obtained
+     */
+    private int run(Entry entry) throws SQLException, DatabaseConnectionException {
+        if(connection == null) connection = Database.borrowConnection();
+        PreparedStatement statement = Database.getPool().prepare(connection, entry.query);
+        statement.clearParameters();
+        Database.bind(statement, entry.params);
+        return statement.executeUpdate();
+    }
+    
+    /**
+     * Runs all uncommitted statements again
+     * @throws SQLException Thrown if a statement failed
+     * @throws DatabaseConnectionException Thrown if no connection could be obtained
+     */
+    private void replay() throws SQLException, DatabaseConnectionException {
+        for(Entry entry : scope) run(entry);
+    }
+    
+    /**
+     * Rolls back the uncommitted statements.<br />
+     * If the connection is no longer valid, it is discarded, and a new one is borrowed on the next statement.
+     */
+    private void rollback() {
+        rollbacks.incrementAndGet();
+        if(connection == null) return;
+        try { connection.rollback(); }
+        catch (SQLException e) { }
+        
+        boolean valid;
+        try { valid = connection.isValid(10); }
+        catch (Throwable t) { valid = false; }
+        if(valid) return;
+        
+        Database.getPool().invalidate(connection);
+        connection = null;
+        Database.reportFailure();
+        Database.reconnect();
+    }
+    
+    /**
+     * Stores the uncommitted statements in the local journal, and clears the scope.<br />
+     * Statements that could not be journaled are discarded, and their discard tasks are run.
+     * @param failed Statement that failed in addition to the scope, or <b>null</b>
+     * @return <b>true</b> if the statements were journaled, <b>false</b> if any of them were discarded
+     */
+    private boolean journal(Entry failed) {
+        if(failed != null) scope.add(failed);
+        Journal journal = Database.getJournal();
+        int stored = 0;
+        if(journal != null) {
+            for(Entry entry : scope) {
+                if(!journal.append(entry.query, entry.params)) break;
+                stored++;
+            }
+        }
+        
+        boolean result = stored == scope.size();
+        if(!result) Message.log(Level.WARNING, "Discarded " + (scope.size() - stored) + " uncommitted statements");
+        for(int i = 0; i < scope.size(); i++) {
+            Entry entry = scope.get(i);
+            runAll(i < stored ? entry.callbacks : entry.discarded);
+        }
+        scope.clear();
+        return result;
+    }
+    
+    /**
+     * Returns the number of statements run inside transactions
+     * @return Number of statements
+     */
+    public static long getStatements() {
+        return statements.get();
+    }
+    
+    /**
+     * Returns the number of committed transactions
+     * @return Number of commits
+     */
+    public static long getCommits() {
+        return commits.get();
+    }
+    
+    /**
+     * Returns the number of rolled back transactions
+     * @return Number of rollbacks
+     */
+    public static long getRollbacks() {
+        return rollbacks.get();
+    }
+    
+    /**
+     * Returns the number of times a failed transaction was replayed
+     * @return Number of retries
+     */
+    public static long getRetries() {
+        return retries.get();
+    }
+    
+    /**
+     * Represents a single statement in the transaction
+     * @author bitWolfy
+     *
+     */
+    private static class Entry {
+        
+        private final String query;
+        private final List<Object> params;
+        private final List<Runnable> callbacks;
+        private final List<Runnable> discarded;
+        
+        /**
+         * <b>Default constructor</b><br />
+         * Creates a new statement entry
+         * @param query SQL query with parameter placeholders
+         * @param params Parameter values
+         */
+        public Entry(String query, List<Object> params) {
+            this.query = query;
+            this.params = params;
+            this.callbacks = new ArrayList<Runnable>(0);
+            this.discarded = new ArrayList<Runnable>(0);
+        }
+    
+    }
+    
+    /**
+     * Defines how the synchronization cycle groups its statements into transactions
+     * @author bitWolfy
+     *
+     */
+    public enum TransactionMode {
+        
+        /** Commit every statement separately */
+        None,
+        /** Commit once per player session */
+        Session,
+        /** Commit every time the configured number of statements is reached */
+        Statements;
+        
+        /**
+         * Parses the mode from its name
+         * @param name Mode name
+         * @return Transaction mode, or <b>Session</b> if the name is not valid
+         */
+        public static TransactionMode get(String name) {
+            for(TransactionMode mode : values()) {
+                if(mode.name().equalsIgnoreCase(name)) return mode;
+            }
+            return Session;
+        }
+    }
+
+}
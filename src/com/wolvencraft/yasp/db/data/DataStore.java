@@ -26,6 +26,7 @@ import java.util.List;
 import lombok.AccessLevel;
 import lombok.Getter;
 
+import com.wolvencraft.yasp.db.BatchWriter;
 import com.wolvencraft.yasp.session.OnlineSession;
 import com.wolvencraft.yasp.util.Message;
 
@@ -71,9 +72,21 @@ public abstract class DataStore<N extends NormalData, D extends DetailedData> {
      * If an entry was not synchronized, it will not be removed.
      */
     public void pushData() {
+        BatchWriter batch = new BatchWriter();
+        pushData(batch);
+        batch.flush();
+    }
+    
+    /**
+     * Synchronizes the data from the data store to the database, then removes it from local storage<br />
+     * Tracked entries are kept, and are only written again once they change.
+     * Detailed entries are queued in the specified batch, and are removed once the batch is written.
+     * @param batch Batch writer for detailed entries
+     */
+    public void pushData(BatchWriter batch) {
         for(N entry : getNormalData()) {
            try{
-                 if(((NormalData) entry).pushData(session.getId())) normalData.remove(entry);
+                 if(((NormalData) entry).sync(session.getId()) && !((NormalData) entry).isTracked()) normalData.remove(entry);
            } catch(NullPointerException e ){
                  Message.debug("NPE occurred while saving NormalData: "+ ((NormalData) entry));
                  normalData.remove(entry);
@@ -81,7 +94,7 @@ public abstract class DataStore<N extends NormalData, D extends DetailedData> {
         }   
         for(D entry : getDetailedData()) {
             try{
-                 if(((DetailedData) entry).pushData(session.getId())) detailedData.remove(entry);
+                 batch.add(entry, session.getId(), detailedData);
             } catch(NullPointerException e ){
                  Message.debug("NPE occurred while saving DetailedData: "+ ((DetailedData) entry));
                  detailedData.remove(entry);
@@ -1,5 +1,7 @@
 package com.wolvencraft.yasp.db.data;
 
+import com.wolvencraft.yasp.db.Query.DatabaseQuery;
+
 /**
  * Represents data stored in a log format. New data is appended to the end of the table. No existing data can be changed.<br />
  * Multiple instances of this type could (and should) exist.
@@ -8,11 +10,21 @@ package com.wolvencraft.yasp.db.data;
  */
 public abstract class DetailedData {
     
+    /**
+     * Builds the query that inserts the entry into the database, without running it.<br />
+     * Used by the batch writer to combine entries into multi-row inserts.
+     * @param playerId Player ID
+     * @return INSERT query for the entry
+     */
+    public abstract DatabaseQuery getQuery(int playerId);
+    
     /**
      * Explicitly pushes data to the remote database.<br />
      * If the data holder is marked as <i>on hold</i>, skips the holder
      * @param playerId Player ID
      * @return <b>true</b> if the holder has been synchronized and can be removed, <b>false</b> if it is on hold
      */
-    public abstract boolean pushData(int playerId);
+    public boolean pushData(int playerId) {
+        return getQuery(playerId).insert();
+    }
 }
@@ -1,5 +1,9 @@
 package com.wolvencraft.yasp.db.data;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wolvencraft.yasp.db.Transaction;
+
 /**
  * Represents the "totals" of statistical data. These entries are changing every time their corresponding data type changes.<br />
  * No duplicate entries are allowed.
@@ -8,16 +12,22 @@ package com.wolvencraft.yasp.db.data;
  */
 public abstract class NormalData {
     
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong skipped = new AtomicLong();
+    
+    private volatile boolean dirty = true;
+    
     /**
      * Performs a database operation to fetch the data from the remote database.<br />
-     * If no data is found in the database, the default values are inserted.
+     * If no data is found in the database, the default values are kept; the row is created on the next push.
      * @param playerId Player ID
      */
     public abstract void fetchData(int playerId);
     
     /**
      * Performs a database operation to push the local data to the remote database.<br />
-     * If no data is found in the database, the default values are inserted instead.
+     * The row is upserted in a single statement: it is inserted if it does not exist yet, otherwise its values
+     * are overwritten, or added to if merged data tracking is enabled.
      * @param playerId Player ID
      * @return <b>true</b> if the insertion was successful, <b>false</b> otherwise
      */
@@ -28,4 +38,74 @@ public abstract class NormalData {
      * @param playerId Player ID
      */
     public abstract void clearData(int playerId);
+    
+    /**
+     * Checks if the entry tracks its own changes.<br />
+     * Tracked entries mark themselves dirty when they change, stay in their data store after they are synchronized,
+     * and are skipped until they change again. Untracked entries read their values when they are pushed,
+     * so they are written on every synchronization.
+     * @return <b>true</b> if the entry tracks its changes, <b>false</b> otherwise
+     */
+    public boolean isTracked() {
+        return false;
+    }
+    
+    /**
+     * Checks if the entry has to be written on the next synchronization
+     * @return <b>true</b> if the entry has changed since it was last written, <b>false</b> otherwise
+     */
+    public boolean isDirty() {
+        return dirty || !isTracked();
+    }
+    
+    /**
+     * Marks the entry as changed. Should be called by every method that changes the stored values.
+     */
+    protected void markDirty() {
+        dirty = true;
+    }
+    
+    /**
+     * Pushes the entry to the remote database if it has changed since it was last written.<br />
+     * The entry is marked clean before it is pushed, so changes made while the push is in progress are not lost.
+     * If the transaction the push ran in is discarded, the entry is marked dirty again.
+     * @param playerId Player ID
+     * @return <b>true</b> if the entry was written or skipped, <b>false</b> if it could not be written
+     */
+    public boolean sync(int playerId) {
+        if(!isDirty()) {
+            skipped.incrementAndGet();
+            return true;
+        }
+        
+        dirty = false;
+        if(pushData(playerId)) {
+            written.incrementAndGet();
+            Transaction.onDiscard(new Runnable() {
+                @Override
+                public void run() {
+                    markDirty();
+                }
+            });
+            return true;
+        }
+        dirty = true;
+        return false;
+    }
+    
+    /**
+     * Returns the number of entries written to the database since the plugin was enabled
+     * @return Number of written entries
+     */
+    public static long getWritten() {
+        return written.get();
+    }
+    
+    /**
+     * Returns the number of unchanged entries skipped since the plugin was enabled
+     * @return Number of skipped entries
+     */
+    public static long getSkipped() {
+        return skipped.get();
+    }
 }
@@ -21,15 +21,17 @@
 package com.wolvencraft.yasp.db.data;
 
 import java.net.InetAddress;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import org.bukkit.Bukkit;
 import org.bukkit.World;
 
+import com.wolvencraft.yasp.db.KeyValueWriter;
 import com.wolvencraft.yasp.db.Query;
-import com.wolvencraft.yasp.db.Query.QueryResult;
+import com.wolvencraft.yasp.db.RowHandler;
 import com.wolvencraft.yasp.db.tables.Miscellaneous.ServerStatsTable;
 import com.wolvencraft.yasp.db.tables.Normal;
 import com.wolvencraft.yasp.util.Util;
@@ -114,14 +116,21 @@ public class ServerStatistics {
         maxPlayersOnlineTime = 0;
         maxPlayersAllowed = Bukkit.getMaxPlayers();
         
-        List<QueryResult> entries = Query.table(ServerStatsTable.TableName).selectAll();
-        for(QueryResult entry : entries) {
-            if(entry.asString("key").equalsIgnoreCase("first_startup")) firstStartup = entry.asLong("value");
-            else if(entry.asString("key").equalsIgnoreCase("total_uptime")) totalUptime = entry.asLong("value");
-            else if(entry.asString("key").equalsIgnoreCase("last_shutdown")) lastShutdown = entry.asLong("value");
-            else if(entry.asString("key").equalsIgnoreCase("max_players_online")) maxPlayersOnline = entry.asInt("value");
-            else if(entry.asString("key").equalsIgnoreCase("max_players_online_time")) maxPlayersOnlineTime = entry.asLong("value");
-        }
+        Query.table(ServerStatsTable.TableName).column("key", "value").stream(new RowHandler() {
+            
+            @Override
+            public boolean handle(ResultSet row) throws SQLException {
+                String key = row.getString(1);
+                if(key == null) return true;
+                if(key.equalsIgnoreCase("first_startup")) firstStartup = row.getLong(2);
+                else if(key.equalsIgnoreCase("total_uptime")) totalUptime = row.getLong(2);
+                else if(key.equalsIgnoreCase("last_shutdown")) lastShutdown = row.getLong(2);
+                else if(key.equalsIgnoreCase("max_players_online")) maxPlayersOnline = row.getInt(2);
+                else if(key.equalsIgnoreCase("max_players_online_time")) maxPlayersOnlineTime = row.getLong(2);
+                return true;
+            }
+            
+        });
         if(firstStartup == 0 || firstStartup == -1) firstStartup = curTime;
         if(lastShutdown == 0 || lastShutdown == -1) lastShutdown = curTime;
                 
@@ -129,7 +138,8 @@ public class ServerStatistics {
     }
     
     /**
-     * Performs a database operation to push the local data to the remote database.
+     * Queues the local data to be written to the remote database.<br />
+     * The values are written together with the other key-value changes when the writer is flushed.
      * @return <b>true</b> if the insertion was successful, <b>false</b> otherwise
      */
     public boolean pushData() {
@@ -143,54 +153,55 @@ public class ServerStatistics {
         freeMemory = runtime.freeMemory();
         ticksPerSecond = TickTask.getTicksPerSecond();
         
-        Query.table(ServerStatsTable.TableName).value("value", currentUptime).condition("key", "current_uptime").update();
-        Query.table(ServerStatsTable.TableName).value("value", totalUptime).condition("key", "total_uptime").update();
-        Query.table(ServerStatsTable.TableName).value("value", maxPlayersOnline).condition("key", "max_players_online").update();
-        Query.table(ServerStatsTable.TableName).value("value", maxPlayersOnlineTime).condition("key", "max_players_online_time").update();
-        Query.table(ServerStatsTable.TableName).value("value", freeMemory).condition("key", "free_memory").update();
-        Query.table(ServerStatsTable.TableName).value("value", ticksPerSecond).condition("key", "ticks_per_second").update();
-        Query.table(ServerStatsTable.TableName).value("value", serverTime).condition("key", "server_time").update();
-        Query.table(ServerStatsTable.TableName).value("value", weather).condition("key", "weather").update();
-        Query.table(ServerStatsTable.TableName).value("value", weatherDuration).condition("key", "weather_duration").update();
+        KeyValueWriter.put(ServerStatsTable.TableName, "current_uptime", currentUptime);
+        KeyValueWriter.put(ServerStatsTable.TableName, "total_uptime", totalUptime);
+        KeyValueWriter.put(ServerStatsTable.TableName, "max_players_online", maxPlayersOnline);
+        KeyValueWriter.put(ServerStatsTable.TableName, "max_players_online_time", maxPlayersOnlineTime);
+        KeyValueWriter.put(ServerStatsTable.TableName, "free_memory", freeMemory);
+        KeyValueWriter.put(ServerStatsTable.TableName, "ticks_per_second", ticksPerSecond);
+        KeyValueWriter.put(ServerStatsTable.TableName, "server_time", serverTime);
+        KeyValueWriter.put(ServerStatsTable.TableName, "weather", weather);
+        KeyValueWriter.put(ServerStatsTable.TableName, "weather_duration", weatherDuration);
         return true;
     }
     
     /**
-     * Performs a one-time database operation to push the local data to the remote database.<br /.
+     * Queues the static data to be written to the remote database.<br />
      * Only performed on plugin startup.
      */
     public void pushStaticData() {
-        Query.table(ServerStatsTable.TableName).value("value", firstStartup).condition("key", "first_startup").update();
-        Query.table(ServerStatsTable.TableName).value("value", lastStartup).condition("key", "last_startup").update();
-        Query.table(ServerStatsTable.TableName).value("value", plugins).condition("key", "plugins").update();
-        Query.table(ServerStatsTable.TableName).value("value", bukkitVersion).condition("key", "bukkit_version").update();
-        Query.table(ServerStatsTable.TableName).value("value", serverIP).condition("key", "server_ip").update();
-        Query.table(ServerStatsTable.TableName).value("value", serverPort).condition("key", "server_port").update();
-        Query.table(ServerStatsTable.TableName).value("value", serverMOTD).condition("key", "server_motd").update();
-        Query.table(ServerStatsTable.TableName).value("value", maxPlayersAllowed).condition("key", "players_allowed").update();
+        KeyValueWriter.put(ServerStatsTable.TableName, "first_startup", firstStartup);
+        KeyValueWriter.put(ServerStatsTable.TableName, "last_startup", lastStartup);
+        KeyValueWriter.put(ServerStatsTable.TableName, "plugins", plugins);
+        KeyValueWriter.put(ServerStatsTable.TableName, "bukkit_version", bukkitVersion);
+        KeyValueWriter.put(ServerStatsTable.TableName, "server_ip", serverIP);
+        KeyValueWriter.put(ServerStatsTable.TableName, "server_port", serverPort);
+        KeyValueWriter.put(ServerStatsTable.TableName, "server_motd", serverMOTD);
+        KeyValueWriter.put(ServerStatsTable.TableName, "players_allowed", maxPlayersAllowed);
         
-        Query.table(ServerStatsTable.TableName).value("value", totalMemory).condition("key", "total_memory").update();
-        Query.table(ServerStatsTable.TableName).value("value", availableProcessors).condition("key", "available_processors").update();
+        KeyValueWriter.put(ServerStatsTable.TableName, "total_memory", totalMemory);
+        KeyValueWriter.put(ServerStatsTable.TableName, "available_processors", availableProcessors);
         
-        Query.table(ServerStatsTable.TableName).value("value", System.getProperty("os.name")).condition("key", "os.name").update();
-        Query.table(ServerStatsTable.TableName).value("value", System.getProperty("os.version")).condition("key", "os.version").update();
-        Query.table(ServerStatsTable.TableName).value("value", System.getProperty("os.arch")).condition("key", "os.arch").update();
+        KeyValueWriter.put(ServerStatsTable.TableName, "os.name", System.getProperty("os.name"));
+        KeyValueWriter.put(ServerStatsTable.TableName, "os.version", System.getProperty("os.version"));
+        KeyValueWriter.put(ServerStatsTable.TableName, "os.arch", System.getProperty("os.arch"));
 
-        Query.table(ServerStatsTable.TableName).value("value", System.getProperty("java.version")).condition("key", "java.version").update();
-        Query.table(ServerStatsTable.TableName).value("value", System.getProperty("java.vendor")).condition("key", "java.vendor").update();
-        Query.table(ServerStatsTable.TableName).value("value", System.getProperty("java.vendor.url")).condition("key", "java.vendor.url").update();
+        KeyValueWriter.put(ServerStatsTable.TableName, "java.version", System.getProperty("java.version"));
+        KeyValueWriter.put(ServerStatsTable.TableName, "java.vendor", System.getProperty("java.vendor"));
+        KeyValueWriter.put(ServerStatsTable.TableName, "java.vendor.url", System.getProperty("java.vendor.url"));
 
-        Query.table(ServerStatsTable.TableName).value("value", System.getProperty("java.vm.vendor")).condition("key", "java.vm.vendor").update();
-        Query.table(ServerStatsTable.TableName).value("value", System.getProperty("java.vm.name")).condition("key", "java.vm.name").update();
-        Query.table(ServerStatsTable.TableName).value("value", System.getProperty("java.vm.version")).condition("key", "java.vm.version").update();
+        KeyValueWriter.put(ServerStatsTable.TableName, "java.vm.vendor", System.getProperty("java.vm.vendor"));
+        KeyValueWriter.put(ServerStatsTable.TableName, "java.vm.name", System.getProperty("java.vm.name"));
+        KeyValueWriter.put(ServerStatsTable.TableName, "java.vm.version", System.getProperty("java.vm.version"));
     }
     
     /**
      * Indicates that the plugin is shutting down and registers the current shutdown time and set all online players to offline.
      */
     public void pluginShutdown() {
-        Query.table(ServerStatsTable.TableName).value("value", Util.getTimestamp()).condition("key", "last_shutdown").update();
-        Query.table(ServerStatsTable.TableName).value("value", 0).condition("key", "current_uptime").update();
+        KeyValueWriter.put(ServerStatsTable.TableName, "last_shutdown", Util.getTimestamp());
+        KeyValueWriter.put(ServerStatsTable.TableName, "current_uptime", 0);
+        KeyValueWriter.flush();
         Query.table(Normal.PlayerStats.TableName).value(Normal.PlayerStats.Online, false).condition(Normal.PlayerStats.Online, true).update();
     }
     
@@ -212,8 +223,8 @@ public class ServerStatistics {
         weather = isStorming;
         weatherDuration = duration;
         
-        Query.table(ServerStatsTable.TableName).value("value", weather).condition("key", "weather").update();
-        Query.table(ServerStatsTable.TableName).value("value", weatherDuration).condition("key", "weather_duration").update();
+        KeyValueWriter.put(ServerStatsTable.TableName, "weather", weather);
+        KeyValueWriter.put(ServerStatsTable.TableName, "weather_duration", weatherDuration);
     }
     
     /**
@@ -221,7 +232,7 @@ public class ServerStatistics {
      */
     public void pluginNumberChange() {
         plugins = Bukkit.getServer().getPluginManager().getPlugins().length;
-        Query.table(ServerStatsTable.TableName).value("value", plugins).condition("key", "plugins").update();
+        KeyValueWriter.put(ServerStatsTable.TableName, "plugins", plugins);
     }
     
     /**
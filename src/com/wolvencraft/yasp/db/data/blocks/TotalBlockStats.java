@@ -69,14 +69,7 @@ public class TotalBlockStats extends NormalData {
                 .condition(BlockTotals.MaterialId, MaterialCache.parse(block))
                 .select();
         
-        if(result == null) {
-            Query.table(BlockTotals.TableName)
-                .value(BlockTotals.PlayerId, playerId)
-                .value(BlockTotals.MaterialId, MaterialCache.parse(block))
-                .value(BlockTotals.Destroyed, broken)
-                .value(BlockTotals.Placed, placed)
-                .insert();
-        } else {
+        if(result != null) {
             broken = result.asInt(BlockTotals.Destroyed);
             placed = result.asInt(BlockTotals.Placed);
         }
@@ -84,13 +77,14 @@ public class TotalBlockStats extends NormalData {
 
     @Override
     public boolean pushData(int playerId) {
+        boolean merged = RemoteConfiguration.MergedDataTracking.asBoolean();
         boolean result = Query.table(BlockTotals.TableName)
             .value(BlockTotals.Destroyed, broken)
             .value(BlockTotals.Placed, placed)
             .condition(BlockTotals.PlayerId, playerId)
             .condition(BlockTotals.MaterialId, MaterialCache.parse(block))
-            .update(RemoteConfiguration.MergedDataTracking.asBoolean());
-        fetchData(playerId);
+            .upsert(merged);
+        if(merged && result) clearData(playerId);
         return result;
     }
     
@@ -100,6 +94,11 @@ public class TotalBlockStats extends NormalData {
         placed = 0;
     }
     
+    @Override
+    public boolean isTracked() {
+        return true;
+    }
+    
     /**
      * Checks if the object corresponds to provided parameters
      * @param block Block to compare to
@@ -118,6 +117,7 @@ public class TotalBlockStats extends NormalData {
      */
     public void addBroken() {
         broken ++;
+        markDirty();
     }
     
     /**
@@ -125,5 +125,6 @@ public class TotalBlockStats extends NormalData {
      */
     public void addPlaced() {
         placed ++;
+        markDirty();
     }
 }
@@ -27,6 +27,7 @@ import org.bukkit.Location;
 import org.bukkit.event.entity.EntityDamageEvent.DamageCause;
 
 import com.wolvencraft.yasp.db.Query;
+import com.wolvencraft.yasp.db.Query.DatabaseQuery;
 import com.wolvencraft.yasp.db.data.DetailedData;
 import com.wolvencraft.yasp.db.tables.Detailed.PlayerDeaths;
 import com.wolvencraft.yasp.util.Util;
@@ -52,7 +53,7 @@ public class DetailedDeathStats {
         }
 
         @Override
-        public boolean pushData(int playerId) {
+        public DatabaseQuery getQuery(int playerId) {
             return Query.table(PlayerDeaths.TableName)
                     .value(PlayerDeaths.PlayerId, playerId)
                     .value(PlayerDeaths.Cause, cause.name())
@@ -60,8 +61,7 @@ public class DetailedDeathStats {
                     .value(PlayerDeaths.XCoord, location.getBlockX())
                     .value(PlayerDeaths.YCoord, location.getBlockY())
                     .value(PlayerDeaths.ZCoord, location.getBlockZ())
-                    .value(PlayerDeaths.Timestamp, timestamp)
-                    .insert();
+                    .value(PlayerDeaths.Timestamp, timestamp);
         }
     }
 }
@@ -63,25 +63,20 @@ public class TotalDeathStats extends NormalData {
                 .condition(DeathTotals.Cause, cause.name())
                 .select();
         
-        if(result == null) {
-            Query.table(DeathTotals.TableName)
-                .value(DeathTotals.PlayerId, playerId)
-                .value(DeathTotals.Cause, cause.name())
-                .value(DeathTotals.Times, times)
-                .insert();
-        } else {
+        if(result != null) {
             times = result.asInt(DeathTotals.Times);
         }
     }
 
     @Override
     public boolean pushData(int playerId) {
+        boolean merged = RemoteConfiguration.MergedDataTracking.asBoolean();
         boolean result = Query.table(DeathTotals.TableName)
                 .value(DeathTotals.Times, times)
                 .condition(DeathTotals.PlayerId, playerId)
                 .condition(DeathTotals.Cause, cause.name())
-                .update(RemoteConfiguration.MergedDataTracking.asBoolean());
-        fetchData(playerId);
+                .upsert(merged);
+        if(merged && result) clearData(playerId);
         return result;
     }
     
@@ -90,11 +85,17 @@ public class TotalDeathStats extends NormalData {
         times = 0;
     }
     
+    @Override
+    public boolean isTracked() {
+        return true;
+    }
+    
     /**
      * Increments the number of times a player died from the specified cause.
      */
     public void addTimes() {
         times++;
+        markDirty();
     }
     
 }
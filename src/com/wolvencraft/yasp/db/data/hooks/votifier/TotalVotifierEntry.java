@@ -55,24 +55,21 @@ public class TotalVotifierEntry extends NormalData {
                 .condition(VotifierTotalsTable.PlayerId, playerId)
                 .condition(VotifierTotalsTable.ServiceName, serviceName)
                 .select();
-        if(result == null) {
-            Query.table(VotifierTotalsTable.TableName)
-                .value(VotifierTotalsTable.PlayerId, playerId)
-                .value(VotifierTotalsTable.ServiceName, serviceName)
-                .value(VotifierTotalsTable.Votes, votes)
-                .insert();
-        } else {
+        if(result != null) {
             votes = result.asInt(VotifierTotalsTable.Votes);
         }
     }
 
     @Override
     public boolean pushData(int playerId) {
-        return Query.table(VotifierTotalsTable.TableName)
-                .value(VotifierTotalsTable.PlayerId, playerId)
-                .value(VotifierTotalsTable.ServiceName, serviceName)
+        boolean merged = RemoteConfiguration.MergedDataTracking.asBoolean();
+        boolean result = Query.table(VotifierTotalsTable.TableName)
                 .value(VotifierTotalsTable.Votes, votes)
-                .insert();
+                .condition(VotifierTotalsTable.PlayerId, playerId)
+                .condition(VotifierTotalsTable.ServiceName, serviceName)
+                .upsert(merged);
+        if(merged && result) clearData(playerId);
+        return result;
     }
 
     @Override
@@ -80,8 +77,14 @@ public class TotalVotifierEntry extends NormalData {
         votes = 0;
     }
     
+    @Override
+    public boolean isTracked() {
+        return true;
+    }
+    
     public void addVote() {
         votes++;
+        markDirty();
     }
 
 }
@@ -27,6 +27,7 @@ import org.bukkit.Location;
 import org.bukkit.inventory.ItemStack;
 
 import com.wolvencraft.yasp.db.Query;
+import com.wolvencraft.yasp.db.Query.DatabaseQuery;
 import com.wolvencraft.yasp.db.data.DetailedData;
 import com.wolvencraft.yasp.db.tables.Detailed.ItemsConsumed;
 import com.wolvencraft.yasp.db.tables.Detailed.ItemsDropped;
@@ -56,7 +57,7 @@ public class DetailedItemStats {
         }
         
         @Override
-        public boolean pushData(int playerId) {
+        public DatabaseQuery getQuery(int playerId) {
             return Query.table(ItemsDropped.TableName)
                     .value(ItemsDropped.PlayerId, playerId)
                     .value(ItemsDropped.MaterialId, MaterialCache.parse(stack))
@@ -65,8 +66,7 @@ public class DetailedItemStats {
                     .value(ItemsDropped.XCoord, location.getBlockX())
                     .value(ItemsDropped.YCoord, location.getBlockY())
                     .value(ItemsDropped.ZCoord, location.getBlockZ())
-                    .value(ItemsDropped.Timestamp, timestamp)
-                    .insert();
+                    .value(ItemsDropped.Timestamp, timestamp);
         }
     }
     
@@ -91,7 +91,7 @@ public class DetailedItemStats {
         }
         
         @Override
-        public boolean pushData(int playerId) {
+        public DatabaseQuery getQuery(int playerId) {
             return Query.table(ItemsPickedUp.TableName)
                     .value(ItemsPickedUp.PlayerId, playerId)
                     .value(ItemsPickedUp.Material, MaterialCache.parse(stack))
@@ -100,8 +100,7 @@ public class DetailedItemStats {
                     .value(ItemsPickedUp.XCoord, location.getBlockX())
                     .value(ItemsPickedUp.YCoord, location.getBlockY())
                     .value(ItemsPickedUp.ZCoord, location.getBlockZ())
-                    .value(ItemsPickedUp.Timestamp, timestamp)
-                    .insert();
+                    .value(ItemsPickedUp.Timestamp, timestamp);
         }
     }
     
@@ -125,7 +124,7 @@ public class DetailedItemStats {
         }
         
         @Override
-        public boolean pushData(int playerId) {
+        public DatabaseQuery getQuery(int playerId) {
             return Query.table(ItemsConsumed.TableName)
                     .value(ItemsConsumed.PlayerId, playerId)
                     .value(ItemsConsumed.MaterialId, MaterialCache.parse(stack))
@@ -133,8 +132,7 @@ public class DetailedItemStats {
                     .value(ItemsConsumed.XCoord, location.getBlockX())
                     .value(ItemsConsumed.YCoord, location.getBlockY())
                     .value(ItemsConsumed.ZCoord, location.getBlockZ())
-                    .value(ItemsConsumed.Timestamp, timestamp)
-                    .insert();
+                    .value(ItemsConsumed.Timestamp, timestamp);
         }
     }
 }
@@ -90,20 +90,7 @@ public class TotalItemStats extends NormalData {
                 .condition(ItemTotals.MaterialId, MaterialCache.parse(stack))
                 .select();
         
-        if(result == null) {
-            Query.table(ItemTotals.TableName)
-                .value(ItemTotals.PlayerId, playerId)
-                .value(ItemTotals.MaterialId, MaterialCache.parse(stack))
-                .value(ItemTotals.Dropped, dropped)
-                .value(ItemTotals.PickedUp, pickedUp)
-                .value(ItemTotals.Used, consumed)
-                .value(ItemTotals.Crafted, crafted)
-                .value(ItemTotals.Broken, broken)
-                .value(ItemTotals.Smelted, smelted)
-                .value(ItemTotals.Enchanted, enchanted)
-                .value(ItemTotals.Repaired, repaired)
-                .insert();
-        } else {
+        if(result != null) {
             dropped = result.asInt(ItemTotals.Dropped);
             pickedUp = result.asInt(ItemTotals.PickedUp);
             consumed = result.asInt(ItemTotals.Used);
@@ -117,6 +104,7 @@ public class TotalItemStats extends NormalData {
 
     @Override
     public boolean pushData(int playerId) {
+        boolean merged = RemoteConfiguration.MergedDataTracking.asBoolean();
         boolean result = Query.table(ItemTotals.TableName)
                 .value(ItemTotals.Dropped, dropped)
                 .value(ItemTotals.PickedUp, pickedUp)
@@ -128,8 +116,8 @@ public class TotalItemStats extends NormalData {
                 .value(ItemTotals.Repaired, repaired)
                 .condition(ItemTotals.PlayerId, playerId)
                 .condition(ItemTotals.MaterialId, MaterialCache.parse(stack))
-                .update(RemoteConfiguration.MergedDataTracking.asBoolean());
-        fetchData(playerId);
+                .upsert(merged);
+        if(merged && result) clearData(playerId);
         return result;
     }
     
@@ -145,6 +133,11 @@ public class TotalItemStats extends NormalData {
         repaired = 0;
     }
     
+    @Override
+    public boolean isTracked() {
+        return true;
+    }
+    
     /**
      * Checks if the ItemStack corresponds to this entry 
      * @param stack ItemStack to check
@@ -164,6 +157,7 @@ public class TotalItemStats extends NormalData {
      */
     public void addDropped(int amount) {
         dropped += amount;
+        markDirty();
     }
     
     /**
@@ -172,6 +166,7 @@ public class TotalItemStats extends NormalData {
      */
     public void addPickedUp(int amount) {
         pickedUp += amount;
+        markDirty();
     }
     
     /**
@@ -181,6 +176,7 @@ public class TotalItemStats extends NormalData {
      */
     public void addConsumed() {
         consumed += 1;
+        markDirty();
     }
     
     /**
@@ -189,6 +185,7 @@ public class TotalItemStats extends NormalData {
      */
     public void addCrafted(int amount) {
         crafted += amount;
+        markDirty();
     }
     
     /**
@@ -197,6 +194,7 @@ public class TotalItemStats extends NormalData {
      */
     public void addBroken(int amount) {
         broken += amount;
+        markDirty();
     }
     
     /**
@@ -205,6 +203,7 @@ public class TotalItemStats extends NormalData {
      */
     public void addSmelted(int amount) {
         smelted += amount;
+        markDirty();
     }
     
     /**
@@ -213,6 +212,7 @@ public class TotalItemStats extends NormalData {
      */
     public void addEnchanted(int amount) {
         enchanted += amount;
+        markDirty();
     }
     
     /**
@@ -220,6 +220,7 @@ public class TotalItemStats extends NormalData {
      * @param amount Number of items
      */
     public void addRepaired(int amount) {
-        
+        repaired += amount;
+        markDirty();
     }
 }
@@ -77,17 +77,7 @@ public class DistancePlayerEntry extends NormalData {
                 .column(PlayerDistance.Ride)
                 .condition(PlayerDistance.PlayerId, playerId)
                 .select();
-        if(result == null) {
-            Query.table(PlayerDistance.TableName)
-                .value(PlayerDistance.PlayerId, playerId)
-                .value(PlayerDistance.Foot, foot)
-                .value(PlayerDistance.Swim, swim)
-                .value(PlayerDistance.Flight, flight)
-                .value(PlayerDistance.Boat, boat)
-                .value(PlayerDistance.Minecart, minecart)
-                .value(PlayerDistance.Ride, ride)
-                .insert();
-        } else {
+        if(result != null) {
             foot = result.asInt(PlayerDistance.Foot);
             swim = result.asInt(PlayerDistance.Swim);
             flight = result.asInt(PlayerDistance.Flight);
@@ -99,6 +89,7 @@ public class DistancePlayerEntry extends NormalData {
 
     @Override
     public boolean pushData(int playerId) {
+        boolean merged = RemoteConfiguration.MergedDataTracking.asBoolean();
         boolean result = Query.table(PlayerDistance.TableName)
             .value(PlayerDistance.Foot, foot)
             .value(PlayerDistance.Swim, swim)
@@ -107,7 +98,8 @@ public class DistancePlayerEntry extends NormalData {
             .value(PlayerDistance.Minecart, minecart)
             .value(PlayerDistance.Ride, ride)
             .condition(PlayerDistance.PlayerId, playerId)
-            .update(RemoteConfiguration.MergedDataTracking.asBoolean());
+            .upsert(merged);
+        if(merged && result) clearData(playerId);
         return result;
     }
     
@@ -121,6 +113,11 @@ public class DistancePlayerEntry extends NormalData {
         ride = 0;
     }
     
+    @Override
+    public boolean isTracked() {
+        return true;
+    }
+    
     /**
      * Increments the distance of the specified type by the amount
      * @param type Travel type
@@ -149,5 +146,6 @@ public class DistancePlayerEntry extends NormalData {
             default:
                 break;
         }
+        markDirty();
     }
 }
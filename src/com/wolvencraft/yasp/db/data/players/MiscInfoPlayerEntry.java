@@ -45,6 +45,7 @@ public class MiscInfoPlayerEntry extends NormalData {
 
     private final String playerName;
     private Map<DBTable, Object> values;
+    private Map<DBTable, Object> pushed;
     
     /**
      * <b>Default constructor</b><br />
@@ -102,12 +103,7 @@ public class MiscInfoPlayerEntry extends NormalData {
         QueryResult result = Query.table(PlayerData.TableName)
             .condition(PlayerData.PlayerId, playerId)
             .select();
-        if(result == null) {
-            Query.table(PlayerData.TableName)
-                .value(PlayerData.PlayerId, playerId)
-                .valueRaw(values)
-                .insert();
-        } else {
+        if(result != null) {
             values.put(PlayerData.FishCaught, result.asInt(PlayerData.FishCaught));
             values.put(PlayerData.TimesKicked, result.asInt(PlayerData.TimesKicked));
             values.put(PlayerData.EggsThrown, result.asInt(PlayerData.EggsThrown));
@@ -126,11 +122,16 @@ public class MiscInfoPlayerEntry extends NormalData {
     @Override
     public boolean pushData(int playerId) {
         refreshPlayerData();
+        boolean merged = RemoteConfiguration.MergedDataTracking.asBoolean();
         boolean result = Query.table(PlayerData.TableName)
             .valueRaw(values)
             .condition(PlayerData.PlayerId, playerId)
-            .update(RemoteConfiguration.MergedDataTracking.asBoolean());
-        fetchData(playerId);
+            .greatest(PlayerData.MaxKillStreak)
+            .upsert(merged, PlayerData.IsOp, PlayerData.IsBanned, PlayerData.PlayerIp, PlayerData.Gamemode,
+                    PlayerData.ExpPercent, PlayerData.ExpTotal, PlayerData.ExpLevel, PlayerData.FoodLevel,
+                    PlayerData.HealthLevel, PlayerData.ArmorLevel, PlayerData.CurKillStreak);
+        if(merged && result) clearData(playerId);
+        if(result) pushed = new HashMap<DBTable, Object>(values);
         return result;
     }
     
@@ -146,9 +147,22 @@ public class MiscInfoPlayerEntry extends NormalData {
         values.put(PlayerData.WordsSaid, 0);
         values.put(PlayerData.CommandsSent, 0);
         values.put(PlayerData.TimesJumped, 0);
-        
-        values.put(PlayerData.CurKillStreak, 0);
-        values.put(PlayerData.MaxKillStreak, 0);
+    }
+    
+    @Override
+    public boolean isTracked() {
+        return true;
+    }
+    
+    /**
+     * Checks if the entry has to be written on the next synchronization.<br />
+     * Refreshes the player data, and compares it with the values that were last written.
+     * @return <b>true</b> if the entry has changed since it was last written, <b>false</b> otherwise
+     */
+    @Override
+    public boolean isDirty() {
+        refreshPlayerData();
+        return super.isDirty() || !values.equals(pushed);
     }
     
     /**
@@ -186,6 +200,7 @@ public class MiscInfoPlayerEntry extends NormalData {
             else value = ((Integer) valueObj).doubleValue() + 1;
         }
         values.put(type, value);
+        markDirty();
     }
     
     /**
@@ -201,6 +216,7 @@ public class MiscInfoPlayerEntry extends NormalData {
             else value += ((Integer) valueObj).doubleValue();
         }
         values.put(type, value);
+        markDirty();
     }
     
     /**
@@ -216,6 +232,7 @@ public class MiscInfoPlayerEntry extends NormalData {
             maxKillStreak++;
             values.put(PlayerData.MaxKillStreak, maxKillStreak);
         }
+        markDirty();
     }
     
     /**
@@ -229,5 +246,6 @@ public class MiscInfoPlayerEntry extends NormalData {
             values.put(PlayerData.MaxKillStreak, maxKillStreak);
         }
         values.put(PlayerData.CurKillStreak, 0);
+        markDirty();
     }
 }
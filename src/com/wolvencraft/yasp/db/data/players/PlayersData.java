@@ -26,6 +26,7 @@ import java.util.List;
 import org.bukkit.Location;
 import org.bukkit.entity.Player;
 
+import com.wolvencraft.yasp.db.BatchWriter;
 import com.wolvencraft.yasp.db.data.DetailedData;
 import com.wolvencraft.yasp.settings.Module;
 
@@ -41,6 +42,7 @@ public class PlayersData {
     private DistancePlayerEntry distanceData;
     private MiscInfoPlayerEntry miscData;
     private InventoryEntry inventoryData;
+    private SummaryPlayerEntry summaryData;
     
     private List<DetailedData> detailedData;
     
@@ -56,6 +58,7 @@ public class PlayersData {
         distanceData = new DistancePlayerEntry(playerId);
         miscData = new MiscInfoPlayerEntry(playerId, player);
         if(Module.Inventory.isEnabled()) inventoryData = new InventoryEntry(playerId, player);
+        summaryData = new SummaryPlayerEntry(playerId);
         
         detailedData = new ArrayList<DetailedData>();
     }
@@ -74,13 +77,25 @@ public class PlayersData {
      * Pushes the data to the database
      */
     public void sync() {
-        generalData.pushData(playerId);
-        distanceData.pushData(playerId);
-        miscData.pushData(playerId);
-        if(Module.Inventory.isEnabled()) inventoryData.pushData(playerId);
+        BatchWriter batch = new BatchWriter();
+        sync(batch);
+        batch.flush();
+    }
+    
+    /**
+     * Pushes the data to the database.<br />
+     * Detailed entries are queued in the specified batch, and are removed once the batch is written.
+     * @param batch Batch writer for detailed entries
+     */
+    public void sync(BatchWriter batch) {
+        generalData.sync(playerId);
+        distanceData.sync(playerId);
+        miscData.sync(playerId);
+        if(Module.Inventory.isEnabled()) inventoryData.sync(playerId);
+        summaryData.sync(playerId);
         
         for(DetailedData entry : getDetailedData()) {
-            if(entry.pushData(playerId)) { detailedData.remove(entry); }
+            batch.add(entry, playerId, detailedData);
         }
     }
     
@@ -119,6 +134,14 @@ public class PlayersData {
         return miscData;
     }
     
+    /**
+     * Returns the changes to the player's precomputed totals.
+     * @return Summary data store
+     */
+    public SummaryPlayerEntry getSummaryData() {
+        return summaryData;
+    }
+    
     /**
      * Logs player's login/logout location
      * @param location Location of the login
@@ -0,0 +1,127 @@
+/*
+ * SummaryPlayerEntry.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.db.data.players;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.wolvencraft.yasp.Statistics;
+import com.wolvencraft.yasp.db.Query;
+import com.wolvencraft.yasp.db.Query.DatabaseQuery;
+import com.wolvencraft.yasp.db.Transaction;
+import com.wolvencraft.yasp.db.data.NormalData;
+import com.wolvencraft.yasp.db.tables.Normal.PlayerSummary;
+
+/**
+ * Represents the changes to the player's precomputed totals that have not been written yet.<br />
+ * Only one entry per player is allowed. Unlike other entries, it never holds absolute values: the changes are
+ * added to the <i>player_summary</i> row on every sync, and are cleared once they have been written.
+ * @author bitWolfy
+ *
+ */
+public class SummaryPlayerEntry extends NormalData {
+    
+    private Map<PlayerSummary, Double> pending;
+    
+    /**
+     * <b>Default constructor</b><br />
+     * Creates a new empty SummaryPlayerEntry
+     * @param playerId ID of the tracked player
+     */
+    public SummaryPlayerEntry(int playerId) {
+        pending = new EnumMap<PlayerSummary, Double>(PlayerSummary.class);
+    }
+    
+    @Override
+    public void fetchData(int playerId) { }
+    
+    @Override
+    public boolean pushData(int playerId) {
+        final Map<PlayerSummary, Double> changes;
+        synchronized(this) {
+            if(pending.isEmpty()) return true;
+            changes = pending;
+            pending = new EnumMap<PlayerSummary, Double>(PlayerSummary.class);
+        }
+        
+        DatabaseQuery query = Query.table(PlayerSummary.TableName).condition(PlayerSummary.PlayerId, playerId);
+        for(Entry<PlayerSummary, Double> entry : changes.entrySet()) query.value(entry.getKey(), entry.getValue());
+        if(query.upsert(true)) {
+            Transaction.afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    Statistics.getServerTotals().addChanges(changes);
+                }
+            });
+            Transaction.onDiscard(new Runnable() {
+                @Override
+                public void run() {
+                    restore(changes);
+                }
+            });
+            return true;
+        }
+        
+        restore(changes);
+        return false;
+    }
+    
+    /**
+     * Adds the changes that could not be written back to the pending ones
+     * @param changes Changes to restore
+     */
+    private synchronized void restore(Map<PlayerSummary, Double> changes) {
+        for(Entry<PlayerSummary, Double> entry : changes.entrySet()) add(entry.getKey(), entry.getValue());
+    }
+    
+    @Override
+    public synchronized void clearData(int playerId) {
+        pending.clear();
+    }
+    
+    @Override
+    public boolean isTracked() {
+        return true;
+    }
+    
+    /**
+     * Adds the amount to the specified total
+     * @param column Summary column
+     * @param amount Amount to add
+     */
+    public synchronized void add(PlayerSummary column, double amount) {
+        Double value = pending.get(column);
+        pending.put(column, value == null ? amount : value + amount);
+        markDirty();
+    }
+    
+    /**
+     * Returns the amount that has been added to the specified total since the last sync
+     * @param column Summary column
+     * @return Amount that has not been written yet
+     */
+    public synchronized double getPending(PlayerSummary column) {
+        Double value = pending.get(column);
+        return value == null ? 0 : value;
+    }
+
+}
@@ -30,6 +30,7 @@ import org.bukkit.inventory.ItemStack;
 import org.bukkit.material.MaterialData;
 
 import com.wolvencraft.yasp.db.Query;
+import com.wolvencraft.yasp.db.Query.DatabaseQuery;
 import com.wolvencraft.yasp.db.data.DetailedData;
 import com.wolvencraft.yasp.db.tables.Detailed.PlayerKillsPVE;
 import com.wolvencraft.yasp.util.Util;
@@ -47,13 +48,27 @@ public class DetailedPVEStats {
     public static class PVEEntry extends DetailedData {
         
         private final EntityType creatureType;
+        private final int creatureVariant;
         private final MaterialData weapon;
         private final Location location;
         private final boolean playerKilled;
         private final long timestamp;
         
         public PVEEntry (EntityType creatureType, Location location, ItemStack weapon) {
+            this(creatureType, 0, location, weapon);
+        }
+        
+        /**
+         * <b>Player killed a creature</b><br />
+         * Creates a new DetailedPVEEntry where the player killed a creature.
+         * @param creatureType Type of the creature
+         * @param creatureVariant Variant of the creature
+         * @param location Location of the event
+         * @param weapon Weapon used by the player
+         */
+        public PVEEntry (EntityType creatureType, int creatureVariant, Location location, ItemStack weapon) {
             this.creatureType = creatureType;
+            this.creatureVariant = creatureVariant;
             this.weapon = weapon.getData();
             this.location = location.clone();
             playerKilled = false;
@@ -67,7 +82,19 @@ public class DetailedPVEStats {
          * @param location Location of the event
          */
         public PVEEntry (EntityType creatureType, Location location) {
+            this(creatureType, 0, location);
+        }
+        
+        /**
+         * <b>Creature killed a player</b><br />
+         * Creates a new DetailedPVEEntry where the creature killed a player.
+         * @param creatureType Type of the creature
+         * @param creatureVariant Variant of the creature
+         * @param location Location of the event
+         */
+        public PVEEntry (EntityType creatureType, int creatureVariant, Location location) {
             this.creatureType = creatureType;
+            this.creatureVariant = creatureVariant;
             this.weapon = new MaterialData(Material.AIR);
             this.location = location.clone();
             playerKilled = true;
@@ -75,18 +102,17 @@ public class DetailedPVEStats {
         }
         
         @Override
-        public boolean pushData(int playerId) {
+        public DatabaseQuery getQuery(int playerId) {
             return Query.table(PlayerKillsPVE.TableName)
                     .value(PlayerKillsPVE.PlayerId, playerId)
-                    .value(PlayerKillsPVE.CreatureId, EntityCache.parse(creatureType))
+                    .value(PlayerKillsPVE.CreatureId, EntityCache.parse(creatureType, creatureVariant))
                     .value(PlayerKillsPVE.PlayerKilled, playerKilled)
                     .value(PlayerKillsPVE.MaterialId, MaterialCache.parse(weapon))
                     .value(PlayerKillsPVE.World, location.getWorld().getName())
                     .value(PlayerKillsPVE.XCoord, location.getBlockX())
                     .value(PlayerKillsPVE.YCoord, location.getBlockY())
                     .value(PlayerKillsPVE.ZCoord, location.getBlockZ())
-                    .value(PlayerKillsPVE.Timestamp, timestamp)
-                    .insert();
+                    .value(PlayerKillsPVE.Timestamp, timestamp);
         }
     }
 }
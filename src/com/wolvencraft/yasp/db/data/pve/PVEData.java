@@ -29,6 +29,7 @@ import com.wolvencraft.yasp.db.data.DataStore;
 import com.wolvencraft.yasp.db.data.pve.DetailedPVEStats.PVEEntry;
 import com.wolvencraft.yasp.events.player.TrackedPVEEvent;
 import com.wolvencraft.yasp.session.OnlineSession;
+import com.wolvencraft.yasp.util.cache.EntityCache;
 
 /**
  * Data store that handles all PVE statistics on the server
@@ -49,10 +50,22 @@ public class PVEData extends DataStore<TotalPVEStats, PVEEntry> {
      * @return Corresponding entry
      */
     public TotalPVEStats getNormalData(EntityType type, ItemStack weapon) {
+        return getNormalData(type, 0, weapon);
+    }
+    
+    /**
+     * Returns a specific entry from the data store.<br />
+     * If an entry does not exist, it will be created.
+     * @param type Entity type of the creature
+     * @param variant Variant of the creature
+     * @param weapon Weapon used in the event
+     * @return Corresponding entry
+     */
+    public TotalPVEStats getNormalData(EntityType type, int variant, ItemStack weapon) {
         for(TotalPVEStats entry : getNormalData()) {
-            if(entry.equals(type, weapon)) return entry;
+            if(entry.equals(type, variant, weapon)) return entry;
         }
-        TotalPVEStats entry = new TotalPVEStats(session.getId(), type, weapon);
+        TotalPVEStats entry = new TotalPVEStats(session.getId(), type, variant, weapon);
         normalData.add(entry);
         return entry;
     }
@@ -63,8 +76,9 @@ public class PVEData extends DataStore<TotalPVEStats, PVEEntry> {
      * @param weapon Weapon used by killer
      */
     public void playerKilledCreature(Entity victim, ItemStack weapon) {
-        getNormalData(victim.getType(), weapon).addCreatureDeaths();
-        PVEEntry detailedEntry = new PVEEntry(victim.getType(), victim.getLocation(), weapon);
+        int variant = EntityCache.getVariant(victim);
+        getNormalData(victim.getType(), variant, weapon).addCreatureDeaths();
+        PVEEntry detailedEntry = new PVEEntry(victim.getType(), variant, victim.getLocation(), weapon);
         detailedData.add(detailedEntry);
         
         Bukkit.getServer().getPluginManager().callEvent(new TrackedPVEEvent(session, detailedEntry));
@@ -76,8 +90,9 @@ public class PVEData extends DataStore<TotalPVEStats, PVEEntry> {
      * @param weapon Weapon used by killer
      */
     public void creatureKilledPlayer(Entity killer, ItemStack weapon) {
-        getNormalData(killer.getType(), weapon).addPlayerDeaths();
-        PVEEntry detailedEntry = new PVEEntry(killer.getType(), killer.getLocation());
+        int variant = EntityCache.getVariant(killer);
+        getNormalData(killer.getType(), variant, weapon).addPlayerDeaths();
+        PVEEntry detailedEntry = new PVEEntry(killer.getType(), variant, killer.getLocation());
         detailedData.add(detailedEntry);
         
         Bukkit.getServer().getPluginManager().callEvent(new TrackedPVEEvent(session, detailedEntry));
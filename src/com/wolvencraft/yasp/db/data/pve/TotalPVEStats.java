@@ -40,6 +40,7 @@ import com.wolvencraft.yasp.util.cache.MaterialCache;
 public class TotalPVEStats extends NormalData {
     
     private EntityType creatureType;
+    private int creatureVariant;
     private ItemStack weapon;
     private int playerDeaths;
     private int creatureDeaths;
@@ -52,7 +53,20 @@ public class TotalPVEStats extends NormalData {
      * @param weapon Weapon used
      */
     public TotalPVEStats(int playerId, EntityType creatureType, ItemStack weapon) {
+        this(playerId, creatureType, 0, weapon);
+    }
+    
+    /**
+     * <b>Default constructor</b><br />
+     * Creates a new TotalPVE object based on the player and creature in question
+     * @param playerId Player in question
+     * @param creatureType Creature in question
+     * @param creatureVariant Variant of the creature
+     * @param weapon Weapon used
+     */
+    public TotalPVEStats(int playerId, EntityType creatureType, int creatureVariant, ItemStack weapon) {
         this.creatureType = creatureType;
+        this.creatureVariant = creatureVariant;
         this.weapon = weapon.clone();
         this.weapon.setAmount(1);
         playerDeaths = 0;
@@ -72,18 +86,10 @@ public class TotalPVEStats extends NormalData {
                 .column(PVETotals.PlayerKilled)
                 .column(PVETotals.CreatureKilled)
                 .condition(PVETotals.PlayerId, playerId)
-                .condition(PVETotals.CreatureId, EntityCache.parse(creatureType))
+                .condition(PVETotals.CreatureId, EntityCache.parse(creatureType, creatureVariant))
                 .condition(PVETotals.MaterialId, MaterialCache.parse(weapon))
                 .select();
-        if(result == null) {
-            Query.table(PVETotals.TableName)
-                .value(PVETotals.PlayerId, playerId)
-                .value(PVETotals.CreatureId, EntityCache.parse(creatureType))
-                .value(PVETotals.MaterialId, MaterialCache.parse(weapon))
-                .value(PVETotals.PlayerKilled, playerDeaths)
-                .value(PVETotals.CreatureKilled, creatureDeaths)
-                .insert();
-        } else {
+        if(result != null) {
             playerDeaths = result.asInt(PVETotals.PlayerKilled);
             creatureDeaths = result.asInt(PVETotals.CreatureKilled);
         }
@@ -91,14 +97,15 @@ public class TotalPVEStats extends NormalData {
 
     @Override
     public boolean pushData(int playerId) {
+        boolean merged = RemoteConfiguration.MergedDataTracking.asBoolean();
         boolean result = Query.table(PVETotals.TableName)
                 .value(PVETotals.PlayerKilled, playerDeaths)
                 .value(PVETotals.CreatureKilled, creatureDeaths)
                 .condition(PVETotals.PlayerId, playerId)
-                .condition(PVETotals.CreatureId, EntityCache.parse(creatureType))
+                .condition(PVETotals.CreatureId, EntityCache.parse(creatureType, creatureVariant))
                 .condition(PVETotals.MaterialId, MaterialCache.parse(weapon))
-                .update(RemoteConfiguration.MergedDataTracking.asBoolean());
-        fetchData(playerId);
+                .upsert(merged);
+        if(merged && result) clearData(playerId);
         return result;
     }
     
@@ -107,6 +114,11 @@ public class TotalPVEStats extends NormalData {
         playerDeaths = 0;
         creatureDeaths = 0;
     }
+    
+    @Override
+    public boolean isTracked() {
+        return true;
+    }
 
     /**
      * Matches data provided in the arguments with the one in the entry.
@@ -115,7 +127,18 @@ public class TotalPVEStats extends NormalData {
      * @return <b>true</b> if the data matches, <b>false</b> otherwise.
      */
     public boolean equals(EntityType creatureType, ItemStack weapon) {
-        if(!this.creatureType.equals(creatureType)) return false;
+        return equals(creatureType, 0, weapon);
+    }
+    
+    /**
+     * Matches data provided in the arguments with the one in the entry.
+     * @param creatureType Type of the creature
+     * @param creatureVariant Variant of the creature
+     * @param weapon Weapon used in the event
+     * @return <b>true</b> if the data matches, <b>false</b> otherwise.
+     */
+    public boolean equals(EntityType creatureType, int creatureVariant, ItemStack weapon) {
+        if(!this.creatureType.equals(creatureType) || this.creatureVariant != creatureVariant) return false;
         ItemStack comparableWeapon = weapon.clone();
         comparableWeapon.setAmount(1);
         return comparableWeapon.equals(this.weapon);
@@ -126,6 +149,7 @@ public class TotalPVEStats extends NormalData {
      */
     public void addPlayerDeaths() {
         playerDeaths++;
+        markDirty();
     }
     
     /**
@@ -133,5 +157,6 @@ public class TotalPVEStats extends NormalData {
      */
     public void addCreatureDeaths() {
         creatureDeaths++;
+        markDirty();
     }
 }
@@ -70,27 +70,21 @@ public class TotalPVPStats extends NormalData {
                 .condition(PVPTotals.VictimId, victimId)
                 .condition(PVPTotals.MaterialId, MaterialCache.parse(weapon))
                 .select();
-        if(result == null) {
-            Query.table(PVPTotals.TableName)
-                .value(PVPTotals.PlayerId, killerId)
-                .value(PVPTotals.VictimId, victimId)
-                .value(PVPTotals.MaterialId, MaterialCache.parse(weapon))
-                .value(PVPTotals.Times, times)
-                .insert();
-        } else {
+        if(result != null) {
             times = result.asInt(PVPTotals.Times);
         }
     }
 
     @Override
     public boolean pushData(int killerId) {
+        boolean merged = RemoteConfiguration.MergedDataTracking.asBoolean();
         boolean result = Query.table(PVPTotals.TableName)
                 .value(PVPTotals.Times, times)
                 .condition(PVPTotals.PlayerId, killerId)
                 .condition(PVPTotals.VictimId, victimId)
                 .condition(PVPTotals.MaterialId, MaterialCache.parse(weapon))
-                .update(RemoteConfiguration.MergedDataTracking.asBoolean());
-        fetchData(killerId);
+                .upsert(merged);
+        if(merged && result) clearData(killerId);
         return result;
     }
     
@@ -99,6 +93,11 @@ public class TotalPVPStats extends NormalData {
         times = 0;
     }
     
+    @Override
+    public boolean isTracked() {
+        return true;
+    }
+    
     /**
      * Matches data provided in the arguments with the one in the entry.
      * @param victimId ID of the victim
@@ -118,6 +117,7 @@ public class TotalPVPStats extends NormalData {
      */
     public void addTimes() {
         times++;
+        markDirty();
     }
     
 }
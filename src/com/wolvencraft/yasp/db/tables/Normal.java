@@ -272,4 +272,67 @@ public class Normal {
         @Override
         public String toString() { return columnName; }
     }
+    
+    /**
+     * Represents the <i>player_summary</i> table.
+     * @author bitWolfy
+     *
+     */
+    @AllArgsConstructor(access=AccessLevel.PUBLIC)
+    @Getter(AccessLevel.PUBLIC)
+    public enum PlayerSummary implements DBTable {
+        TableName       ("player_summary"),
+        PlayerId        ("player_id"),
+        BlocksBroken    ("blocks_broken"),
+        BlocksPlaced    ("blocks_placed"),
+        DistanceFoot    ("distance_foot"),
+        DistanceSwim    ("distance_swim"),
+        DistanceFlight  ("distance_flight"),
+        DistanceBoat    ("distance_boat"),
+        DistanceMinecart("distance_minecart"),
+        DistanceRide    ("distance_ride"),
+        ItemsBroken     ("items_broken"),
+        ItemsCrafted    ("items_crafted"),
+        ItemsEaten      ("items_eaten"),
+        PVPKills        ("pvp_kills"),
+        PVEKills        ("pve_kills"),
+        Deaths          ("deaths");
+        
+        private String columnName;
+        
+        @Override
+        public String toString() { return columnName; }
+    }
+    
+    /**
+     * Represents the <i>server_totals</i> table.<br />
+     * The columns are named after the corresponding columns of the <i>player_summary</i> table.
+     * @author bitWolfy
+     *
+     */
+    @AllArgsConstructor(access=AccessLevel.PUBLIC)
+    @Getter(AccessLevel.PUBLIC)
+    public enum ServerTotalsTable implements DBTable {
+        TableName       ("server_totals"),
+        ServerTotalsId  ("server_totals_id"),
+        BlocksBroken    ("blocks_broken"),
+        BlocksPlaced    ("blocks_placed"),
+        DistanceFoot    ("distance_foot"),
+        DistanceSwim    ("distance_swim"),
+        DistanceFlight  ("distance_flight"),
+        DistanceBoat    ("distance_boat"),
+        DistanceMinecart("distance_minecart"),
+        DistanceRide    ("distance_ride"),
+        ItemsBroken     ("items_broken"),
+        ItemsCrafted    ("items_crafted"),
+        ItemsEaten      ("items_eaten"),
+        PVPKills        ("pvp_kills"),
+        PVEKills        ("pve_kills"),
+        Deaths          ("deaths");
+        
+        private String columnName;
+        
+        @Override
+        public String toString() { return columnName; }
+    }
 }
@@ -20,6 +20,8 @@
 
 package com.wolvencraft.yasp.db.totals;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -28,14 +30,15 @@ import java.util.Map;
 import org.bukkit.ChatColor;
 
 import com.wolvencraft.yasp.Statistics;
+import com.wolvencraft.yasp.db.Database;
 import com.wolvencraft.yasp.db.Query;
+import com.wolvencraft.yasp.db.Query.DatabaseQuery;
+import com.wolvencraft.yasp.db.Query.QueryResult;
+import com.wolvencraft.yasp.db.Replica;
+import com.wolvencraft.yasp.db.data.players.SummaryPlayerEntry;
 import com.wolvencraft.yasp.db.tables.Normal.PlayerDistance;
 import com.wolvencraft.yasp.db.tables.Normal.PlayerStats;
-import com.wolvencraft.yasp.db.tables.Normal.BlockTotals;
-import com.wolvencraft.yasp.db.tables.Normal.DeathTotals;
-import com.wolvencraft.yasp.db.tables.Normal.ItemTotals;
-import com.wolvencraft.yasp.db.tables.Normal.PVETotals;
-import com.wolvencraft.yasp.db.tables.Normal.PVPTotals;
+import com.wolvencraft.yasp.db.tables.Normal.PlayerSummary;
 import com.wolvencraft.yasp.util.NamedInteger;
 import com.wolvencraft.yasp.util.Util;
 import com.wolvencraft.yasp.util.VariableManager.PlayerVariable;
@@ -47,15 +50,33 @@ import com.wolvencraft.yasp.util.VariableManager.PlayerVariable;
  */
 public class PlayerTotals {
     
+    /**
+     * Maximum number of players whose totals are refreshed with a single query
+     */
+    private static final int REFRESH_CHUNK_SIZE = 500;
+    
     private int playerId;
     private Map<PlayerVariable, Object> values;
+    private SummaryPlayerEntry pending;
     
     /**
      * <b>Default Constructor</b><br />
      * Sets up the default values for the data holder.
+     * @param playerId Player ID
      */
     public PlayerTotals(int playerId) {
+        this(playerId, null);
+    }
+    
+    /**
+     * <b>Default Constructor</b><br />
+     * Sets up the default values for the data holder, recording the changes in the specified summary entry.
+     * @param playerId Player ID
+     * @param pending Summary entry that collects the changes, or <b>null</b> if the player is offline
+     */
+    public PlayerTotals(int playerId, SummaryPlayerEntry pending) {
         this.playerId = playerId;
+        this.pending = pending;
         
         values = new HashMap<PlayerVariable, Object>();
         values.put(PlayerVariable.SESSION_START, Util.getTimestamp());
@@ -72,25 +93,105 @@ public class PlayerTotals {
         
         if(!Statistics.getInstance().isEnabled()) return;
         
-        try { values.put(PlayerVariable.SESSION_START, Query.table(PlayerStats.TableName).column(PlayerStats.LoginTime).condition(PlayerStats.PlayerId, playerId).select().asLong(PlayerStats.LoginTime)); }
-        catch (NullPointerException ex) { values.put(PlayerVariable.SESSION_START, Util.getTimestamp()); }
+        // The login time has just been written, so the players table is always read from the primary database
+        QueryResult player = Query.table(PlayerStats.TableName)
+                .column(PlayerStats.LoginTime)
+                .column(PlayerStats.Playtime)
+                .condition(PlayerStats.PlayerId, playerId)
+                .select();
+        DatabaseQuery summaryQuery = Query.table(PlayerSummary.TableName)
+                .condition(PlayerSummary.PlayerId, playerId);
+        if(isReplicaCurrent()) summaryQuery.fromReplica();
+        QueryResult summary = summaryQuery.select();
+        
+        applyData(player, summary);
+    }
+    
+    /**
+     * Fetches the data for all specified players from the remote database.<br />
+     * Instead of querying every player separately, the players are read in chunks, with one query per table
+     * for every chunk. The rows are then handed out to the corresponding data holders.
+     * @param totals Data holders to refresh
+     */
+    public static void fetchData(Collection<PlayerTotals> totals) {
+        
+        if(!Statistics.getInstance().isEnabled() || totals.isEmpty()) return;
         
-        long sessionStart = (Long) values.get(PlayerVariable.SESSION_START);
-        long totalPlaytime = Query.table(PlayerStats.TableName).column(PlayerStats.Playtime).condition(PlayerStats.PlayerId, playerId).select().asLong(PlayerStats.Playtime);
+        Map<Integer, List<PlayerTotals>> players = new HashMap<Integer, List<PlayerTotals>>();
+        for(PlayerTotals entry : totals) {
+            List<PlayerTotals> holders = players.get(entry.playerId);
+            if(holders == null) {
+                holders = new ArrayList<PlayerTotals>(1);
+                players.put(entry.playerId, holders);
+            }
+            holders.add(entry);
+        }
+        
+        List<Integer> ids = new ArrayList<Integer>(players.keySet());
+        for(int start = 0; start < ids.size(); start += REFRESH_CHUNK_SIZE) {
+            List<Integer> chunk = ids.subList(start, Math.min(start + REFRESH_CHUNK_SIZE, ids.size()));
+            
+            Map<Integer, QueryResult> playerRows = new HashMap<Integer, QueryResult>(chunk.size() * 2);
+            for(QueryResult row : Query.table(PlayerStats.TableName)
+                    .column(PlayerStats.PlayerId)
+                    .column(PlayerStats.LoginTime)
+                    .column(PlayerStats.Playtime)
+                    .conditionIn(PlayerStats.PlayerId, chunk)
+                    .selectAll()) {
+                playerRows.put(row.asInt(PlayerStats.PlayerId), row);
+            }
+            
+            Map<Integer, QueryResult> summaryRows = new HashMap<Integer, QueryResult>(chunk.size() * 2);
+            DatabaseQuery summaryQuery = Query.table(PlayerSummary.TableName)
+                    .conditionIn(PlayerSummary.PlayerId, chunk);
+            if(isReplicaCurrent()) summaryQuery.fromReplica();
+            for(QueryResult row : summaryQuery.selectAll()) {
+                summaryRows.put(row.asInt(PlayerSummary.PlayerId), row);
+            }
+            
+            for(Integer id : chunk) {
+                for(PlayerTotals entry : players.get(id)) entry.applyData(playerRows.get(id), summaryRows.get(id));
+            }
+        }
+    }
+    
+    /**
+     * Checks if the summary rows may be read from the replica.<br />
+     * The summaries are read right after they are written, so a replica that lags behind at all would lower the totals.
+     * @return <b>true</b> if the replica is healthy and reports no lag, <b>false</b> otherwise
+     */
+    private static boolean isReplicaCurrent() {
+        Replica replica = Database.getReplica();
+        return replica != null && replica.isHealthy() && replica.getLag() == 0;
+    }
+    
+    /**
+     * Calculates the values from the rows of the corresponding tables
+     * @param player Row from the players table, or <b>null</b> if there is none
+     * @param summary Row from the summary table, or <b>null</b> if there is none
+     */
+    private void applyData(QueryResult player, QueryResult summary) {
+        long sessionStart = Util.getTimestamp();
+        long totalPlaytime = 0;
+        if(player != null) {
+            if(!player.isNull(PlayerStats.LoginTime)) sessionStart = player.asLong(PlayerStats.LoginTime);
+            totalPlaytime = player.asLong(PlayerStats.Playtime);
+        }
+        values.put(PlayerVariable.SESSION_START, sessionStart);
         values.put(PlayerVariable.SESSION_LENGTH, Util.parseTimestamp(Util.getTimestamp() - sessionStart));
         values.put(PlayerVariable.SESSION_LENGTH_RAW, (Util.getTimestamp() - sessionStart));
         values.put(PlayerVariable.TOTAL_PLAYTIME, Util.parseTimestamp(totalPlaytime));
         values.put(PlayerVariable.TOTAL_PLAYTIME_RAW, totalPlaytime);
         
-        values.put(PlayerVariable.BLOCKS_BROKEN, (int) Query.table(BlockTotals.TableName).column(BlockTotals.Destroyed).condition(BlockTotals.PlayerId, playerId).sum());
-        values.put(PlayerVariable.BLOCKS_PLACED, (int) Query.table(BlockTotals.TableName).column(BlockTotals.Placed).condition(BlockTotals.PlayerId, playerId).sum());
+        values.put(PlayerVariable.BLOCKS_BROKEN, (int) readTotal(summary, PlayerSummary.BlocksBroken));
+        values.put(PlayerVariable.BLOCKS_PLACED, (int) readTotal(summary, PlayerSummary.BlocksPlaced));
         
-        values.put(PlayerVariable.DISTANCE_FOOT, Query.table(PlayerDistance.TableName).column(PlayerDistance.Foot).condition(PlayerDistance.PlayerId, playerId).sum());
-        values.put(PlayerVariable.DISTANCE_BOAT, Query.table(PlayerDistance.TableName).column(PlayerDistance.Boat).condition(PlayerDistance.PlayerId, playerId).sum());
-        values.put(PlayerVariable.DISTANCE_CART, Query.table(PlayerDistance.TableName).column(PlayerDistance.Minecart).condition(PlayerDistance.PlayerId, playerId).sum());
-        values.put(PlayerVariable.DISTANCE_RIDE, Query.table(PlayerDistance.TableName).column(PlayerDistance.Ride).condition(PlayerDistance.PlayerId, playerId).sum());
-        values.put(PlayerVariable.DISTANCE_SWIM, Query.table(PlayerDistance.TableName).column(PlayerDistance.Swim).condition(PlayerDistance.PlayerId, playerId).sum());
-        values.put(PlayerVariable.DISTANCE_FLIGHT, Query.table(PlayerDistance.TableName).column(PlayerDistance.Flight).condition(PlayerDistance.PlayerId, playerId).sum());
+        values.put(PlayerVariable.DISTANCE_FOOT, readTotal(summary, PlayerSummary.DistanceFoot));
+        values.put(PlayerVariable.DISTANCE_BOAT, readTotal(summary, PlayerSummary.DistanceBoat));
+        values.put(PlayerVariable.DISTANCE_CART, readTotal(summary, PlayerSummary.DistanceMinecart));
+        values.put(PlayerVariable.DISTANCE_RIDE, readTotal(summary, PlayerSummary.DistanceRide));
+        values.put(PlayerVariable.DISTANCE_SWIM, readTotal(summary, PlayerSummary.DistanceSwim));
+        values.put(PlayerVariable.DISTANCE_FLIGHT, readTotal(summary, PlayerSummary.DistanceFlight));
         
         double totalDistance = ((Double) values.get(PlayerVariable.DISTANCE_FOOT))
                 + ((Double) values.get(PlayerVariable.DISTANCE_BOAT))
@@ -100,17 +201,15 @@ public class PlayerTotals {
                 + ((Double) values.get(PlayerVariable.DISTANCE_FLIGHT));
         values.put(PlayerVariable.DISTANCE_TRAVELED, totalDistance);
         
-        values.put(PlayerVariable.ITEMS_BROKEN, (int) Query.table(ItemTotals.TableName).column(ItemTotals.Broken).condition(ItemTotals.PlayerId, playerId).sum());
-        values.put(PlayerVariable.ITEMS_CRAFTED, (int) Query.table(ItemTotals.TableName).column(ItemTotals.Crafted).condition(ItemTotals.PlayerId, playerId).sum());
-        values.put(PlayerVariable.ITEMS_EATEN, (int) Query.table(ItemTotals.TableName).column(ItemTotals.Used).condition(ItemTotals.PlayerId, playerId).sum());
+        values.put(PlayerVariable.ITEMS_BROKEN, (int) readTotal(summary, PlayerSummary.ItemsBroken));
+        values.put(PlayerVariable.ITEMS_CRAFTED, (int) readTotal(summary, PlayerSummary.ItemsCrafted));
+        values.put(PlayerVariable.ITEMS_EATEN, (int) readTotal(summary, PlayerSummary.ItemsEaten));
         
-        int pvpKills = (int) Query.table(PVPTotals.TableName).column(PVPTotals.Times).condition(PVPTotals.PlayerId, playerId).sum();
+        int pvpKills = (int) readTotal(summary, PlayerSummary.PVPKills);
         values.put(PlayerVariable.PVP_KILLS, pvpKills);
-        values.put(PlayerVariable.PVE_KILLS, (int) Query.table(PVETotals.TableName).column(PVETotals.CreatureKilled).condition(PVETotals.PlayerId, playerId).sum());
+        values.put(PlayerVariable.PVE_KILLS, (int) readTotal(summary, PlayerSummary.PVEKills));
         
-        int pvpDeaths = (int) Query.table(PVPTotals.TableName).column(PVPTotals.Times).condition(PVPTotals.VictimId, playerId).sum();
-        int otherDeaths = (int) Query.table(DeathTotals.TableName).column(DeathTotals.Times).condition(DeathTotals.PlayerId, playerId).sum();
-        int deaths = pvpDeaths + otherDeaths;
+        int deaths = (int) readTotal(summary, PlayerSummary.Deaths);
         values.put(PlayerVariable.DEATHS, deaths);
         
         double kdr = 1;
@@ -119,6 +218,28 @@ public class PlayerTotals {
         values.put(PlayerVariable.KILL_DEATH_RATIO, kdr);
     }
     
+    /**
+     * Returns the value of the specified total, including the changes that have not been written yet
+     * @param summary Row from the summary table, or <b>null</b> if there is none
+     * @param column Summary column
+     * @return Total value
+     */
+    private double readTotal(QueryResult summary, PlayerSummary column) {
+        double value = 0;
+        if(summary != null && !summary.isNull(column)) value = summary.asDouble(column);
+        if(pending != null) value += pending.getPending(column);
+        return value;
+    }
+    
+    /**
+     * Records a change to the specified total, so that it is added to the summary table on the next sync
+     * @param column Summary column
+     * @param amount Amount to add
+     */
+    private void addPending(PlayerSummary column, double amount) {
+        if(pending != null) pending.add(column, amount);
+    }
+    
     /**
      * Safely returns the value of the specified variable
      * @param type Variable to return
@@ -299,6 +420,7 @@ public class PlayerTotals {
      */
     public void blockBreak() {
         incrementValue(PlayerVariable.BLOCKS_BROKEN);
+        addPending(PlayerSummary.BlocksBroken, 1);
         Statistics.getServerTotals().blockBreak();
     }
     
@@ -307,6 +429,7 @@ public class PlayerTotals {
      */
     public void blockPlace() {
         incrementValue(PlayerVariable.BLOCKS_PLACED);
+        addPending(PlayerSummary.BlocksPlaced, 1);
         Statistics.getServerTotals().blockPlace();
     }
     
@@ -321,21 +444,27 @@ public class PlayerTotals {
         switch(type) {
             case Foot:
                 incrementValue(PlayerVariable.DISTANCE_FOOT, distance);
+                addPending(PlayerSummary.DistanceFoot, distance);
                 break;
             case Swim:
                 incrementValue(PlayerVariable.DISTANCE_SWIM, distance);
+                addPending(PlayerSummary.DistanceSwim, distance);
                 break;
             case Flight:
                 incrementValue(PlayerVariable.DISTANCE_FLIGHT, distance);
+                addPending(PlayerSummary.DistanceFlight, distance);
                 break;
             case Boat:
                 incrementValue(PlayerVariable.DISTANCE_BOAT, distance);
+                addPending(PlayerSummary.DistanceBoat, distance);
                 break;
             case Minecart:
                 incrementValue(PlayerVariable.DISTANCE_CART, distance);
+                addPending(PlayerSummary.DistanceMinecart, distance);
                 break;
             case Ride:
                 incrementValue(PlayerVariable.DISTANCE_RIDE, distance);
+                addPending(PlayerSummary.DistanceRide, distance);
                 break;
             default:
                 break;
@@ -347,6 +476,7 @@ public class PlayerTotals {
      */
     public void toolBreak() {
         incrementValue(PlayerVariable.ITEMS_BROKEN);
+        addPending(PlayerSummary.ItemsBroken, 1);
         Statistics.getServerTotals().toolBreak();
     }
     
@@ -355,6 +485,7 @@ public class PlayerTotals {
      */
     public void itemCraft() {
         incrementValue(PlayerVariable.ITEMS_CRAFTED);
+        addPending(PlayerSummary.ItemsCrafted, 1);
         Statistics.getServerTotals().itemCraft();
     }
     
@@ -363,6 +494,7 @@ public class PlayerTotals {
      */
     public void snacksEaten() {
         incrementValue(PlayerVariable.ITEMS_EATEN);
+        addPending(PlayerSummary.ItemsEaten, 1);
         Statistics.getServerTotals().snacksEaten();
     }
     
@@ -377,6 +509,7 @@ public class PlayerTotals {
         values.put(PlayerVariable.KILL_DEATH_RATIO, kdr);
         
         incrementValue(PlayerVariable.PVP_KILLS);
+        addPending(PlayerSummary.PVPKills, 1);
         Statistics.getServerTotals().pvpKill();
     }
     
@@ -391,6 +524,7 @@ public class PlayerTotals {
         values.put(PlayerVariable.KILL_DEATH_RATIO, kdr);
         
         incrementValue(PlayerVariable.DEATHS);
+        addPending(PlayerSummary.Deaths, 1);
         Statistics.getServerTotals().death();
     }
     
@@ -399,6 +533,7 @@ public class PlayerTotals {
      */
     public void pveKill() {
         incrementValue(PlayerVariable.PVE_KILLS);
+        addPending(PlayerSummary.PVEKills, 1);
         Statistics.getServerTotals().pveKill();
     }
     
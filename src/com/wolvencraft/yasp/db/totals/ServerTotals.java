@@ -20,17 +20,31 @@
 
 package com.wolvencraft.yasp.db.totals;
 
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
 
 import com.wolvencraft.yasp.Statistics;
 import com.wolvencraft.yasp.db.Query;
+import com.wolvencraft.yasp.db.Query.Aggregate;
+import com.wolvencraft.yasp.db.Query.DatabaseQuery;
+import com.wolvencraft.yasp.db.Query.QueryResult;
+import com.wolvencraft.yasp.db.Transaction;
+import com.wolvencraft.yasp.db.data.players.SummaryPlayerEntry;
 import com.wolvencraft.yasp.db.tables.Normal.PlayerDistance;
 import com.wolvencraft.yasp.db.tables.Normal.BlockTotals;
 import com.wolvencraft.yasp.db.tables.Normal.DeathTotals;
 import com.wolvencraft.yasp.db.tables.Normal.ItemTotals;
 import com.wolvencraft.yasp.db.tables.Normal.PVETotals;
 import com.wolvencraft.yasp.db.tables.Normal.PVPTotals;
+import com.wolvencraft.yasp.db.tables.Normal.PlayerSummary;
+import com.wolvencraft.yasp.db.tables.Normal.ServerTotalsTable;
+import com.wolvencraft.yasp.session.OnlineSession;
+import com.wolvencraft.yasp.settings.LocalConfiguration;
+import com.wolvencraft.yasp.util.Message;
+import com.wolvencraft.yasp.util.cache.OnlineSessionCache;
 import com.wolvencraft.yasp.util.VariableManager.ServerVariable;
 
 /**
@@ -40,9 +54,14 @@ import com.wolvencraft.yasp.util.VariableManager.ServerVariable;
  */
 public class ServerTotals {
     
+    /**
+     * The server totals table holds a single row with this ID
+     */
+    private static final int ROW_ID = 1;
+    
     /**
      * <b>Default Constructor</b><br />
-     * Sets up the default values for the data holder.
+     * Sets up the default values for the data holder, and loads the totals from the database.
      */
     public ServerTotals() {
         blocksBroken = 0;
@@ -61,6 +80,13 @@ public class ServerTotals {
         snacksEaten = 0;
         
         pvpKills = 0;
+        pveKills = 0;
+        deaths = 0;
+        
+        pending = new EnumMap<PlayerSummary, Double>(PlayerSummary.class);
+        lastReconcile = System.currentTimeMillis();
+        
+        fetchData();
     }
     
     private int blocksBroken;
@@ -82,35 +108,186 @@ public class ServerTotals {
     private int pveKills;
     private int deaths;
     
+    private Map<PlayerSummary, Double> pending;
+    private long lastReconcile;
+    
     /**
      * Fetches the data from the remote database.<br />
-     * Automatically calculates values from the contents of corresponding tables.
+     * Reads the precomputed totals from the replica, if there is one, and adds the changes that have not been written yet.
      */
     public void fetchData() {
+        fetchData(true);
+    }
+    
+    /**
+     * Fetches the data from the remote database.<br />
+     * Reads the precomputed totals, and adds the changes that have not been written yet.
+     * @param fromReplica <b>true</b> to read the totals from the replica if it is usable, <b>false</b> to read them from the primary database
+     */
+    private void fetchData(boolean fromReplica) {
 
         if(!Statistics.getInstance().isEnabled()) return;
         
-        blocksBroken = (int) Query.table(BlockTotals.TableName).column(BlockTotals.Destroyed).sum();
-        blocksPlaced = (int) Query.table(BlockTotals.TableName).column(BlockTotals.Placed).sum();
+        DatabaseQuery query = Query.table(ServerTotalsTable.TableName).condition(ServerTotalsTable.ServerTotalsId, ROW_ID);
+        if(fromReplica) query.fromReplica();
+        QueryResult row = query.select();
+        
+        Map<PlayerSummary, Double> unwritten;
+        synchronized(this) { unwritten = new EnumMap<PlayerSummary, Double>(pending); }
+        for(OnlineSession session : OnlineSessionCache.getSessions()) {
+            SummaryPlayerEntry entry = session.getPlayersData().getSummaryData();
+            for(PlayerSummary column : PlayerSummary.values()) {
+                double amount = entry.getPending(column);
+                if(amount == 0) continue;
+                Double value = unwritten.get(column);
+                unwritten.put(column, value == null ? amount : value + amount);
+            }
+        }
         
-        distanceFoot = Query.table(PlayerDistance.TableName).column(PlayerDistance.Foot).sum();
-        distanceRide = Query.table(PlayerDistance.TableName).column(PlayerDistance.Foot).sum();
-        distanceMinecart = Query.table(PlayerDistance.TableName).column(PlayerDistance.Foot).sum();
-        distanceBoat = Query.table(PlayerDistance.TableName).column(PlayerDistance.Foot).sum();
-        distanceFlight = Query.table(PlayerDistance.TableName).column(PlayerDistance.Foot).sum();
-        distanceSwim = Query.table(PlayerDistance.TableName).column(PlayerDistance.Foot).sum();
+        blocksBroken = (int) readTotal(row, unwritten, PlayerSummary.BlocksBroken);
+        blocksPlaced = (int) readTotal(row, unwritten, PlayerSummary.BlocksPlaced);
+        
+        distanceFoot = readTotal(row, unwritten, PlayerSummary.DistanceFoot);
+        distanceRide = readTotal(row, unwritten, PlayerSummary.DistanceRide);
+        distanceMinecart = readTotal(row, unwritten, PlayerSummary.DistanceMinecart);
+        distanceBoat = readTotal(row, unwritten, PlayerSummary.DistanceBoat);
+        distanceFlight = readTotal(row, unwritten, PlayerSummary.DistanceFlight);
+        distanceSwim = readTotal(row, unwritten, PlayerSummary.DistanceSwim);
         distanceTotal = distanceFoot + distanceRide + distanceMinecart + distanceBoat + distanceFlight + distanceSwim;
         
-        toolsBroken = (int) Query.table(ItemTotals.TableName).column(ItemTotals.Broken).sum();
-        itemsCrafted = (int) Query.table(ItemTotals.TableName).column(ItemTotals.Crafted).sum();
-        snacksEaten = (int) Query.table(ItemTotals.TableName).column(ItemTotals.Used).sum();
+        toolsBroken = (int) readTotal(row, unwritten, PlayerSummary.ItemsBroken);
+        itemsCrafted = (int) readTotal(row, unwritten, PlayerSummary.ItemsCrafted);
+        snacksEaten = (int) readTotal(row, unwritten, PlayerSummary.ItemsEaten);
+        
+        pvpKills = (int) readTotal(row, unwritten, PlayerSummary.PVPKills);
+        pveKills = (int) readTotal(row, unwritten, PlayerSummary.PVEKills);
+        deaths = (int) readTotal(row, unwritten, PlayerSummary.Deaths);
+    }
+    
+    /**
+     * Returns the value of the specified total, including the changes that have not been written yet
+     * @param row Row from the server totals table, or <b>null</b> if there is none
+     * @param unwritten Changes that have not been written yet
+     * @param column Summary column
+     * @return Total value
+     */
+    private static double readTotal(QueryResult row, Map<PlayerSummary, Double> unwritten, PlayerSummary column) {
+        double value = 0;
+        if(row != null && !row.isNull(column.getColumnName())) value = row.asDouble(column.getColumnName());
+        Double amount = unwritten.get(column);
+        if(amount != null) value += amount;
+        return value;
+    }
+    
+    /**
+     * Records the changes that were committed to a player's summary, so that they are added to the server totals on the next sync
+     * @param changes Changes to the player's totals
+     */
+    public synchronized void addChanges(Map<PlayerSummary, Double> changes) {
+        for(Entry<PlayerSummary, Double> entry : changes.entrySet()) {
+            Double value = pending.get(entry.getKey());
+            pending.put(entry.getKey(), value == null ? entry.getValue() : value + entry.getValue());
+        }
+    }
+    
+    /**
+     * Adds the collected changes to the server totals row in a single statement.<br />
+     * If the statement fails, or the transaction it runs in is discarded, the changes are kept for the next sync.
+     * @return <b>true</b> if the changes were written, <b>false</b> otherwise
+     */
+    public boolean pushData() {
+        final Map<PlayerSummary, Double> changes;
+        synchronized(this) {
+            if(pending.isEmpty()) return true;
+            changes = pending;
+            pending = new EnumMap<PlayerSummary, Double>(PlayerSummary.class);
+        }
+        
+        DatabaseQuery query = Query.table(ServerTotalsTable.TableName).condition(ServerTotalsTable.ServerTotalsId, ROW_ID);
+        for(Entry<PlayerSummary, Double> entry : changes.entrySet()) query.value(entry.getKey().getColumnName(), entry.getValue());
+        if(query.upsert(true)) {
+            Transaction.onDiscard(new Runnable() {
+                @Override
+                public void run() {
+                    addChanges(changes);
+                }
+            });
+            return true;
+        }
+        
+        addChanges(changes);
+        return false;
+    }
+    
+    /**
+     * Recalculates the server totals from the player data tables if the reconciliation interval has passed.<br />
+     * The collected changes are written first; the totals row is then overwritten with the sums of the source
+     * tables, which corrects any drift, and the local values are reloaded.<br />
+     * This method has to run on the same thread as the synchronization, so that this server writes no changes in between.
+     * Other servers sharing the database can still add their changes between the sums and the overwrite; those changes
+     * are lost from the totals row until the next reconciliation.
+     */
+    public void reconcile() {
+        long interval = LocalConfiguration.DBReconcileInterval.toInteger() * 3600000L;
+        if(interval <= 0 || System.currentTimeMillis() - lastReconcile < interval) return;
+        lastReconcile = System.currentTimeMillis();
+        if(!pushData()) return;
+        
+        QueryResult blocks = Query.table(BlockTotals.TableName)
+                .aggregate(Aggregate.Sum, BlockTotals.Destroyed)
+                .aggregate(Aggregate.Sum, BlockTotals.Placed)
+                .select();
+        QueryResult distances = Query.table(PlayerDistance.TableName)
+                .aggregate(Aggregate.Sum, PlayerDistance.Foot)
+                .aggregate(Aggregate.Sum, PlayerDistance.Ride)
+                .aggregate(Aggregate.Sum, PlayerDistance.Minecart)
+                .aggregate(Aggregate.Sum, PlayerDistance.Boat)
+                .aggregate(Aggregate.Sum, PlayerDistance.Flight)
+                .aggregate(Aggregate.Sum, PlayerDistance.Swim)
+                .select();
+        QueryResult items = Query.table(ItemTotals.TableName)
+                .aggregate(Aggregate.Sum, ItemTotals.Broken)
+                .aggregate(Aggregate.Sum, ItemTotals.Crafted)
+                .aggregate(Aggregate.Sum, ItemTotals.Used)
+                .select();
+        QueryResult pvp = Query.table(PVPTotals.TableName)
+                .aggregate(Aggregate.Sum, PVPTotals.Times)
+                .select();
+        QueryResult pve = Query.table(PVETotals.TableName)
+                .aggregate(Aggregate.Sum, PVETotals.CreatureKilled)
+                .aggregate(Aggregate.Sum, PVETotals.PlayerKilled)
+                .select();
+        QueryResult other = Query.table(DeathTotals.TableName)
+                .aggregate(Aggregate.Sum, DeathTotals.Times)
+                .select();
+        if(blocks == null || distances == null || items == null || pvp == null || pve == null || other == null) {
+            Message.log(Level.WARNING, "Could not reconcile the server totals, the player data could not be read");
+            return;
+        }
         
-        pvpKills = (int) Query.table(PVPTotals.TableName).column(PVPTotals.Times).sum();
-        pveKills = (int) Query.table(PVETotals.TableName).column(PVETotals.CreatureKilled).sum();
+        boolean result = Query.table(ServerTotalsTable.TableName)
+            .value(ServerTotalsTable.BlocksBroken, blocks.asLong(BlockTotals.Destroyed))
+            .value(ServerTotalsTable.BlocksPlaced, blocks.asLong(BlockTotals.Placed))
+            .value(ServerTotalsTable.DistanceFoot, distances.asDouble(PlayerDistance.Foot))
+            .value(ServerTotalsTable.DistanceRide, distances.asDouble(PlayerDistance.Ride))
+            .value(ServerTotalsTable.DistanceMinecart, distances.asDouble(PlayerDistance.Minecart))
+            .value(ServerTotalsTable.DistanceBoat, distances.asDouble(PlayerDistance.Boat))
+            .value(ServerTotalsTable.DistanceFlight, distances.asDouble(PlayerDistance.Flight))
+            .value(ServerTotalsTable.DistanceSwim, distances.asDouble(PlayerDistance.Swim))
+            .value(ServerTotalsTable.ItemsBroken, items.asLong(ItemTotals.Broken))
+            .value(ServerTotalsTable.ItemsCrafted, items.asLong(ItemTotals.Crafted))
+            .value(ServerTotalsTable.ItemsEaten, items.asLong(ItemTotals.Used))
+            .value(ServerTotalsTable.PVPKills, pvp.asLong(PVPTotals.Times))
+            .value(ServerTotalsTable.PVEKills, pve.asLong(PVETotals.CreatureKilled))
+            .value(ServerTotalsTable.Deaths, pvp.asLong(PVPTotals.Times) + pve.asLong(PVETotals.PlayerKilled) + other.asLong(DeathTotals.Times))
+            .condition(ServerTotalsTable.ServerTotalsId, ROW_ID)
+            .upsert();
+        if(!result) return;
         
-        int pveDeaths = (int) Query.table(PVETotals.TableName).column(PVETotals.PlayerKilled).sum();
-        int otherKills = (int) Query.table(DeathTotals.TableName).column(DeathTotals.Times).sum();
-        deaths = pveDeaths + otherKills;
+        int oldBroken = blocksBroken, oldPlaced = blocksPlaced, oldDeaths = deaths;
+        fetchData(false);
+        Message.debug("Server totals reconciled: blocks broken " + oldBroken + " -> " + blocksBroken
+                + ", blocks placed " + oldPlaced + " -> " + blocksPlaced + ", deaths " + oldDeaths + " -> " + deaths);
     }
     
     /**
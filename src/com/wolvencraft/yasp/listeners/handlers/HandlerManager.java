@@ -25,6 +25,7 @@ import org.bukkit.entity.Player;
 import org.bukkit.scheduler.BukkitTask;
 
 import com.wolvencraft.yasp.Statistics;
+import com.wolvencraft.yasp.db.DatabaseExecutor;
 import com.wolvencraft.yasp.settings.Constants.StatPerms;
 import com.wolvencraft.yasp.settings.Module;
 import com.wolvencraft.yasp.settings.RemoteConfiguration;
@@ -70,8 +71,8 @@ public class HandlerManager {
         return Bukkit.getScheduler().runTask(Statistics.getInstance(), task);
     }
     
-    public static BukkitTask runAsyncTask(Runnable task) {
-        return Bukkit.getScheduler().runTaskAsynchronously(Statistics.getInstance(), task);
+    public static void runAsyncTask(Runnable task) {
+        DatabaseExecutor.submit(task);
     }
     
     public static BukkitTask runTaskLater(Runnable task, long delay) {
@@ -38,6 +38,8 @@ import org.bukkit.scoreboard.Objective;
 import org.bukkit.scoreboard.Scoreboard;
 import org.bukkit.scoreboard.ScoreboardManager;
 
+import com.wolvencraft.yasp.db.BatchWriter;
+import com.wolvencraft.yasp.db.Journal;
 import com.wolvencraft.yasp.db.Query;
 import com.wolvencraft.yasp.db.data.DataStore;
 import com.wolvencraft.yasp.db.data.DataStore.DataStoreType;
@@ -50,7 +52,6 @@ import com.wolvencraft.yasp.db.tables.Normal.PlayerStats;
 import com.wolvencraft.yasp.db.totals.PlayerTotals;
 import com.wolvencraft.yasp.util.NamedInteger;
 import com.wolvencraft.yasp.util.Util;
-import com.wolvencraft.yasp.util.cache.OnlineSessionCache;
 import com.wolvencraft.yasp.util.cache.PlayerCache;
 
 /**
@@ -88,7 +89,7 @@ public class OnlineSession implements PlayerSession {
         this.dataStores.addAll(Util.getModules(this));
         this.dataStores.addAll(Util.getHooks(this));
         
-        this.playerTotals = new PlayerTotals(id);
+        this.playerTotals = new PlayerTotals(id, playersData.getSummaryData());
         this.scoreboard = null;
         
         Query.table(PlayerStats.TableName)
@@ -127,12 +128,26 @@ public class OnlineSession implements PlayerSession {
      * Performs a database operation to push the locally stored data.
      */
     public void pushData() {
-        playersData.sync();
-        for(DataStore store : dataStores) store.pushData();
-        
+        BatchWriter batch = new BatchWriter();
+        pushData(batch);
+        batch.flush();
         playerTotals.fetchData();
     }
     
+    /**
+     * Performs a database operation to push the locally stored data.<br />
+     * Detailed entries are queued in the specified batch instead of being written immediately.
+     * Writes that cannot reach the database are stored in the local journal.
+     * @param batch Batch writer for detailed entries
+     */
+    public void pushData(BatchWriter batch) {
+        Journal.setCapturing(true);
+        try {
+            playersData.sync(batch);
+            for(DataStore store : dataStores) store.pushData(batch);
+        } finally { Journal.setCapturing(false); }
+    }
+    
     /**
      * Dumps all locally stored data
      */
@@ -167,7 +182,6 @@ public class OnlineSession implements PlayerSession {
         ((PVPData) getDataStore(DataStoreType.PVP)).playerKilledPlayer(victim, weapon);
         playersData.getMiscData().killed(victim);
         playerTotals.pvpKill();
-        OnlineSessionCache.fetch(victim).getPlayerTotals().death();
     }
     
     /**
@@ -20,6 +20,9 @@
 
 package com.wolvencraft.yasp.settings;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.wolvencraft.yasp.Statistics;
 import com.wolvencraft.yasp.util.ExceptionHandler;
 
@@ -38,7 +41,47 @@ public enum LocalConfiguration {
     DBUser          ("database.user"),
     DBPass          ("database.pass"),
     DBPrefix        ("database.prefix"),
-    DBConnect       ("jdbc:mysql://" + DBHost.toString() + ":" + DBPort.toInteger() + "/" + DBName.toString(), true),
+    DBConnect       ("jdbc:mysql://" + DBHost.toString() + ":" + DBPort.toInteger() + "/" + DBName.toString() + "?useServerPrepStmts=true&useCursorFetch=true&rewriteBatchedStatements=true", true),
+    DBPoolMinSize   ("database.pool.min-size"),
+    DBPoolMaxSize   ("database.pool.max-size"),
+    DBPoolIdle      ("database.pool.idle-timeout"),
+    DBPoolLeak      ("database.pool.leak-threshold"),
+    DBPoolWait      ("database.pool.borrow-timeout"),
+    DBPoolStatements("database.pool.statement-cache"),
+    DBFailover      ("database.failover"),
+    DBConnectTimeout("database.connect-timeout"),
+    DBQueryTimeout  ("database.query-timeout"),
+    DBBreakerThreshold("database.breaker.threshold"),
+    DBBreakerBackoff("database.breaker.backoff"),
+    DBBreakerMaxBackoff("database.breaker.max-backoff"),
+    DBBatchSize     ("database.batch-size"),
+    DBFetchSize     ("database.fetch-size"),
+    DBJournalFsync  ("database.journal.fsync"),
+    DBJournalSegment("database.journal.segment-size"),
+    DBExecutorThreads("database.executor.threads"),
+    DBExecutorQueue ("database.executor.queue-size"),
+    DBExecutorOverflow("database.executor.overflow"),
+    DBExecutorBlock ("database.executor.block-timeout"),
+    DBTransactionMode("database.transaction.mode"),
+    DBTransactionSize("database.transaction.size"),
+    DBSlowThreshold ("database.slow-query.threshold"),
+    DBSlowInterval  ("database.slow-query.interval"),
+    DBSlowExplain   ("database.slow-query.explain"),
+    DBSlowMaxSize   ("database.slow-query.max-size"),
+    DBSlowFiles     ("database.slow-query.files"),
+    DBPartitioning  ("database.partitioning.enabled"),
+    DBPartitionInterval("database.partitioning.interval"),
+    DBPartitionAhead("database.partitioning.ahead"),
+    DBRollupAge     ("database.rollup.age"),
+    DBRollupChunkSize("database.rollup.chunk-size"),
+    DBRollupChunks  ("database.rollup.chunks"),
+    DBRollupInterval("database.rollup.interval"),
+    DBReplicaUrl    ("database.replica.url"),
+    DBReplicaUser   ("database.replica.user"),
+    DBReplicaPass   ("database.replica.pass"),
+    DBReplicaMaxLag ("database.replica.max-lag"),
+    DBReplicaCheckInterval("database.replica.check-interval"),
+    DBReconcileInterval("database.reconcile-interval"),
     LogPrefix       ("log-prefix"),
     ;
     
@@ -137,6 +180,20 @@ public enum LocalConfiguration {
         }
     }
     
+    /**
+     * Returns the value of the node as a list of Strings
+     * @return Node value, or an empty list if the node is not a list
+     */
+    public List<String> toStringList() {
+        List<String> list = new ArrayList<String>();
+        Object value = getValue();
+        if(!(value instanceof List)) return list;
+        for(Object entry : (List<?>) value) {
+            if(entry != null) list.add(entry.toString());
+        }
+        return list;
+    }
+    
     /**
      * Updates the cached node value
      */
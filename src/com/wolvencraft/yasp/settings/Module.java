@@ -26,10 +26,10 @@ import java.util.List;
 import lombok.AccessLevel;
 import lombok.Getter;
 
-import org.bukkit.Bukkit;
-
 import com.google.common.collect.Lists;
 import com.wolvencraft.yasp.Statistics;
+import com.wolvencraft.yasp.db.DatabaseExecutor;
+import com.wolvencraft.yasp.db.KeyValueWriter;
 import com.wolvencraft.yasp.db.Query;
 import com.wolvencraft.yasp.db.Query.QueryResult;
 import com.wolvencraft.yasp.db.data.DataStore;
@@ -158,10 +158,7 @@ public enum Module {
         this.version = version;
         if(!hook) return;
         String versionKey = "version." + KEY;
-        Query.table(SettingsTable.TableName)
-             .value("value", version)
-             .condition("key", versionKey)
-             .update();
+        KeyValueWriter.put(SettingsTable.TableName, versionKey, version);
     }
     
     /**
@@ -199,7 +196,7 @@ public enum Module {
      */
     private void updateCacheAsynchronously() {
         if(!Statistics.getInstance().isEnabled()) return;
-        Bukkit.getScheduler().runTaskAsynchronously(Statistics.getInstance(), new Runnable() {
+        DatabaseExecutor.submit("module." + name(), new Runnable() {
             @Override
             public void run() { updateCache(); }
         });
@@ -20,9 +20,9 @@
 
 package com.wolvencraft.yasp.settings;
 
-import org.bukkit.Bukkit;
-
 import com.wolvencraft.yasp.Statistics;
+import com.wolvencraft.yasp.db.DatabaseExecutor;
+import com.wolvencraft.yasp.db.KeyValueWriter;
 import com.wolvencraft.yasp.db.Query;
 import com.wolvencraft.yasp.db.Query.QueryResult;
 import com.wolvencraft.yasp.db.tables.Miscellaneous.SettingsTable;
@@ -104,12 +104,12 @@ public enum RemoteConfiguration {
     }
     
     /**
-     * Updates the configuration with the specified value
+     * Updates the configuration with the specified value.<br />
+     * The value is written on the next flush of the key-value writer.
      * @param value New configuration value
-     * @return <b>true</b> if the update was successful, <b>false</b> otherwise
      */
-    public boolean update(Object value) {
-        return Query.table(SettingsTable.TableName).value("value", value).condition("key", key).update();
+    public void update(Object value) {
+        KeyValueWriter.put(SettingsTable.TableName, key, value);
     }
     
     /**
@@ -128,7 +128,7 @@ public enum RemoteConfiguration {
      */
     private void updateCacheAsynchronously() {
         if(!Statistics.getInstance().isEnabled()) return;
-        Bukkit.getScheduler().runTaskAsynchronously(Statistics.getInstance(), new Runnable() {
+        DatabaseExecutor.submit("config." + name(), new Runnable() {
             @Override
             public void run() { updateCache(); }
         });
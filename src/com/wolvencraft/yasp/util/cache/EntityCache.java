@@ -20,31 +20,49 @@
 
 package com.wolvencraft.yasp.util.cache;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Horse;
+import org.bukkit.entity.Skeleton;
+import org.bukkit.entity.Villager;
+import org.bukkit.entity.Zombie;
 
 import com.wolvencraft.yasp.db.Query;
+import com.wolvencraft.yasp.db.RowHandler;
 import com.wolvencraft.yasp.db.tables.Miscellaneous.EntitiesTable;
+import com.wolvencraft.yasp.util.Message;
 import com.wolvencraft.yasp.util.cache.CachedData.CachedDataProcess;
 
 /**
- * Caches entity IDs server-side
+ * Caches entity IDs server-side.<br />
+ * An entity ID combines the entity type with its variant, such as the skeleton type or the villager profession,
+ * in the <code>type:variant</code> form; entities with no variant keep their plain type ID. In the cache, the
+ * type and the variant are packed into a single integer key. The whole entities table is loaded in one query
+ * when the process runs; entities that have not been seen yet are inserted into the table once, without
+ * overwriting the existing rows.
  * @author bitWolfy
  *
  */
 public class EntityCache implements CachedDataProcess {
     
     private final long REFRESH_RATE_TICKS = (long)(24 * 3600 * 20);
-    private static List<String> entities;
+    private static ConcurrentMap<Integer, String> entities;
+    
+    private static final AtomicLong hits = new AtomicLong(0);
+    private static final AtomicLong misses = new AtomicLong(0);
     
     /**
      * <b>Default constructor</b><br />
-     * Creates a new List for data storage
+     * Creates a new Map for data storage
      */
     public EntityCache() {
-        entities = new ArrayList<String>();
+        entities = new ConcurrentHashMap<Integer, String>(128, 0.75f, 4);
     }
     
     @Override
@@ -54,7 +72,68 @@ public class EntityCache implements CachedDataProcess {
     
     @Override
     public void run() {
-        entities.clear();
+        load();
+    }
+    
+    /**
+     * Loads all known entities from the database.<br />
+     * Entries that are already cached are kept, so that the entity strings stay the same.
+     */
+    private static void load() {
+        final int[] loaded = new int[] {0};
+        Query.table(EntitiesTable.TableName).column(EntitiesTable.EntityId).stream(new RowHandler() {
+            
+            @Override
+            public boolean handle(ResultSet row) throws SQLException {
+                String entityId = row.getString(1);
+                if(entityId == null) return true;
+                int split = entityId.indexOf(':');
+                try {
+                    int type = Integer.parseInt(split == -1 ? entityId : entityId.substring(0, split));
+                    int variant = split == -1 ? 0 : Integer.parseInt(entityId.substring(split + 1));
+                    if(variant < 0 || (split != -1 && variant == 0)) return true;
+                    entities.putIfAbsent(pack(type, variant), entityId);
+                    loaded[0]++;
+                } catch (NumberFormatException ex) { }
+                return true;
+            }
+            
+        });
+        Message.debug("Loaded " + loaded[0] + " entities, " + entities.size() + " cached");
+    }
+    
+    /**
+     * Packs the type ID and the variant into a single cache key
+     * @param type Type ID
+     * @param variant Variant, or <b>0</b> if there is none
+     * @return Cache key
+     */
+    private static int pack(int type, int variant) {
+        if(variant == 0) return type;
+        return (variant << 16) | (type & 0xFFFF);
+    }
+    
+    /**
+     * Returns the variant of the entity.<br />
+     * This method should be called while the entity is still valid, i.e. when the event is registered.
+     * @param entity Entity to check
+     * @return Entity variant, or <b>0</b> if the entity type has no variants
+     */
+    public static int getVariant(Entity entity) {
+        if(entity instanceof Skeleton) return ((Skeleton) entity).getSkeletonType().getId();
+        if(entity instanceof Zombie) return ((Zombie) entity).isVillager() ? 1 : 0;
+        if(entity instanceof Villager) return ((Villager) entity).getProfession().getId();
+        if(entity instanceof Horse) return ((Horse) entity).getVariant().ordinal();
+        return 0;
+    }
+    
+    /**
+     * Parses the entity and returns a valid entity ID
+     * @param entity Entity to parse
+     * @return Entity ID
+     */
+    public static String parse(Entity entity) {
+        return parse(entity.getType(), getVariant(entity));
     }
     
     /**
@@ -63,16 +142,54 @@ public class EntityCache implements CachedDataProcess {
      * @return Entity ID
      */
     public static String parse(EntityType type) {
-        String typeId = type.getTypeId() + ""; // TODO Use the correct metadata
-        if(entities.contains(typeId)) return typeId;
-        entities.add(typeId);
-        if(!Query.table(EntitiesTable.TableName).condition(EntitiesTable.EntityId, typeId).exists()) {
-            Query.table(EntitiesTable.TableName)
-                 .value(EntitiesTable.EntityId, typeId)
-                 .value(EntitiesTable.TpName, "custom_" + type.getName().toLowerCase().replace(" ", "_"))
-                 .insert();
+        return parse(type, 0);
+    }
+    
+    /**
+     * Parses the entity type and variant, and returns a valid entity ID.<br />
+     * Inserts a new entry into the entities table if the entity has not been seen before
+     * @param type Entity type
+     * @param variant Entity variant, as returned by <code>getVariant(Entity)</code>
+     * @return Entity ID
+     */
+    public static String parse(EntityType type, int variant) {
+        Integer key = pack(type.getTypeId(), variant);
+        String entityId = entities.get(key);
+        if(entityId != null) {
+            hits.incrementAndGet();
+            return entityId;
         }
-        return typeId + "";
+        misses.incrementAndGet();
+        
+        entityId = variant == 0 ? String.valueOf(type.getTypeId()) : type.getTypeId() + ":" + variant;
+        String existing = entities.putIfAbsent(key, entityId);
+        if(existing != null) return existing;
+        
+        String name = "custom_" + type.getName().toLowerCase().replace(" ", "_");
+        if(variant != 0) name += "_" + variant;
+        boolean result = Query.table(EntitiesTable.TableName)
+            .value(EntitiesTable.EntityId, entityId)
+            .value(EntitiesTable.TpName, name)
+            .condition(EntitiesTable.EntityId, entityId)
+            .insertIfAbsent();
+        if(!result) entities.remove(key, entityId);
+        return entityId;
+    }
+    
+    /**
+     * Returns the number of lookups that were answered from the cache
+     * @return Number of lookups
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+    
+    /**
+     * Returns the number of lookups that were not found in the cache
+     * @return Number of lookups
+     */
+    public static long getMisses() {
+        return misses.get();
     }
     
 }
@@ -20,8 +20,10 @@
 
 package com.wolvencraft.yasp.util.cache;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.bukkit.Material;
 import org.bukkit.block.BlockState;
@@ -29,27 +31,32 @@ import org.bukkit.inventory.ItemStack;
 import org.bukkit.material.MaterialData;
 
 import com.wolvencraft.yasp.db.Query;
+import com.wolvencraft.yasp.db.RowHandler;
 import com.wolvencraft.yasp.db.tables.Miscellaneous.MaterialsTable;
 import com.wolvencraft.yasp.settings.Constants;
 import com.wolvencraft.yasp.settings.Constants.ItemsWithMetadata;
+import com.wolvencraft.yasp.util.Message;
 import com.wolvencraft.yasp.util.cache.CachedData.CachedDataProcess;
 
 /**
- * Caches material IDs server-side
+ * Caches material IDs server-side.<br />
+ * Materials are keyed by their type ID and data value, packed into a single integer, and map to the shared
+ * material string. The whole materials table is loaded in one query when the process runs; materials that
+ * have not been seen yet are inserted into the table once, without overwriting the existing rows.
  * @author bitWolfy
  *
  */
 public class MaterialCache implements CachedDataProcess {
 
     private final long REFRESH_RATE_TICKS = (long)(24 * 3600 * 20);
-    private static List<String> materials;
+    private static ConcurrentMap<Integer, String> materials;
     
     /**
      * <b>Default constructor</b><br />
-     * Creates a new List for data storage
+     * Creates a new Map for data storage
      */
     public MaterialCache() {
-        materials = new ArrayList<String>();
+        materials = new ConcurrentHashMap<Integer, String>(1024, 0.75f, 4);
     }
     
     @Override
@@ -59,33 +66,75 @@ public class MaterialCache implements CachedDataProcess {
     
     @Override
     public void run() {
-        materials.clear();
+        load();
+    }
+    
+    /**
+     * Loads all known materials from the database.<br />
+     * Entries that are already cached are kept, so that the material strings stay the same.
+     */
+    private static void load() {
+        final int[] loaded = new int[] {0};
+        Query.table(MaterialsTable.TableName).column(MaterialsTable.MaterialId).stream(new RowHandler() {
+            
+            @Override
+            public boolean handle(ResultSet row) throws SQLException {
+                String material = row.getString(1);
+                if(material == null) return true;
+                int split = material.indexOf(':');
+                if(split == -1) return true;
+                try {
+                    int type = Integer.parseInt(material.substring(0, split));
+                    int data = Integer.parseInt(material.substring(split + 1));
+                    if(type < 0 || data < 0) return true;
+                    materials.putIfAbsent(pack(type, data), material);
+                    loaded[0]++;
+                } catch (NumberFormatException ex) { }
+                return true;
+            }
+            
+        });
+        Message.debug("Loaded " + loaded[0] + " materials, " + materials.size() + " cached");
+    }
+    
+    /**
+     * Packs the type ID and data value into a single cache key
+     * @param type Type ID
+     * @param data Data value
+     * @return Cache key
+     */
+    private static int pack(int type, int data) {
+        return (type << 16) | (data & 0xFFFF);
     }
     
     /**
      * Parses a block type ID and data value and returns a String representation of the material.<br />
-     * Inserts a new entry into the materials table
+     * Inserts a new entry into the materials table if the material has not been seen before
      * @param type Type ID
      * @param data Data value
      * @param name Item name
      * @return Material string
      */
     private static String parse(int type, int data, String name) {
-        String material = "";
-    
         if(type == -1) return "-1:0";
         if(Material.getMaterial(type) == null) return "0:0";
-        if(!Constants.ItemsWithMetadata.contains(type)) material = type + ":" + "0";
-        else material = type + ":" + ItemsWithMetadata.get(type).getValidData(data);
+        if(!Constants.ItemsWithMetadata.contains(type)) data = 0;
+        else data = ItemsWithMetadata.get(type).getValidData(data);
+        
+        Integer key = pack(type, data);
+        String material = materials.get(key);
+        if(material != null) return material;
+        
+        material = type + ":" + data;
+        String existing = materials.putIfAbsent(key, material);
+        if(existing != null) return existing;
         
-        if(materials.contains(material)) return material;
-        materials.add(material);
-        if(!Query.table(MaterialsTable.TableName).condition(MaterialsTable.MaterialId, material).exists()) {
-            Query.table(MaterialsTable.TableName)
-                 .value(MaterialsTable.MaterialId, material)
-                 .value(MaterialsTable.TpName, "custom_" + name + "_" + data)
-                 .insert();
-        }
+        boolean result = Query.table(MaterialsTable.TableName)
+            .value(MaterialsTable.MaterialId, material)
+            .value(MaterialsTable.TpName, "custom_" + name + "_" + data)
+            .condition(MaterialsTable.MaterialId, material)
+            .insertIfAbsent();
+        if(!result) materials.remove(key, material);
         return material;
     }
     
@@ -20,9 +20,21 @@
 
 package com.wolvencraft.yasp.util.tasks;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.bukkit.Bukkit;
 
 import com.wolvencraft.yasp.Statistics;
+import com.wolvencraft.yasp.db.BatchWriter;
+import com.wolvencraft.yasp.db.Database;
+import com.wolvencraft.yasp.db.DatabaseExecutor;
+import com.wolvencraft.yasp.db.Journal;
+import com.wolvencraft.yasp.db.KeyValueWriter;
+import com.wolvencraft.yasp.db.Transaction;
+import com.wolvencraft.yasp.db.Transaction.TransactionMode;
+import com.wolvencraft.yasp.db.data.NormalData;
+import com.wolvencraft.yasp.db.totals.PlayerTotals;
 import com.wolvencraft.yasp.events.plugin.SynchronizationCompleteEvent;
 import com.wolvencraft.yasp.events.plugin.SynchronizationEvent;
 import com.wolvencraft.yasp.session.OfflineSession;
@@ -56,7 +68,7 @@ public class DatabaseTask implements Runnable {
      */
     @Override
     public void run() {
-        Bukkit.getScheduler().runTaskAsynchronously(Statistics.getInstance(), new Runnable() {
+        DatabaseExecutor.submit("sync", new Runnable() {
            
             @Override
             public void run() {
@@ -71,9 +83,11 @@ public class DatabaseTask implements Runnable {
      * Performs actions in the following order:<br />
      * <ul>
      * <li>Confirm that the synchronization is not paused.</li>
-     * <li>Push all player data to the database</li>
-     * <li>Push generic server statistics to the database</li>
-     * <li>Fetch server totals for signs and statistics books</li>
+     * <li>Push all player data to the database, grouping the statements into transactions</li>
+     * <li>Refresh the totals of online and offline players, in bulk</li>
+     * <li>Push generic server statistics and the changes to the server totals to the database</li>
+     * <li>Write the queued server statistics and settings, one statement per table</li>
+     * <li>Reconcile the server totals with the player data, if it is due</li>
      * <li>Clear settings cache</li>
      * </ul>
      * This method is likely to freeze the main server thread.
@@ -88,19 +102,54 @@ public class DatabaseTask implements Runnable {
         
         Message.debug("Database synchronization in progress");
         
-        for(OnlineSession session : OnlineSessionCache.getSessions()) {
-            Message.debug("Saving online player data: "+session.getName()+ " ID:" + session.getId());
-            session.pushData();
-            session.getPlayerTotals().fetchData();
-        }
+        if(!Database.isConnected()) Database.reconnect();
+        
+        Journal journal = Database.getJournal();
+        if(journal != null && journal.hasPending()) journal.replay();
+        
+        TransactionMode mode = TransactionMode.get(LocalConfiguration.DBTransactionMode.toString());
+        int limit = mode == TransactionMode.Statements ? LocalConfiguration.DBTransactionSize.toInteger() : 0;
+        long start = System.currentTimeMillis();
+        long written = NormalData.getWritten();
+        long skipped = NormalData.getSkipped();
+        long commits = Transaction.getCommits();
+        long rollbacks = Transaction.getRollbacks();
+        BatchWriter batch = new BatchWriter();
+        Transaction cycle = mode == TransactionMode.Statements ? Transaction.begin(limit) : null;
+        try {
+            for(OnlineSession session : OnlineSessionCache.getSessions()) {
+                Message.debug("Saving online player data: "+session.getName()+ " ID:" + session.getId());
+                Transaction scope = mode == TransactionMode.Session ? Transaction.begin(0) : null;
+                try { session.pushData(batch); }
+                finally { if(scope != null) scope.close(); }
+            }
+        } finally { if(cycle != null) cycle.close(); }
+        
+        written = NormalData.getWritten() - written;
+        skipped = NormalData.getSkipped() - skipped;
+        commits = Transaction.getCommits() - commits;
+        rollbacks = Transaction.getRollbacks() - rollbacks;
+        Message.debug("Normal data: " + written + " rows written, " + skipped + " unchanged rows skipped, " + commits + " commits, " + rollbacks + " rollbacks in " + (System.currentTimeMillis() - start) + " ms");
+        
+        List<PlayerTotals> totals = new ArrayList<PlayerTotals>();
+        for(OnlineSession session : OnlineSessionCache.getSessions()) totals.add(session.getPlayerTotals());
+        for(OfflineSession session : OfflineSessionCache.getSessions()) totals.add(session.getPlayerTotals());
+        start = System.currentTimeMillis();
+        PlayerTotals.fetchData(totals);
+        Message.debug("Player totals: " + totals.size() + " players refreshed in " + (System.currentTimeMillis() - start) + " ms");
         
-        for(OfflineSession session : OfflineSessionCache.getSessions()) {
-            Message.debug("Saving offline player data: " +session.getName()+ " ID:" + session.getId());
-            session.getPlayerTotals().fetchData();
-        }
+        int pending = batch.getPending();
+        batch.flush();
+        if(journal != null) journal.sync();
+        Message.debug("Detailed data: " + batch.getWritten() + " / " + pending + " rows written in " + batch.getBatches() + " batches, " + batch.getRejected() + " rejected");
         
-        Statistics.getServerStatistics().pushData();
-        Statistics.getServerTotals().fetchData();
+        Transaction scope = mode == TransactionMode.None ? null : Transaction.begin(limit);
+        try {
+            Statistics.getServerStatistics().pushData();
+            Statistics.getServerTotals().pushData();
+            KeyValueWriter.flush();
+        } finally { if(scope != null) scope.close(); }
+        Statistics.getServerTotals().reconcile();
         
         Module.clearCache();
         RemoteConfiguration.clearCache();
@@ -0,0 +1,379 @@
+/*
+ * PartitionTask.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.util.tasks;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.logging.Level;
+
+import com.wolvencraft.yasp.db.Database;
+import com.wolvencraft.yasp.db.DatabaseExecutor;
+import com.wolvencraft.yasp.db.PatchManager;
+import com.wolvencraft.yasp.db.Query;
+import com.wolvencraft.yasp.db.Query.QueryResult;
+import com.wolvencraft.yasp.db.tables.DBTable;
+import com.wolvencraft.yasp.db.tables.Detailed;
+import com.wolvencraft.yasp.db.tables.Miscellaneous.SettingsTable;
+import com.wolvencraft.yasp.exceptions.DatabaseConnectionException;
+import com.wolvencraft.yasp.settings.LocalConfiguration;
+import com.wolvencraft.yasp.util.Message;
+import com.wolvencraft.yasp.util.Util;
+
+/**
+ * Maintains the range partitions of the detailed data tables.<br />
+ * On the first run, the tables are converted to partitions on the <code>time</code> column. After that, every run
+ * creates the partitions for the upcoming days or months, and drops the partitions that are older than the retention
+ * period of the table. Retention is read from the settings table, from the <code>retention.&lt;table&gt;</code> keys,
+ * in days; tables without a retention period are kept forever.
+ * @author bitWolfy
+ *
+ */
+public class PartitionTask implements Runnable {
+    
+    /**
+     * Tables that are partitioned
+     */
+    private static final DBTable[] TABLES = new DBTable[] {
+        Detailed.BlocksBroken.TableName,
+        Detailed.BlocksPlaced.TableName,
+        Detailed.ItemsDropped.TableName,
+        Detailed.ItemsPickedUp.TableName,
+        Detailed.PlayerKillsPVE.TableName,
+        Detailed.PlayerKillsPVP.TableName,
+        Detailed.PlayerLog.TableName
+    };
+    
+    private static final String FUTURE_PARTITION = "p_future";
+    private static final String HISTORY_PARTITION = "p_history";
+    private static final String PATCHED_KEY = "partitioning_patched";
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    
+    /**
+     * <b>Default constructor</b>
+     */
+    public PartitionTask() { }
+    
+    @Override
+    public void run() {
+        DatabaseExecutor.submit("partition", new Runnable() {
+            
+            @Override
+            public void run() {
+                maintain();
+            }
+        
+        });
+    }
+    
+    /**
+     * Converts, extends, and expires the partitions of all detailed data tables
+     */
+    public static void maintain() {
+        PartitionInterval interval = PartitionInterval.get(LocalConfiguration.DBPartitionInterval.toString());
+        int ahead = Math.max(1, LocalConfiguration.DBPartitionAhead.toInteger());
+        long now = Util.getTimestamp();
+        
+        for(DBTable table : TABLES) {
+            String tableName = LocalConfiguration.DBPrefix.toString() + table.getColumnName();
+            try {
+                List<Partition> partitions = getPartitions(tableName);
+                if(partitions.isEmpty()) {
+                    if(!prepare()) return;
+                    Message.log("Partitioning " + tableName + ", this may take a while");
+                    execute("ALTER TABLE `" + tableName + "` PARTITION BY RANGE (`time`) ("
+                            + "PARTITION " + HISTORY_PARTITION + " VALUES LESS THAN (" + interval.start(now) + "), "
+                            + "PARTITION " + FUTURE_PARTITION + " VALUES LESS THAN MAXVALUE)");
+                    partitions = getPartitions(tableName);
+                }
+                
+                extend(tableName, partitions, interval, interval.start(now), interval.advance(interval.start(now), ahead + 1));
+                expire(tableName, partitions, getRetention(table.getColumnName()), now);
+            } catch (SQLException e) {
+                Message.log(Level.SEVERE, "Failed to maintain the partitions of " + tableName + ": " + e.getMessage());
+            } catch (DatabaseConnectionException e) {
+                Message.log(Level.SEVERE, e.getMessage());
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Applies the opt-in patch that prepares the detailed data tables for partitioning, unless it has been applied already
+     * @return <b>true</b> if the tables are prepared, <b>false</b> otherwise
+     * @throws DatabaseConnectionException Thrown if the patch could not be applied
+     */
+    private static boolean prepare() throws DatabaseConnectionException {
+        if(getSetting(PATCHED_KEY) == 1) return true;
+        
+        Message.log("Preparing the detailed data tables for partitioning");
+        if(!Database.executePatch("partitioning." + PatchManager.PATCH_KEY)) {
+            Message.log(Level.SEVERE, "Could not apply the partitioning patch, the tables will not be partitioned");
+            return false;
+        }
+        
+        if(!Query.table(SettingsTable.TableName).condition(SettingsTable.Key, PATCHED_KEY).exists()) {
+            Query.table(SettingsTable.TableName).value(SettingsTable.Key, PATCHED_KEY).value(SettingsTable.Value, 1).insert();
+        }
+        Query.table(SettingsTable.TableName).value(SettingsTable.Value, 1).condition(SettingsTable.Key, PATCHED_KEY).update();
+        return true;
+    }
+    
+    /**
+     * Creates the partitions up to the target time by splitting the future partition.<br />
+     * The future partition is normally empty, so splitting it does not move any rows.
+     * @param tableName Full name of the table
+     * @param partitions Current partitions of the table
+     * @param interval Partition interval
+     * @param current Start of the current interval, used if the table has no bounded partitions
+     * @param target Time, in seconds, up to which the partitions should exist
+     * @throws SQLException Thrown if the partitions could not be created
+     * @throws DatabaseConnectionException Thrown if no connection could be obtained
+     */
+    private static void extend(String tableName, List<Partition> partitions, PartitionInterval interval, long current, long target) throws SQLException, DatabaseConnectionException {
+        long start = 0;
+        for(Partition partition : partitions) {
+            if(!partition.isFuture()) start = Math.max(start, partition.bound);
+        }
+        if(start == 0) start = current;
+        
+        StringBuilder created = new StringBuilder();
+        int count = 0;
+        while(start < target) {
+            long end = interval.advance(interval.start(start), 1);
+            created.append("PARTITION ").append(interval.name(start)).append(" VALUES LESS THAN (").append(end).append("), ");
+            start = end;
+            count++;
+        }
+        if(count == 0) return;
+        
+        execute("ALTER TABLE `" + tableName + "` REORGANIZE PARTITION " + FUTURE_PARTITION + " INTO ("
+                + created + "PARTITION " + FUTURE_PARTITION + " VALUES LESS THAN MAXVALUE)");
+        Message.debug("Created " + count + " partitions in " + tableName);
+    }
+    
+    /**
+     * Drops the partitions that only hold rows older than the retention period
+     * @param tableName Full name of the table
+     * @param partitions Current partitions of the table
+     * @param retention Retention period, in days, or <b>0</b> to keep all rows
+     * @param now Current time, in seconds
+     * @throws SQLException Thrown if the partitions could not be dropped
+     * @throws DatabaseConnectionException Thrown if no connection could be obtained
+     */
+    private static void expire(String tableName, List<Partition> partitions, int retention, long now) throws SQLException, DatabaseConnectionException {
+        if(retention <= 0) return;
+        
+        long cutoff = now - retention * 86400L;
+        StringBuilder expired = new StringBuilder();
+        int count = 0;
+        for(Partition partition : partitions) {
+            if(partition.isFuture() || partition.bound > cutoff) continue;
+            if(count > 0) expired.append(", ");
+            expired.append(partition.name);
+            count++;
+        }
+        if(count == 0) return;
+        
+        execute("ALTER TABLE `" + tableName + "` DROP PARTITION " + expired);
+        Message.log("Dropped " + count + " expired partitions from " + tableName);
+    }
+    
+    /**
+     * Returns the partitions of the table, in order
+     * @param tableName Full name of the table
+     * @return List of partitions, empty if the table is not partitioned
+     */
+    private static List<Partition> getPartitions(String tableName) {
+        List<Object> params = new ArrayList<Object>(1);
+        params.add(tableName);
+        List<Partition> partitions = new ArrayList<Partition>();
+        for(QueryResult row : Database.executeQuery(
+                "SELECT `PARTITION_NAME`, `PARTITION_DESCRIPTION` FROM `INFORMATION_SCHEMA`.`PARTITIONS` "
+                + "WHERE `TABLE_SCHEMA` = DATABASE() AND `TABLE_NAME` = ? AND `PARTITION_NAME` IS NOT NULL "
+                + "ORDER BY `PARTITION_ORDINAL_POSITION`", params)) {
+            partitions.add(new Partition(row.asString("PARTITION_NAME"), row.asString("PARTITION_DESCRIPTION")));
+        }
+        return partitions;
+    }
+    
+    /**
+     * Returns the retention period of the table from the settings table
+     * @param table Name of the table, without the prefix
+     * @return Retention period, in days, or <b>0</b> if the rows are kept forever
+     */
+    private static int getRetention(String table) {
+        return getSetting("retention." + table);
+    }
+    
+    /**
+     * Returns the numeric value of a setting
+     * @param key Setting key
+     * @return Setting value, or <b>0</b> if it is not set
+     */
+    private static int getSetting(String key) {
+        QueryResult result = Query.table(SettingsTable.TableName)
+                .column(SettingsTable.Value)
+                .condition(SettingsTable.Key, key)
+                .select();
+        if(result == null || result.isNull(SettingsTable.Value)) return 0;
+        return result.asInt(SettingsTable.Value);
+    }
+    
+    /**
+     * Runs a DDL statement
+     * @param sql SQL statement
+     * @throws SQLException Thrown if the statement failed
+     * @throws DatabaseConnectionException Thrown if no connection could be obtained
+     */
+    private static void execute(String sql) throws SQLException, DatabaseConnectionException {
+        Message.debug(Level.FINER, sql);
+        Connection connection = Database.borrowConnection();
+        Statement statement = null;
+        try {
+            statement = connection.createStatement();
+            statement.execute(sql);
+        } finally {
+            if(statement != null) {
+                try { statement.close(); }
+                catch (SQLException e) { }
+            }
+            Database.releaseConnection(connection);
+        }
+    }
+    
+    /**
+     * Represents a single partition of a table
+     * @author bitWolfy
+     *
+     */
+    private static class Partition {
+        
+        private final String name;
+        private final long bound;
+        
+        /**
+         * <b>Default constructor</b><br />
+         * Creates a new partition entry
+         * @param name Partition name
+         * @param description Upper bound of the partition, as reported by the database
+         */
+        public Partition(String name, String description) {
+            this.name = name;
+            long bound;
+            try { bound = Long.parseLong(description); }
+            catch (NumberFormatException e) { bound = Long.MAX_VALUE; }
+            this.bound = bound;
+        }
+        
+        /**
+         * Checks if this is the partition that holds all rows past the last bound
+         * @return <b>true</b> if the partition has no upper bound, <b>false</b> otherwise
+         */
+        public boolean isFuture() {
+            return bound == Long.MAX_VALUE;
+        }
+    
+    }
+    
+    /**
+     * Size of a single partition
+     * @author bitWolfy
+     *
+     */
+    public enum PartitionInterval {
+        
+        Day     (Calendar.DAY_OF_MONTH, "yyyyMMdd"),
+        Month   (Calendar.MONTH, "yyyyMM");
+        
+        private int field;
+        private String format;
+        
+        /**
+         * <b>Default constructor</b><br />
+         * Creates a new partition interval
+         * @param field Calendar field the interval is measured in
+         * @param format Date format of the partition names
+         */
+        PartitionInterval(int field, String format) {
+            this.field = field;
+            this.format = format;
+        }
+        
+        /**
+         * Returns the start of the interval that contains the specified time
+         * @param time Time, in seconds
+         * @return Start of the interval, in seconds
+         */
+        public long start(long time) {
+            Calendar calendar = Calendar.getInstance(UTC);
+            calendar.setTimeInMillis(time * 1000L);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            if(this == Month) calendar.set(Calendar.DAY_OF_MONTH, 1);
+            return calendar.getTimeInMillis() / 1000L;
+        }
+        
+        /**
+         * Moves the time forward by the specified number of intervals
+         * @param time Time, in seconds
+         * @param count Number of intervals
+         * @return Resulting time, in seconds
+         */
+        public long advance(long time, int count) {
+            Calendar calendar = Calendar.getInstance(UTC);
+            calendar.setTimeInMillis(time * 1000L);
+            calendar.add(field, count);
+            return calendar.getTimeInMillis() / 1000L;
+        }
+        
+        /**
+         * Returns the name of the partition that starts in the interval containing the specified time
+         * @param time Time, in seconds
+         * @return Partition name
+         */
+        public String name(long time) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+            dateFormat.setTimeZone(UTC);
+            return "p" + dateFormat.format(time * 1000L);
+        }
+        
+        /**
+         * Parses the interval from its name
+         * @param name Interval name
+         * @return Partition interval, or <b>Day</b> if the name is not valid
+         */
+        public static PartitionInterval get(String name) {
+            for(PartitionInterval interval : values()) {
+                if(interval.name().equalsIgnoreCase(name)) return interval;
+            }
+            return Day;
+        }
+    }
+
+}
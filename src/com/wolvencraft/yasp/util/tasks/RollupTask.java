@@ -0,0 +1,283 @@
+/*
+ * RollupTask.java
+ * 
+ * Statistics
+ * Copyright (C) 2013 bitWolfy <http://www.wolvencraft.com> and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.wolvencraft.yasp.util.tasks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.logging.Level;
+
+import com.wolvencraft.yasp.db.Database;
+import com.wolvencraft.yasp.db.DatabaseExecutor;
+import com.wolvencraft.yasp.db.tables.DBTable;
+import com.wolvencraft.yasp.db.tables.Detailed;
+import com.wolvencraft.yasp.db.tables.Miscellaneous.SettingsTable;
+import com.wolvencraft.yasp.exceptions.DatabaseConnectionException;
+import com.wolvencraft.yasp.settings.LocalConfiguration;
+import com.wolvencraft.yasp.util.Message;
+import com.wolvencraft.yasp.util.Util;
+
+/**
+ * Compacts old detailed data into hourly rollup tables.<br />
+ * The detailed tables are walked in chunks of primary keys. Rows in a chunk that are older than the configured age
+ * are counted into the <code>rollup_*</code> tables by player, material or entity, world, chunk, and hour, and are
+ * then deleted. Each chunk is a separate transaction, which also stores the progress in the settings table, so the
+ * compaction resumes where it stopped after a restart.
+ * @author bitWolfy
+ *
+ */
+public class RollupTask implements Runnable {
+    
+    /**
+     * <b>Default constructor</b>
+     */
+    public RollupTask() { }
+    
+    @Override
+    public void run() {
+        DatabaseExecutor.submit("rollup", new Runnable() {
+            
+            @Override
+            public void run() {
+                compact();
+            }
+        
+        });
+    }
+    
+    /**
+     * Compacts the detailed data tables, processing at most the configured number of chunks
+     */
+    public static void compact() {
+        int age = LocalConfiguration.DBRollupAge.toInteger();
+        if(age <= 0) return;
+        
+        long cutoff = Util.getTimestamp() - age * 86400L;
+        int chunkSize = Math.max(100, LocalConfiguration.DBRollupChunkSize.toInteger());
+        int budget = Math.max(1, LocalConfiguration.DBRollupChunks.toInteger());
+        
+        for(Rollup rollup : Rollup.values()) {
+            try { budget -= rollup.compact(cutoff, chunkSize, budget); }
+            catch (SQLException e) {
+                Message.log(Level.SEVERE, "Failed to compact " + rollup.source.getColumnName() + ": " + e.getMessage());
+            } catch (DatabaseConnectionException e) {
+                Message.log(Level.SEVERE, e.getMessage());
+                return;
+            }
+            if(budget <= 0) return;
+        }
+    }
+    
+    /**
+     * Returns the first column of the first row returned by the statement
+     * @param statement Statement to run
+     * @return Column value, or <b>null</b> if there is none
+     * @throws SQLException Thrown if the statement failed
+     */
+    private static Long selectLong(PreparedStatement statement) throws SQLException {
+        ResultSet rs = statement.executeQuery();
+        try {
+            if(!rs.next()) return null;
+            long value = rs.getLong(1);
+            return rs.wasNull() ? null : value;
+        } finally { rs.close(); }
+    }
+    
+    /**
+     * Closes the statement, ignoring any errors
+     * @param statement Statement to close
+     */
+    private static void close(PreparedStatement statement) {
+        if(statement == null) return;
+        try { statement.close(); }
+        catch (SQLException e) { }
+    }
+    
+    /**
+     * Detailed data tables and the rollup tables they are compacted into
+     * @author bitWolfy
+     *
+     */
+    public enum Rollup {
+        
+        DestroyedBlocks (Detailed.BlocksBroken.TableName, "detailed_destroyed_blocks_id", "rollup_destroyed_blocks", false,
+                new String[] {"material_id"}, new String[] {"''"}),
+        PlacedBlocks    (Detailed.BlocksPlaced.TableName, "detailed_placed_blocks_id", "rollup_placed_blocks", false,
+                new String[] {"material_id"}, new String[] {"''"}),
+        DroppedItems    (Detailed.ItemsDropped.TableName, "detailed_dropped_items_id", "rollup_dropped_items", true,
+                new String[] {"material_id"}, new String[] {"''"}),
+        PickedUpItems   (Detailed.ItemsPickedUp.TableName, "detailed_pickedup_items_id", "rollup_pickedup_items", true,
+                new String[] {"material_id"}, new String[] {"''"}),
+        PVEKills        (Detailed.PlayerKillsPVE.TableName, "detailed_pve_id", "rollup_pve_kills", false,
+                new String[] {"entity_id", "material_id", "player_killed"}, new String[] {"''", "''", "0"}),
+        PVPKills        (Detailed.PlayerKillsPVP.TableName, "detailed_pvp_id", "rollup_pvp_kills", false,
+                new String[] {"victim_id", "material_id"}, new String[] {"0", "''"});
+        
+        private DBTable source;
+        private String idColumn;
+        private String rollupTable;
+        private boolean amount;
+        private String[] columns;
+        private String[] defaults;
+        
+        /**
+         * <b>Default constructor</b><br />
+         * Creates a new rollup definition
+         * @param source Detailed data table
+         * @param idColumn Primary key of the detailed data table
+         * @param rollupTable Name of the rollup table
+         * @param amount <b>true</b> if the rows have an amount that should be summed up, <b>false</b> otherwise
+         * @param columns Columns the rows are grouped by, in addition to the player, location, and hour
+         * @param defaults Values that replace <b>NULL</b> in the grouping columns
+         */
+        Rollup(DBTable source, String idColumn, String rollupTable, boolean amount, String[] columns, String[] defaults) {
+            this.source = source;
+            this.idColumn = idColumn;
+            this.rollupTable = rollupTable;
+            this.amount = amount;
+            this.columns = columns;
+            this.defaults = defaults;
+        }
+        
+        /**
+         * Compacts the table, starting from the stored checkpoint
+         * @param cutoff Rows older than this time, in seconds, are compacted
+         * @param chunkSize Number of primary keys in a single chunk
+         * @param budget Maximum number of chunks to process
+         * @return Number of chunks processed
+         * @throws SQLException Thrown if a chunk could not be compacted
+         * @throws DatabaseConnectionException Thrown if no connection could be obtained
+         */
+        public int compact(long cutoff, int chunkSize, int budget) throws SQLException, DatabaseConnectionException {
+            String table = LocalConfiguration.DBPrefix.toString() + source.getColumnName();
+            String checkpointKey = "rollup." + source.getColumnName();
+            int chunks = 0;
+            int compacted = 0;
+            
+            Connection connection = Database.borrowConnection();
+            PreparedStatement readCheckpoint = null;
+            PreparedStatement selectMaxId = null;
+            PreparedStatement selectNewest = null;
+            PreparedStatement insert = null;
+            PreparedStatement delete = null;
+            PreparedStatement writeCheckpoint = null;
+            try {
+                String settings = LocalConfiguration.DBPrefix.toString() + SettingsTable.TableName.getColumnName();
+                readCheckpoint = connection.prepareStatement("SELECT `value` FROM `" + settings + "` WHERE `key` = ?");
+                readCheckpoint.setString(1, checkpointKey);
+                Long stored = selectLong(readCheckpoint);
+                long checkpoint = stored == null ? 0 : stored;
+                
+                selectMaxId = connection.prepareStatement("SELECT MAX(`" + idColumn + "`) FROM `" + table + "`");
+                Long maxId = selectLong(selectMaxId);
+                connection.commit();
+                if(maxId == null) return 0;
+                
+                selectNewest = connection.prepareStatement("SELECT MAX(`time`) FROM `" + table + "` WHERE `" + idColumn + "` > ? AND `" + idColumn + "` <= ?");
+                insert = connection.prepareStatement(buildInsert(table));
+                delete = connection.prepareStatement("DELETE FROM `" + table + "` WHERE `" + idColumn + "` > ? AND `" + idColumn + "` <= ? AND `time` < ?");
+                writeCheckpoint = connection.prepareStatement("INSERT INTO `" + settings + "` (`key`, `value`) VALUES (?, ?) ON DUPLICATE KEY UPDATE `value` = VALUES(`value`)");
+                
+                while(chunks < budget && checkpoint < maxId) {
+                    long upper = Math.min(checkpoint + chunkSize, maxId);
+                    try {
+                        selectNewest.setLong(1, checkpoint);
+                        selectNewest.setLong(2, upper);
+                        Long newest = selectLong(selectNewest);
+                        
+                        insert.setLong(1, checkpoint);
+                        insert.setLong(2, upper);
+                        insert.setLong(3, cutoff);
+                        insert.executeUpdate();
+                        
+                        delete.setLong(1, checkpoint);
+                        delete.setLong(2, upper);
+                        delete.setLong(3, cutoff);
+                        compacted += delete.executeUpdate();
+                        
+                        boolean complete = newest == null || newest < cutoff;
+                        if(complete) {
+                            writeCheckpoint.setString(1, checkpointKey);
+                            writeCheckpoint.setString(2, String.valueOf(upper));
+                            writeCheckpoint.executeUpdate();
+                        }
+                        connection.commit();
+                        chunks++;
+                        
+                        if(!complete) break;
+                        checkpoint = upper;
+                    } catch (SQLException e) {
+                        try { connection.rollback(); }
+                        catch (SQLException ex) { }
+                        throw e;
+                    }
+                }
+            } finally {
+                close(readCheckpoint);
+                close(selectMaxId);
+                close(selectNewest);
+                close(insert);
+                close(delete);
+                close(writeCheckpoint);
+                Database.releaseConnection(connection);
+            }
+            
+            if(compacted > 0) Message.debug("Compacted " + compacted + " rows from " + table + " in " + chunks + " chunks");
+            return chunks;
+        }
+        
+        /**
+         * Builds the statement that counts the old rows of a chunk into the rollup table
+         * @param table Full name of the detailed data table
+         * @return SQL query
+         */
+        private String buildInsert(String table) {
+            StringBuilder target = new StringBuilder("`player_id`");
+            StringBuilder select = new StringBuilder("`player_id`");
+            for(int i = 0; i < columns.length; i++) {
+                target.append(", `").append(columns[i]).append('`');
+                select.append(", IFNULL(`").append(columns[i]).append("`, ").append(defaults[i]).append(')');
+            }
+            target.append(", `world`, `chunk_x`, `chunk_z`, `hour`, `count`");
+            select.append(", IFNULL(`world`, ''), FLOOR(IFNULL(`x`, 0) / 16), FLOOR(IFNULL(`z`, 0) / 16), `time` - `time` % 3600, COUNT(*)");
+            if(amount) {
+                target.append(", `amount`");
+                select.append(", SUM(IFNULL(`amount`, 1))");
+            }
+            
+            StringBuilder groupBy = new StringBuilder();
+            for(int i = 1; i <= columns.length + 5; i++) {
+                if(i > 1) groupBy.append(", ");
+                groupBy.append(i);
+            }
+            
+            StringBuilder sql = new StringBuilder("INSERT INTO `").append(LocalConfiguration.DBPrefix.toString()).append(rollupTable).append("` (")
+                .append(target).append(") SELECT ").append(select)
+                .append(" FROM `").append(table).append("` WHERE `").append(idColumn).append("` > ? AND `").append(idColumn).append("` <= ? AND `time` < ?")
+                .append(" GROUP BY ").append(groupBy)
+                .append(" ON DUPLICATE KEY UPDATE `count` = `count` + VALUES(`count`)");
+            if(amount) sql.append(", `amount` = `amount` + VALUES(`amount`)");
+            return sql.toString();
+        }
+    }
+
+}